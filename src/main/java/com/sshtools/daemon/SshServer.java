@@ -42,7 +42,12 @@ import java.io.*;
 
 import java.net.*;
 
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * 
@@ -100,6 +105,7 @@ public abstract class SshServer {
     public void startServer() throws IOException {
 	log.info("Starting server");
 	shutdown = false;
+	configureThreads();
 	startServerSocket();
 	thread = new Thread(new Runnable() {
 	    public void run() {
@@ -125,6 +131,22 @@ public abstract class SshServer {
 	}
     }
 
+    private void configureThreads() throws IOException {
+	if (((ServerConfiguration) ConfigurationLoader
+		.getConfiguration(ServerConfiguration.class))
+		.getVirtualThreads()) {
+	    ThreadFactory factory = SshThread.getVirtualThreadFactory();
+
+	    if (factory == null) {
+		log.warn("Virtual threads are not supported by this JVM; using platform threads");
+	    } else {
+		log.info("Running server threads as virtual threads");
+	    }
+
+	    SshThread.setThreadFactory(factory);
+	}
+    }
+
     /**
      * 
      * 
@@ -256,6 +278,25 @@ public abstract class SshServer {
      */
     protected TransportProtocolServer createSession(Socket socket)
 	    throws IOException {
+	return createSession(socket, new ConnectedSocketTransportProvider(
+		socket));
+    }
+
+    /**
+     * 
+     * 
+     * @param socket
+     * @param provider the provider the transport protocol will use for the
+     *        socket
+     * 
+     * @return
+     * 
+     * @throws IOException
+     * 
+     * @since 0.2.10
+     */
+    protected TransportProtocolServer createSession(Socket socket,
+	    TransportProvider provider) throws IOException {
 	log.debug("Initializing connection");
 
 	InetAddress address = socket.getInetAddress();
@@ -284,8 +325,7 @@ public abstract class SshServer {
 	// Allow the Authentication Protocol to be accepted by the Transport
 	// Protocol
 	transport.acceptService(authentication);
-	transport.startTransportProtocol(new ConnectedSocketTransportProvider(
-		socket), new SshConnectionProperties());
+	transport.startTransportProtocol(provider, new SshConnectionProperties());
 
 	return transport;
     }
@@ -298,8 +338,27 @@ public abstract class SshServer {
 	private Thread thread;
 	private int maxConnections;
 	private int port;
+	private Selector acceptor;
+	private SelectorThread[] selectors;
+	private ExecutorService workers;
+	private int nextSelector = 0;
 	private StartStopState state = new StartStopState(
 		StartStopState.STOPPED);
+	private TransportProtocolEventHandler eventHandler = new TransportProtocolEventAdapter() {
+	    public void onDisconnect(TransportProtocol transport) {
+		// Remove from our active channels list only if
+		// were still connected (the thread cleans up
+		// when were exiting so this is to avoid any concurrent
+		// modification problems
+		if (state.getValue() != StartStopState.STOPPED) {
+		    synchronized (activeConnections) {
+			log.info(transport.getUnderlyingProviderDetail()
+				+ " connection closed");
+			activeConnections.remove(transport);
+		    }
+		}
+	    }
+	};
 
 	public ConnectionListener(String listenAddress, int port) {
 	    this.port = port;
@@ -310,49 +369,17 @@ public abstract class SshServer {
 	    try {
 		log.debug("Starting connection listener thread");
 		state.setValue(StartStopState.STARTED);
-		server = new ServerSocket(port);
 
-		Socket socket;
-		maxConnections = ((ServerConfiguration) ConfigurationLoader
-			.getConfiguration(ServerConfiguration.class))
-			.getMaxConnections();
-
-		// boolean refuse = false;
-		TransportProtocolEventHandler eventHandler = new TransportProtocolEventAdapter() {
-		    public void onDisconnect(TransportProtocol transport) {
-			// Remove from our active channels list only if
-			// were still connected (the thread cleans up
-			// when were exiting so this is to avoid any concurrent
-			// modification problems
-			if (state.getValue() != StartStopState.STOPPED) {
-			    synchronized (activeConnections) {
-				log.info(transport
-					.getUnderlyingProviderDetail()
-					+ " connection closed");
-				activeConnections.remove(transport);
-			    }
-			}
-		    }
-		};
+		ServerConfiguration config = (ServerConfiguration) ConfigurationLoader
+			.getConfiguration(ServerConfiguration.class);
+		maxConnections = config.getMaxConnections();
 
 		try {
-		    while (((socket = server.accept()) != null)
-			    && (state.getValue() == StartStopState.STARTED)) {
-			log.debug("New connection requested");
-
-			if (maxConnections < activeConnections.size()) {
-			    refuseSession(socket);
-			} else {
-			    TransportProtocolServer transport = createSession(socket);
-			    log.info("Monitoring active session from "
-				    + socket.getInetAddress().getHostName());
-
-			    synchronized (activeConnections) {
-				activeConnections.add(transport);
-			    }
-
-			    transport.addEventHandler(eventHandler);
-			}
+		    if (config.getSelectorThreads() > 0) {
+			acceptChannels(config.getSelectorThreads(),
+				config.getTransportWorkerThreads());
+		    } else {
+			acceptSockets();
 		    }
 		} catch (IOException ex) {
 		    if (state.getValue() != StartStopState.STOPPED) {
@@ -370,6 +397,7 @@ public abstract class SshServer {
 		    it.next().disconnect("The server is shuting down");
 		}
 
+		stopSelectors();
 		listener = null;
 		log.info("Exiting connection listener thread");
 	    } catch (IOException ex) {
@@ -382,6 +410,111 @@ public abstract class SshServer {
 	    // System.exit(0);
 	}
 
+	private void acceptSockets() throws IOException {
+	    server = new ServerSocket(port);
+
+	    Socket socket;
+
+	    while (((socket = server.accept()) != null)
+		    && (state.getValue() == StartStopState.STARTED)) {
+		log.debug("New connection requested");
+
+		if (maxConnections < activeConnections.size()) {
+		    refuseSession(socket);
+		} else {
+		    monitorSession(socket, createSession(socket));
+		}
+	    }
+	}
+
+	/**
+	 * Accepts connections on a non-blocking channel and hands each one to
+	 * a selector thread, so that an idle connection does not hold a
+	 * transport thread.
+	 */
+	private void acceptChannels(int count, int workerCount)
+		throws IOException {
+	    ServerSocketChannel channel = ServerSocketChannel.open();
+	    server = channel.socket();
+	    server.bind(new InetSocketAddress(port));
+	    channel.configureBlocking(false);
+	    acceptor = Selector.open();
+	    channel.register(acceptor, SelectionKey.OP_ACCEPT);
+
+	    // Workers are only handed a connection once a whole packet has
+	    // arrived, so a fixed number serves any number of connections
+	    workerCount = Math.max(1, workerCount);
+	    ThreadPoolExecutor pool = new ThreadPoolExecutor(workerCount,
+		    workerCount, 60L, TimeUnit.SECONDS,
+		    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+			    return new SshThread(r, "Transport worker", true);
+			}
+		    });
+	    pool.allowCoreThreadTimeOut(true);
+	    workers = pool;
+	    selectors = new SelectorThread[count];
+
+	    for (int i = 0; i < count; i++) {
+		selectors[i] = new SelectorThread("Transport selector",
+			workers);
+		selectors[i].start();
+	    }
+
+	    try {
+		while (state.getValue() == StartStopState.STARTED) {
+		    acceptor.select();
+		    acceptor.selectedKeys().clear();
+
+		    java.nio.channels.SocketChannel socket;
+
+		    while (((socket = channel.accept()) != null)
+			    && (state.getValue() == StartStopState.STARTED)) {
+			log.debug("New connection requested");
+
+			if (maxConnections < activeConnections.size()) {
+			    // The channel is still in blocking mode
+			    refuseSession(socket.socket());
+			} else {
+			    SelectorThread selector = selectors[nextSelector++
+				    % selectors.length];
+			    monitorSession(socket.socket(), createSession(
+				    socket.socket(),
+				    new SocketChannelTransportProvider(socket,
+					    selector)));
+			}
+		    }
+		}
+	    } finally {
+		acceptor.close();
+		channel.close();
+	    }
+	}
+
+	private void monitorSession(Socket socket,
+		TransportProtocolServer transport) {
+	    log.info("Monitoring active session from "
+		    + socket.getInetAddress().getHostName());
+
+	    synchronized (activeConnections) {
+		activeConnections.add(transport);
+	    }
+
+	    transport.addEventHandler(eventHandler);
+	}
+
+	private void stopSelectors() {
+	    if (selectors != null) {
+		for (int i = 0; i < selectors.length; i++) {
+		    if (selectors[i] != null) {
+			selectors[i].shutdown();
+		    }
+		}
+
+		workers.shutdown();
+	    }
+	}
+
 	public void start() {
 	    thread = new SshThread(this, "Connection listener", true);
 	    thread.start();
@@ -392,6 +525,10 @@ public abstract class SshServer {
 		state.setValue(StartStopState.STOPPED);
 		server.close();
 
+		if (acceptor != null) {
+		    acceptor.wakeup();
+		}
+
 		if (thread != null) {
 		    thread.interrupt();
 		}
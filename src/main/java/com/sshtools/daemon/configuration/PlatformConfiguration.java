@@ -72,6 +72,7 @@ public class PlatformConfiguration extends DefaultHandler {
     private String nativeFileSystemProvider = null;
     private Map<String, VFSMount> vfsMounts = new HashMap<String, VFSMount>();
     private VFSMount vfsRoot = null;
+    private volatile int revision = 0;
 
     /**
      * Creates a new PlatformConfiguration object.
@@ -101,6 +102,21 @@ public class PlatformConfiguration extends DefaultHandler {
 	SAXParserFactory saxFactory = SAXParserFactory.newInstance();
 	SAXParser saxParser = saxFactory.newSAXParser();
 	saxParser.parse(in, new PlatformConfigurationSAXHandler());
+	revision++;
+    }
+
+    /**
+     * <p>
+     * Returns a number that changes each time the configuration is loaded,
+     * so that anything derived from it knows when to rebuild.
+     * </p>
+     * 
+     * @return the configuration revision
+     * 
+     * @since 0.2.10
+     */
+    public int getRevision() {
+	return revision;
     }
 
     /**
@@ -46,6 +46,7 @@ import org.xml.sax.helpers.DefaultHandler;
 
 import com.sshtools.daemon.session.SessionChannelServer;
 import com.sshtools.j2ssh.configuration.ConfigurationLoader;
+import com.sshtools.j2ssh.transport.compression.SshCompression;
 import com.sshtools.j2ssh.transport.publickey.InvalidSshKeyException;
 import com.sshtools.j2ssh.transport.publickey.SshPrivateKey;
 import com.sshtools.j2ssh.transport.publickey.SshPrivateKeyFile;
@@ -67,6 +68,12 @@ public class ServerConfiguration extends DefaultHandler {
     private String listenAddress = "0.0.0.0";
     private int maxConnections = 10;
     private int maxAuthentications = 5;
+    private int compressionLevel = SshCompression.DEFAULT_LEVEL;
+    private int sftpWorkerThreads = 0;
+    private int sftpMaxSessionRequests = 8;
+    private int selectorThreads = 0;
+    private int transportWorkerThreads = 16;
+    private boolean virtualThreads = false;
     private String terminalProvider = "";
     private String authorizationFile = "authorization.xml";
     private String userConfigDirectory = "%D/.ssh2";
@@ -110,6 +117,12 @@ public class ServerConfiguration extends DefaultHandler {
 	listenAddress = "0.0.0.0";
 	maxConnections = 10;
 	maxAuthentications = 5;
+	compressionLevel = SshCompression.DEFAULT_LEVEL;
+	sftpWorkerThreads = 0;
+	sftpMaxSessionRequests = 8;
+	selectorThreads = 0;
+	transportWorkerThreads = 16;
+	virtualThreads = false;
 	terminalProvider = "";
 	authorizationFile = "authorization.xml";
 	userConfigDirectory = "%D/.ssh2";
@@ -192,6 +205,12 @@ public class ServerConfiguration extends DefaultHandler {
 		} else if (!qname.equals("AuthenticationBanner")
 			&& !qname.equals("MaxConnections")
 			&& !qname.equals("MaxAuthentications")
+			&& !qname.equals("CompressionLevel")
+			&& !qname.equals("SftpWorkerThreads")
+			&& !qname.equals("SftpMaxSessionRequests")
+			&& !qname.equals("SelectorThreads")
+			&& !qname.equals("TransportWorkerThreads")
+			&& !qname.equals("VirtualThreads")
 			&& !qname.equals("ListenAddress")
 			&& !qname.equals("Port")
 			&& !qname.equals("CommandPort")
@@ -268,6 +287,24 @@ public class ServerConfiguration extends DefaultHandler {
 	    } else if (currentElement.equals("MaxAuthentications")) {
 		maxAuthentications = Integer.parseInt(value);
 		log.debug("MaxAuthentications=" + value);
+	    } else if (currentElement.equals("CompressionLevel")) {
+		compressionLevel = Integer.parseInt(value);
+		log.debug("CompressionLevel=" + value);
+	    } else if (currentElement.equals("SftpWorkerThreads")) {
+		sftpWorkerThreads = Integer.parseInt(value);
+		log.debug("SftpWorkerThreads=" + value);
+	    } else if (currentElement.equals("SftpMaxSessionRequests")) {
+		sftpMaxSessionRequests = Integer.parseInt(value);
+		log.debug("SftpMaxSessionRequests=" + value);
+	    } else if (currentElement.equals("SelectorThreads")) {
+		selectorThreads = Integer.parseInt(value);
+		log.debug("SelectorThreads=" + value);
+	    } else if (currentElement.equals("TransportWorkerThreads")) {
+		transportWorkerThreads = Integer.parseInt(value);
+		log.debug("TransportWorkerThreads=" + value);
+	    } else if (currentElement.equals("VirtualThreads")) {
+		virtualThreads = Boolean.valueOf(value).booleanValue();
+		log.debug("VirtualThreads=" + value);
 	    } else if (currentElement.equals("AllowTcpForwarding")) {
 		allowTcpForwarding = Boolean.valueOf(value).booleanValue();
 	    }
@@ -296,6 +333,12 @@ public class ServerConfiguration extends DefaultHandler {
 		    || currentElement.equals("Subsystem")
 		    || currentElement.equals("MaxConnections")
 		    || currentElement.equals("MaxAuthentications")
+		    || currentElement.equals("CompressionLevel")
+		    || currentElement.equals("SftpWorkerThreads")
+		    || currentElement.equals("SftpMaxSessionRequests")
+		    || currentElement.equals("SelectorThreads")
+		    || currentElement.equals("TransportWorkerThreads")
+		    || currentElement.equals("VirtualThreads")
 		    || currentElement.equals("ListenAddress")
 		    || currentElement.equals("Port")
 		    || currentElement.equals("CommandPort")
@@ -403,6 +446,78 @@ public class ServerConfiguration extends DefaultHandler {
 	return maxAuthentications;
     }
 
+    /**
+     * 
+     * 
+     * @return
+     * 
+     * @since 0.2.10
+     */
+    public int getCompressionLevel() {
+	return compressionLevel;
+    }
+
+    /**
+     * Returns the number of threads in the pool that executes SFTP requests
+     * for all sessions. Zero executes requests on each session's own
+     * subsystem thread.
+     * 
+     * @return
+     * 
+     * @since 0.2.10
+     */
+    public int getSftpWorkerThreads() {
+	return sftpWorkerThreads;
+    }
+
+    /**
+     * 
+     * 
+     * @return the number of requests one SFTP session may execute at once
+     * 
+     * @since 0.2.10
+     */
+    public int getSftpMaxSessionRequests() {
+	return sftpMaxSessionRequests;
+    }
+
+    /**
+     * Returns the number of selector threads that perform non-blocking
+     * socket I/O for all connections. Zero accepts connections with a
+     * blocking listener and gives each one its own transport thread.
+     * 
+     * @return
+     * 
+     * @since 0.2.10
+     */
+    public int getSelectorThreads() {
+	return selectorThreads;
+    }
+
+    /**
+     * Returns the most threads that process received packets for all
+     * connections when selector threads are used.
+     * 
+     * @return
+     * 
+     * @since 0.2.10
+     */
+    public int getTransportWorkerThreads() {
+	return transportWorkerThreads;
+    }
+
+    /**
+     * Determines whether the server's transport, service, subsystem and
+     * forwarding workers run as virtual threads when the JVM supports them.
+     * 
+     * @return
+     * 
+     * @since 0.2.10
+     */
+    public boolean getVirtualThreads() {
+	return virtualThreads;
+    }
+
     /**
      * 
      * 
@@ -475,6 +590,18 @@ public class ServerConfiguration extends DefaultHandler {
 	xml += ("   <MaxConnections>" + String.valueOf(maxConnections) + "</MaxConnections>\n");
 	xml += "   <!-- The maximum number of authentication attemtps for each connection -->\n";
 	xml += ("   <MaxAuthentications>" + String.valueOf(maxAuthentications) + "</MaxAuthentications>\n");
+	xml += "   <!-- The zlib compression level (1-9) used when compression is negotiated -->\n";
+	xml += ("   <CompressionLevel>" + String.valueOf(compressionLevel) + "</CompressionLevel>\n");
+	xml += "   <!-- The number of threads executing SFTP requests for all sessions (0 to disable) -->\n";
+	xml += ("   <SftpWorkerThreads>" + String.valueOf(sftpWorkerThreads) + "</SftpWorkerThreads>\n");
+	xml += "   <!-- The number of SFTP requests each session may execute at once -->\n";
+	xml += ("   <SftpMaxSessionRequests>" + String.valueOf(sftpMaxSessionRequests) + "</SftpMaxSessionRequests>\n");
+	xml += "   <!-- The number of selector threads serving all connections (0 for a thread per connection) -->\n";
+	xml += ("   <SelectorThreads>" + String.valueOf(selectorThreads) + "</SelectorThreads>\n");
+	xml += "   <!-- The number of threads processing received packets when selector threads are used -->\n";
+	xml += ("   <TransportWorkerThreads>" + String.valueOf(transportWorkerThreads) + "</TransportWorkerThreads>\n");
+	xml += "   <!-- Run the server's worker threads as virtual threads if the JVM supports them -->\n";
+	xml += ("   <VirtualThreads>" + String.valueOf(virtualThreads) + "</VirtualThreads>\n");
 	xml += "   <!-- Bind to the following address to listen for connections -->\n";
 	xml += ("   <ListenAddress>" + listenAddress + "</ListenAddress>\n");
 	xml += "   <!-- The port to listen to -->\n";
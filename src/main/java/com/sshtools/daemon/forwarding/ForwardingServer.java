@@ -31,6 +31,7 @@ import com.sshtools.j2ssh.connection.ConnectionProtocol;
 import com.sshtools.j2ssh.connection.GlobalRequestHandler;
 import com.sshtools.j2ssh.connection.GlobalRequestResponse;
 import com.sshtools.j2ssh.connection.InvalidChannelException;
+import com.sshtools.j2ssh.connection.SocketChannel;
 import com.sshtools.j2ssh.forwarding.ForwardingClient;
 import com.sshtools.j2ssh.forwarding.ForwardingConfiguration;
 import com.sshtools.j2ssh.forwarding.ForwardingConfigurationException;
@@ -103,7 +104,8 @@ public class ForwardingServer implements ChannelFactory, GlobalRequestHandler {
 	    // Get a configuration item for the forwarding
 	    ForwardingConfiguration config = getLocalForwardingByAddress(
 		    originatingHost, originatingPort);
-	    Socket socket = new Socket(hostToConnect, portToConnect);
+	    Socket socket = SocketChannel.connectSocket(hostToConnect,
+		    portToConnect);
 
 	    // Create the channel adding it to the active channels
 	    ForwardingSocketChannel channel = config
@@ -35,6 +35,8 @@ import org.apache.commons.logging.*;
 
 import java.io.*;
 
+import java.nio.ByteBuffer;
+
 /**
  * 
  * 
@@ -222,6 +224,31 @@ public abstract class NativeFileSystemProvider {
 	    UnsignedInteger32 len) throws InvalidHandleException, EOFException,
 	    IOException;
 
+    /**
+     * <p>
+     * Reads file data into a buffer. Providers that can read the data
+     * straight into a buffer should override this method; by default it
+     * wraps the result of <code>readFile</code>.
+     * </p>
+     * 
+     * @param handle
+     * @param offset
+     * @param len
+     * 
+     * @return a buffer whose remaining bytes are the data read
+     * 
+     * @throws InvalidHandleException
+     * @throws EOFException
+     * @throws IOException
+     * 
+     * @since 0.2.10
+     */
+    public ByteBuffer readFileBuffer(byte[] handle, UnsignedInteger64 offset,
+	    UnsignedInteger32 len) throws InvalidHandleException, EOFException,
+	    IOException {
+	return ByteBuffer.wrap(readFile(handle, offset, len));
+    }
+
     /**
      * 
      * 
@@ -58,6 +58,7 @@ import com.sshtools.j2ssh.sftp.SftpFile;
 public class ScpServer extends NativeProcessProvider implements Runnable {
     private static Log log = LogFactory.getLog(ScpServer.class);
     private static int BUFFER_SIZE = 16384;
+    private static final int PIPE_SIZE = 131072;
 
     // Private instance variables
     private InputStream in;
@@ -72,6 +73,7 @@ public class ScpServer extends NativeProcessProvider implements Runnable {
     private SshThread scpServerThread;
     private int verbosity = 0;
     private int exitCode;
+    private boolean exited;
     private boolean directory;
     private boolean recursive;
     private boolean from;
@@ -175,6 +177,21 @@ public class ScpServer extends NativeProcessProvider implements Runnable {
 	} catch (IOException ioe) {
 	}
 
+	// Close both ends of the pipes so that a blocked server is woken
+	try {
+	    if (out != null) {
+		out.close();
+	    }
+	} catch (IOException ioe) {
+	}
+
+	try {
+	    if (in != null) {
+		in.close();
+	    }
+	} catch (IOException ioe) {
+	}
+
 	try {
 	    if (pipeOut != null) {
 		pipeOut.close();
@@ -207,8 +224,8 @@ public class ScpServer extends NativeProcessProvider implements Runnable {
      * 
      * @see com.sshtools.daemon.platform.NativeProcessProvider#stillActive()
      */
-    public boolean stillActive() {
-	return false;
+    public synchronized boolean stillActive() {
+	return (scpServerThread != null) && !exited;
     }
 
     /*
@@ -230,7 +247,9 @@ public class ScpServer extends NativeProcessProvider implements Runnable {
     public int waitForExitCode() {
 	try {
 	    synchronized (this) {
-		wait();
+		while (!exited) {
+		    wait();
+		}
 	    }
 	} catch (InterruptedException ie) {
 	}
@@ -326,8 +345,9 @@ public class ScpServer extends NativeProcessProvider implements Runnable {
 	log.debug("Creating pipes");
 	pipeIn = new PipedOutputStream();
 	pipeErr = new PipedOutputStream();
-	pipeOut = new PipedInputStream();
-	in = new PipedInputStream(pipeIn);
+	// Size the data pipes to whole channel packets rather than 1KB
+	pipeOut = new PipedInputStream(PIPE_SIZE);
+	in = new PipedInputStream(pipeIn, PIPE_SIZE);
 	err = new PipedInputStream(pipeErr);
 	out = new PipedOutputStream(pipeOut);
     }
@@ -377,6 +397,16 @@ public class ScpServer extends NativeProcessProvider implements Runnable {
 	writeError(msg, false);
     }
 
+    private SftpFile[] readDirectory(byte[] handle)
+	    throws InvalidHandleException, IOException {
+	// The directory is read in batches until it reports EOF
+	try {
+	    return nfs.readDirectory(handle);
+	} catch (EOFException eof) {
+	    return null;
+	}
+    }
+
     /**
      * Send error message to client
      * 
@@ -449,18 +479,20 @@ public class ScpServer extends NativeProcessProvider implements Runnable {
 			try {
 			    handle = nfs.openDirectory(dir);
 
-			    SftpFile[] files = nfs.readDirectory(handle);
-
-			    for (int i = 0; i < files.length; i++) {
-				log.debug("Testing for match against "
-					+ files[i].getFilename());
+			    SftpFile[] files;
 
-				if (sp.matches(files[i].getFilename())) {
-				    log.debug("Matched");
-				    writeFileToRemote(dir + "/"
+			    while ((files = readDirectory(handle)) != null) {
+				for (int i = 0; i < files.length; i++) {
+				    log.debug("Testing for match against "
 					    + files[i].getFilename());
-				} else {
-				    log.debug("No match");
+
+				    if (sp.matches(files[i].getFilename())) {
+					log.debug("Matched");
+					writeFileToRemote(dir + "/"
+						+ files[i].getFilename());
+				    } else {
+					log.debug("No match");
+				    }
 				}
 			    }
 			} finally {
@@ -508,7 +540,8 @@ public class ScpServer extends NativeProcessProvider implements Runnable {
 	log.debug("ScpServer stopped, notify block on waitForExitCode().");
 
 	synchronized (this) {
-	    notify();
+	    exited = true;
+	    notifyAll();
 	}
     }
 
@@ -536,10 +569,12 @@ public class ScpServer extends NativeProcessProvider implements Runnable {
 	try {
 	    handle = nfs.openDirectory(path);
 
-	    SftpFile[] list = nfs.readDirectory(handle);
+	    SftpFile[] list;
 
-	    for (int i = 0; i < list.length; i++) {
-		writeFileToRemote(path + "/" + list[i].getFilename());
+	    while ((list = readDirectory(handle)) != null) {
+		for (int i = 0; i < list.length; i++) {
+		    writeFileToRemote(path + "/" + list[i].getFilename());
+		}
 	    }
 
 	    writeCommand("E");
@@ -28,6 +28,7 @@ package com.sshtools.daemon.session;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -128,25 +129,41 @@ public class SessionChannelServer extends IOChannel {
 	    subsystemInstance.stop();
 	}
 
-	// If we have a process monitor then get the exit code
-	// and send before we close the channel
-	if (processMonitor != null) {
-	    StartStopState state = processMonitor.getStartStopState();
+	// The channel is already closed so the process monitor can no longer
+	// send the exit code; it is not waited for as it needs the channel
+	// state that the closing thread holds
+    }
 
-	    try {
-		state.waitForState(StartStopState.STOPPED);
-	    } catch (InterruptedException ex) {
-		throw new IOException("The process monitor was interrupted");
-	    }
+    /**
+     * 
+     * 
+     * @throws IOException
+     */
+    protected void onChannelEOF() throws IOException {
+	if (subsystemInstance != null) {
+	    subsystemInstance.onSessionEOF();
+	}
+
+	// Pass the EOF on so that a process reading its input can finish
+	if ((processInstance != null) && (pty == null)) {
+	    processInstance.getOutputStream().close();
 	}
     }
 
     /**
+     * <p>
+     * Sends data from the subsystem straight to the channel rather than
+     * through the subsystem's input stream.
+     * </p>
      * 
+     * @param data
      * 
      * @throws IOException
+     * 
+     * @since 0.2.10
      */
-    protected void onChannelEOF() throws IOException {
+    public void sendSubsystemData(ByteBuffer[] data) throws IOException {
+	sendChannelData(data);
     }
 
     /**
@@ -383,7 +400,7 @@ public class SessionChannelServer extends IOChannel {
      * @return
      */
     protected int getMinimumWindowSpace() {
-	return 1024;
+	return 1048576;
     }
 
     /**
@@ -392,7 +409,8 @@ public class SessionChannelServer extends IOChannel {
      * @return
      */
     protected int getMaximumWindowSpace() {
-	return 32648;
+	// Allow a client to keep a pipeline of writes in flight
+	return 2097152;
     }
 
     /**
@@ -555,18 +573,20 @@ public class SessionChannelServer extends IOChannel {
 	}
     }
 
-    class ProcessMonitorThread extends Thread {
+    class ProcessMonitorThread extends SshThread {
 	private NativeProcessProvider process;
 	// private SubsystemServer subsystem;
 	private StartStopState state;
 
 	public ProcessMonitorThread(NativeProcessProvider process) {
+	    super("Process monitor", true);
 	    this.process = process;
 	    state = new StartStopState(StartStopState.STARTED);
 	    start();
 	}
 
 	public ProcessMonitorThread(SubsystemServer subsystem) {
+	    super("Process monitor", true);
 	    state = subsystem.getState();
 	}
 
@@ -28,17 +28,24 @@ package com.sshtools.daemon.sftp;
 import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.sshtools.daemon.configuration.ServerConfiguration;
 import com.sshtools.daemon.platform.InvalidHandleException;
 import com.sshtools.daemon.platform.NativeFileSystemProvider;
 import com.sshtools.daemon.platform.PermissionDeniedException;
 import com.sshtools.daemon.platform.UnsupportedFileOperationException;
-import com.sshtools.daemon.session.SessionChannelServer;
+import com.sshtools.daemon.subsystem.SubsystemRequestExecutor;
 import com.sshtools.daemon.subsystem.SubsystemServer;
 import com.sshtools.j2ssh.SshThread;
-import com.sshtools.j2ssh.connection.Channel;
-import com.sshtools.j2ssh.connection.ChannelEventListener;
+import com.sshtools.j2ssh.configuration.ConfigurationException;
+import com.sshtools.j2ssh.configuration.ConfigurationLoader;
 import com.sshtools.j2ssh.io.UnsignedInteger32;
+import com.sshtools.j2ssh.sftp.FileAttributes;
 import com.sshtools.j2ssh.sftp.SftpFile;
 import com.sshtools.j2ssh.sftp.SshFxpAttrs;
 import com.sshtools.j2ssh.sftp.SshFxpClose;
@@ -82,6 +89,28 @@ public class SftpSubsystemServer extends SubsystemServer {
     
     //private static Log log = LogFactory.getLog(SftpSubsystemServer.class);
     private NativeFileSystemProvider nfs;
+    private SubsystemRequestExecutor executor;
+
+    // The ordering key of requests that name a path rather than a handle,
+    // so that an OPEN, REMOVE or RENAME completes before the next one starts
+    private static final Object PATH_REQUESTS = new Object();
+
+    // Attributes of recently listed files, kept briefly for the STAT and
+    // LSTAT requests that clients tend to send straight after a listing
+    private static final long ATTRIBUTE_CACHE_TTL = 2000;
+    private static final int ATTRIBUTE_CACHE_SIZE = 4096;
+    private Map<String, String> directoryPaths = new ConcurrentHashMap<String, String>();
+    private Map<String, String> filePaths = new ConcurrentHashMap<String, String>();
+    private long cacheGeneration = 0;
+    private int pendingChanges = 0;
+    private Map<String, CachedAttributes> attributeCache = new LinkedHashMap<String, CachedAttributes>() {
+	private static final long serialVersionUID = 1L;
+
+	protected boolean removeEldestEntry(
+		Map.Entry<String, CachedAttributes> eldest) {
+	    return size() > ATTRIBUTE_CACHE_SIZE;
+	}
+    };
 
     /**
      * Creates a new SftpSubsystemServer object.
@@ -110,39 +139,155 @@ public class SftpSubsystemServer extends SubsystemServer {
 
     /**
      * 
+     */
+    public void onSessionEOF() {
+	try {
+	    session.close();
+	} catch (IOException ex) {
+	}
+    }
+
+    /**
      * 
-     * @param session
+     * 
+     * @param msg
      */
-    public void setSession(SessionChannelServer session) {
-	session.addEventListener(new ChannelEventListener() {
-	    public void onChannelOpen(Channel channel) {
+    protected void onMessageReceived(final SubsystemMessage msg) {
+	if ((executor == null)
+		|| (msg.getMessageType() == SshFxpInit.SSH_FXP_INIT)) {
+	    processMessage(msg);
+	} else {
+	    // Requests on the same handle keep their order, as do all requests
+	    // that name a path
+	    executor.execute(getOrderingKey(msg), new Runnable() {
+		public void run() {
+		    processMessage(msg);
+		}
+	    });
+	}
+    }
+
+    private Object getOrderingKey(SubsystemMessage msg) {
+	byte[] handle;
+
+	switch (msg.getMessageType()) {
+	case SshFxpRead.SSH_FXP_READ:
+	    handle = ((SshFxpRead) msg).getHandle();
+
+	    break;
+
+	case SshFxpWrite.SSH_FXP_WRITE:
+	    handle = ((SshFxpWrite) msg).getHandle();
+
+	    break;
+
+	case SshFxpReadDir.SSH_FXP_READDIR:
+	    handle = ((SshFxpReadDir) msg).getHandle();
+
+	    break;
+
+	case SshFxpClose.SSH_FXP_CLOSE:
+	    handle = ((SshFxpClose) msg).getHandle();
+
+	    break;
+
+	case SshFxpFStat.SSH_FXP_FSTAT:
+	    handle = ((SshFxpFStat) msg).getHandle();
+
+	    break;
+
+	case SshFxpFSetStat.SSH_FXP_FSETSTAT:
+	    handle = ((SshFxpFSetStat) msg).getHandle();
+
+	    break;
+
+	default:
+	    return PATH_REQUESTS;
+	}
+
+	return new String(handle, StandardCharsets.ISO_8859_1);
+    }
+
+    private void processMessage(SubsystemMessage msg) {
+	String[] changed = getChangedPaths(msg);
+
+	if (changed == null) {
+	    dispatchMessage(msg);
+	} else {
+	    // Anything that may change the file system invalidates the cached
+	    // attributes of the paths it names
+	    beginChange(changed);
+
+	    try {
+		dispatchMessage(msg);
+	    } finally {
+		endChange();
 	    }
+	}
+    }
 
-	    public void onChannelEOF(Channel channel) {
-		try {
-		    SftpSubsystemServer.this.session.close();
-		} catch (IOException ex) {
+    private String[] getChangedPaths(SubsystemMessage msg) {
+	try {
+	    switch (msg.getMessageType()) {
+	    case SshFxpOpen.SSH_FXP_OPEN:
+		// Only a file opened for writing can be changed
+		if ((((SshFxpOpen) msg).getPflags().intValue() & NativeFileSystemProvider.OPEN_WRITE) == 0) {
+		    return null;
 		}
-	    }
 
-	    public void onChannelClose(Channel channel) {
-	    }
+		return new String[] { checkDefaultPath(((SshFxpOpen) msg)
+			.getFilename()) };
 
-	    public void onDataReceived(Channel channel, byte[] data) {
-	    }
+	    case SshFxpWrite.SSH_FXP_WRITE:
+		return new String[] { getHandlePath(((SshFxpWrite) msg)
+			.getHandle()) };
+
+	    case SshFxpFSetStat.SSH_FXP_FSETSTAT:
+		return new String[] { getHandlePath(((SshFxpFSetStat) msg)
+			.getHandle()) };
+
+	    case SshFxpMkdir.SSH_FXP_MKDIR:
+		return new String[] { checkDefaultPath(((SshFxpMkdir) msg)
+			.getPath()) };
+
+	    case SshFxpRemove.SSH_FXP_REMOVE:
+		return new String[] { checkDefaultPath(((SshFxpRemove) msg)
+			.getFilename()) };
+
+	    case SshFxpRename.SSH_FXP_RENAME:
+		return new String[] {
+			checkDefaultPath(((SshFxpRename) msg).getOldPath()),
+			checkDefaultPath(((SshFxpRename) msg).getNewPath()) };
+
+	    case SshFxpRmdir.SSH_FXP_RMDIR:
+		return new String[] { checkDefaultPath(((SshFxpRmdir) msg)
+			.getPath()) };
+
+	    case SshFxpSetStat.SSH_FXP_SETSTAT:
+		return new String[] { checkDefaultPath(((SshFxpSetStat) msg)
+			.getPath()) };
 
-	    public void onDataSent(Channel channel, byte[] data) {
+	    case SshFxpSymlink.SSH_FXP_SYMLINK:
+		return new String[] { checkDefaultPath(((SshFxpSymlink) msg)
+			.getLinkPath()) };
+
+	    default:
+		return null;
 	    }
-	});
-	super.setSession(session);
+	} catch (IOException ex) {
+	    // A path we cannot resolve invalidates everything
+	    return new String[] { null };
+	}
     }
 
-    /**
-     * 
-     * 
-     * @param msg
-     */
-    protected void onMessageReceived(SubsystemMessage msg) {
+    private String getHandlePath(byte[] handle) {
+	String key = new String(handle, StandardCharsets.ISO_8859_1);
+	String path = filePaths.get(key);
+
+	return (path != null) ? path : directoryPaths.get(key);
+    }
+
+    private void dispatchMessage(SubsystemMessage msg) {
 	switch (msg.getMessageType()) {
 	case SshFxpInit.SSH_FXP_INIT: {
 	    onInitialize((SshFxpInit) msg);
@@ -458,9 +603,16 @@ public class SftpSubsystemServer extends SubsystemServer {
 	SubsystemMessage reply;
 
 	try {
-	    reply = new SshFxpHandle(msg.getId(), nfs.openFile(
-		    checkDefaultPath(msg.getFilename()), msg.getPflags(),
-		    msg.getAttributes()));
+	    String path = checkDefaultPath(msg.getFilename());
+	    byte[] handle = nfs.openFile(path, msg.getPflags(),
+		    msg.getAttributes());
+
+	    if ((msg.getPflags().intValue() & NativeFileSystemProvider.OPEN_WRITE) != 0) {
+		filePaths.put(new String(handle, StandardCharsets.ISO_8859_1),
+			path);
+	    }
+
+	    reply = new SshFxpHandle(msg.getId(), handle);
 	} catch (FileNotFoundException ioe) {
 	    reply = new SshFxpStatus(msg.getId(), new UnsignedInteger32(
 		    SshFxpStatus.STATUS_FX_NO_SUCH_FILE), ioe.getMessage(), "");
@@ -480,8 +632,8 @@ public class SftpSubsystemServer extends SubsystemServer {
 	SubsystemMessage reply;
 
 	try {
-	    reply = new SshFxpData(msg.getId(), nfs.readFile(msg.getHandle(),
-		    msg.getOffset(), msg.getLength()));
+	    reply = new SshFxpData(msg.getId(), nfs.readFileBuffer(
+		    msg.getHandle(), msg.getOffset(), msg.getLength()));
 	} catch (EOFException eof) {
 	    reply = new SshFxpStatus(msg.getId(), new UnsignedInteger32(
 		    SshFxpStatus.STATUS_FX_EOF), eof.getMessage(), "");
@@ -520,6 +672,10 @@ public class SftpSubsystemServer extends SubsystemServer {
 	SubsystemMessage reply;
 
 	try {
+	    String key = new String(msg.getHandle(),
+		    StandardCharsets.ISO_8859_1);
+	    directoryPaths.remove(key);
+	    filePaths.remove(key);
 	    nfs.closeFile(msg.getHandle());
 	    reply = new SshFxpStatus(msg.getId(), new UnsignedInteger32(
 		    SshFxpStatus.STATUS_FX_OK), "The operation completed", "");
@@ -556,8 +712,11 @@ public class SftpSubsystemServer extends SubsystemServer {
 
 	try {
 	    String path = checkDefaultPath(msg.getPath());
+	    FileAttributes attrs = getCachedAttributes(path);
 
-	    if (nfs.fileExists(path)) {
+	    if (attrs != null) {
+		reply = new SshFxpAttrs(msg.getId(), attrs);
+	    } else if (nfs.fileExists(path)) {
 		//SftpFile[] files = new SftpFile[1];
 		reply = new SshFxpAttrs(msg.getId(), nfs.getFileAttributes(
 		/* nfs.getCanonicalPath( */
@@ -582,12 +741,13 @@ public class SftpSubsystemServer extends SubsystemServer {
 	SubsystemMessage reply;
 
 	try {
+	    // Listings follow symbolic links so their attributes cannot answer
+	    // an LSTAT
 	    String path = checkDefaultPath(msg.getPath());
 
 	    if (nfs.fileExists(path)) {
 		//SftpFile[] files = new SftpFile[1];
-		reply = new SshFxpAttrs(msg.getId(), nfs.getFileAttributes(nfs
-			.getCanonicalPath(msg.getPath())));
+		reply = new SshFxpAttrs(msg.getId(), nfs.getFileAttributes(path));
 	    } else {
 		reply = new SshFxpStatus(msg.getId(), new UnsignedInteger32(
 			SshFxpStatus.STATUS_FX_NO_SUCH_FILE), path
@@ -615,7 +775,15 @@ public class SftpSubsystemServer extends SubsystemServer {
 	     * SftpFile(files[i].getName(),
 	     * nfs.getFileAttributes(files[i].getCanonicalPath())); }
 	     */
+	    long generation = getCacheGeneration();
 	    SftpFile[] sftpfiles = nfs.readDirectory(msg.getHandle());
+	    String path = directoryPaths.get(new String(msg.getHandle(),
+		    StandardCharsets.ISO_8859_1));
+
+	    if ((path != null) && (generation >= 0)) {
+		cacheAttributes(path, sftpfiles, generation);
+	    }
+
 	    reply = new SshFxpName(msg.getId(), sftpfiles);
 	} catch (FileNotFoundException ioe) {
 	    reply = new SshFxpStatus(msg.getId(), new UnsignedInteger32(
@@ -642,7 +810,10 @@ public class SftpSubsystemServer extends SubsystemServer {
 	     * String path = VirtualFileSystem.translateVFSPath(msg.getPath());
 	     */
 	    String path = checkDefaultPath(msg.getPath());
-	    reply = new SshFxpHandle(msg.getId(), nfs.openDirectory(path));
+	    byte[] handle = nfs.openDirectory(path);
+	    directoryPaths.put(new String(handle, StandardCharsets.ISO_8859_1),
+		    path);
+	    reply = new SshFxpHandle(msg.getId(), handle);
 	} catch (FileNotFoundException ioe) {
 	    reply = new SshFxpStatus(msg.getId(), new UnsignedInteger32(
 		    SshFxpStatus.STATUS_FX_NO_SUCH_FILE), ioe.getMessage(), "");
@@ -725,6 +896,136 @@ public class SftpSubsystemServer extends SubsystemServer {
 	sendMessage(reply);
     }
 
+    private long getCacheGeneration() {
+	synchronized (attributeCache) {
+	    // A listing read whilst the file system is changing may be stale
+	    return (pendingChanges > 0) ? -1 : cacheGeneration;
+	}
+    }
+
+    private void cacheAttributes(String dir, SftpFile[] files, long generation) {
+	long expires = System.currentTimeMillis() + ATTRIBUTE_CACHE_TTL;
+	String prefix;
+
+	try {
+	    prefix = nfs.getRealPath(dir);
+	} catch (FileNotFoundException ex) {
+	    return;
+	}
+
+	prefix = prefix.endsWith("/") ? prefix : (prefix + "/");
+
+	synchronized (attributeCache) {
+	    // Something changed since the listing was read
+	    if (generation != cacheGeneration) {
+		return;
+	    }
+
+	    for (int i = 0; i < files.length; i++) {
+		String name = files[i].getFilename();
+
+		if (!name.equals(".") && !name.equals("..")) {
+		    attributeCache.put(prefix + name, new CachedAttributes(
+			    files[i].getAttributes(), expires));
+		}
+	    }
+	}
+    }
+
+    private FileAttributes getCachedAttributes(String path) {
+	String key = getCacheKey(path);
+
+	if (key == null) {
+	    return null;
+	}
+
+	synchronized (attributeCache) {
+	    CachedAttributes cached = attributeCache.get(key);
+
+	    if (cached == null) {
+		return null;
+	    }
+
+	    if (cached.expires < System.currentTimeMillis()) {
+		attributeCache.remove(key);
+
+		return null;
+	    }
+
+	    return cached.attrs;
+	}
+    }
+
+    private void beginChange(String[] paths) {
+	String[] keys = new String[paths.length];
+
+	for (int i = 0; i < paths.length; i++) {
+	    keys[i] = (paths[i] == null) ? null : getCacheKey(paths[i]);
+	}
+
+	synchronized (attributeCache) {
+	    cacheGeneration++;
+	    pendingChanges++;
+
+	    for (int i = 0; i < keys.length; i++) {
+		if (keys[i] == null) {
+		    attributeCache.clear();
+
+		    return;
+		}
+
+		// Also anything below a directory that is removed or renamed
+		String children = keys[i] + "/";
+
+		for (Iterator<String> it = attributeCache.keySet().iterator(); it
+			.hasNext();) {
+		    String key = it.next();
+
+		    if (key.equals(keys[i]) || key.startsWith(children)) {
+			it.remove();
+		    }
+		}
+	    }
+	}
+    }
+
+    private void endChange() {
+	synchronized (attributeCache) {
+	    pendingChanges--;
+	}
+    }
+
+    /**
+     * Cached attributes are keyed by the real path of the parent directory
+     * and the name of the file, so that different ways of naming the same
+     * directory share entries.
+     */
+    private String getCacheKey(String path) {
+	int end = path.length();
+
+	while ((end > 1) && (path.charAt(end - 1) == '/')) {
+	    end--;
+	}
+
+	path = path.substring(0, end);
+
+	int idx = path.lastIndexOf('/');
+	String name = path.substring(idx + 1);
+
+	if ((name.length() == 0) || name.equals(".") || name.equals("..")) {
+	    return null;
+	}
+
+	try {
+	    String dir = nfs.getRealPath((idx < 0) ? "." : ((idx == 0) ? "/"
+		    : path.substring(0, idx)));
+
+	    return dir + (dir.endsWith("/") ? "" : "/") + name;
+	} catch (FileNotFoundException ex) {
+	    return null;
+	}
+    }
+
     private String checkDefaultPath(String path) throws IOException {
 	// Use the users home directory if no path is supplied
 	if (path.equals("")) {
@@ -738,6 +1039,20 @@ public class SftpSubsystemServer extends SubsystemServer {
 	// Get the native file system
 	nfs = NativeFileSystemProvider.getInstance();
 
+	// Execute further requests on the shared worker pool if it is enabled
+	try {
+	    ServerConfiguration config = (ServerConfiguration) ConfigurationLoader
+		    .getConfiguration(ServerConfiguration.class);
+
+	    if ((executor == null) && (config.getSftpWorkerThreads() > 0)
+		    && SshThread.hasCurrentThread()) {
+		executor = new SubsystemRequestExecutor(SshThread
+			.getCurrentThread(), config.getSftpWorkerThreads(),
+			config.getSftpMaxSessionRequests());
+	    }
+	} catch (ConfigurationException ex) {
+	}
+
 	// Determine the users home directory
 	if (msg.getVersion().intValue() == VERSION_3) {
 	    SshFxpVersion reply = new SshFxpVersion(new UnsignedInteger32(
@@ -747,4 +1062,14 @@ public class SftpSubsystemServer extends SubsystemServer {
 	    // Wrong version
 	}
     }
+
+    private static class CachedAttributes {
+	final FileAttributes attrs;
+	final long expires;
+
+	CachedAttributes(FileAttributes attrs, long expires) {
+	    this.attrs = attrs;
+	    this.expires = expires;
+	}
+    }
 }
@@ -0,0 +1,175 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.daemon.subsystem;
+
+import com.sshtools.j2ssh.SshThread;
+
+import org.apache.commons.logging.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Executes the requests of one subsystem session on a pool of worker
+ * threads that is shared by all sessions. At most a fixed number of the
+ * session's requests run at once; the rest wait here without holding a
+ * worker. Requests given the same ordering key, such as a file handle, run
+ * one after the other in the order they were submitted, while requests with
+ * different keys or none may complete in any order.
+ * </p>
+ * 
+ * <p>
+ * The workers take on the identity of the session thread that created the
+ * executor so that <code>SshThread.getCurrentThreadUser</code> continues to
+ * work for the requests they execute.
+ * </p>
+ * 
+ * @author $author$
+ * @version $Revision: 1.1 $
+ * 
+ * @since 0.2.10
+ */
+public class SubsystemRequestExecutor {
+    private static Log log = LogFactory.getLog(SubsystemRequestExecutor.class);
+    private static ThreadPoolExecutor pool;
+    private SshThread context;
+    private int maxRequests;
+    private int running = 0;
+    private LinkedList<Runnable> ready = new LinkedList<Runnable>();
+    private Map<Object, LinkedList<Runnable>> ordered = new HashMap<Object, LinkedList<Runnable>>();
+
+    /**
+     * Creates a new SubsystemRequestExecutor object.
+     * 
+     * @param context
+     *            the session thread whose identity the requests run with
+     * @param workerThreads
+     *            the size of the shared pool, used when it is first created
+     * @param maxRequests
+     *            the number of this session's requests that may run at once
+     */
+    public SubsystemRequestExecutor(SshThread context, int workerThreads,
+	    int maxRequests) {
+	this.context = context;
+	this.maxRequests = Math.max(1, maxRequests);
+	getPool(workerThreads);
+    }
+
+    private static synchronized ExecutorService getPool(int workerThreads) {
+	if (pool == null) {
+	    pool = new ThreadPoolExecutor(workerThreads, workerThreads, 60L,
+		    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+		    new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+			    return new SshThread(r, "SubsystemWorker", true);
+			}
+		    });
+	    pool.allowCoreThreadTimeOut(true);
+	    log.info("Started " + workerThreads + " subsystem worker threads");
+	}
+
+	return pool;
+    }
+
+    /**
+     * Submits a request for execution.
+     * 
+     * @param key
+     *            the ordering key of the request or <code>null</code> if it
+     *            may run independently of all others
+     * @param request
+     */
+    public synchronized void execute(Object key, Runnable request) {
+	if (key != null) {
+	    LinkedList<Runnable> queue = ordered.get(key);
+
+	    if (queue != null) {
+		// A request with this key is still pending so wait behind it
+		queue.addLast(request);
+
+		return;
+	    }
+
+	    ordered.put(key, new LinkedList<Runnable>());
+	}
+
+	ready.addLast(new Request(key, request));
+	schedule();
+    }
+
+    private synchronized void completed(Object key) {
+	running--;
+
+	if (key != null) {
+	    LinkedList<Runnable> queue = ordered.get(key);
+	    Runnable next = queue.poll();
+
+	    if (next == null) {
+		ordered.remove(key);
+	    } else {
+		// The next request for the key goes ahead of unrelated ones
+		ready.addFirst(new Request(key, next));
+	    }
+	}
+
+	schedule();
+    }
+
+    private void schedule() {
+	while ((running < maxRequests) && !ready.isEmpty()) {
+	    running++;
+	    pool.execute(ready.removeFirst());
+	}
+    }
+
+    class Request implements Runnable {
+	Object key;
+	Runnable request;
+
+	Request(Object key, Runnable request) {
+	    this.key = key;
+	    this.request = request;
+	}
+
+	public void run() {
+	    try {
+		SshThread.getCurrentThread().inheritContext(context);
+		request.run();
+	    } catch (Throwable t) {
+		log.error("Subsystem request failed", t);
+	    } finally {
+		completed(key);
+	    }
+	}
+    }
+}
@@ -28,6 +28,7 @@ package com.sshtools.daemon.subsystem;
 import com.sshtools.daemon.session.*;
 
 import com.sshtools.j2ssh.*;
+import com.sshtools.j2ssh.io.ByteArrayWriter;
 import com.sshtools.j2ssh.subsystem.*;
 import com.sshtools.j2ssh.transport.*;
 import com.sshtools.j2ssh.util.*;
@@ -36,6 +37,8 @@ import org.apache.commons.logging.*;
 
 import java.io.*;
 
+import java.nio.ByteBuffer;
+
 /**
  * 
  * 
@@ -115,8 +118,8 @@ public abstract class SubsystemServer implements Runnable {
  *
  */
     public void start() {
-	if (Thread.currentThread() instanceof SshThread) {
-	    thread = ((SshThread) Thread.currentThread()).cloneThread(this,
+	if (SshThread.hasCurrentThread()) {
+	    thread = SshThread.getCurrentThread().cloneThread(this,
 		    "SubsystemServer");
 	    thread.start();
 	} else {
@@ -166,6 +169,39 @@ public abstract class SubsystemServer implements Runnable {
      * @param msg
      */
     protected void sendMessage(SubsystemMessage msg) {
-	outgoing.addMessage(msg);
+	if (session == null) {
+	    outgoing.addMessage(msg);
+
+	    return;
+	}
+
+	// Write the message straight to the channel so that bulk data is only
+	// copied into the outgoing packet; the channel keeps each message whole
+	try {
+	    ByteBuffer[] data = msg.toByteBuffers();
+	    ByteBuffer[] framed = new ByteBuffer[data.length + 1];
+	    int len = 0;
+
+	    for (int i = 0; i < data.length; i++) {
+		len += data[i].remaining();
+		framed[i + 1] = data[i];
+	    }
+
+	    framed[0] = ByteBuffer.wrap(ByteArrayWriter.encodeInt(len));
+	    session.sendSubsystemData(framed);
+	} catch (IOException ex) {
+	    log.debug("Failed to send " + msg.getMessageName()
+		    + " subsystem message: " + ex.getMessage());
+	}
+    }
+
+    /**
+     * <p>
+     * Called when the client has sent EOF on the session channel.
+     * </p>
+     * 
+     * @since 0.2.10
+     */
+    public void onSessionEOF() {
     }
 }
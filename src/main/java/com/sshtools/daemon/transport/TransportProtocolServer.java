@@ -438,6 +438,15 @@ public class TransportProtocolServer extends TransportProtocolCommon {
 	algorithmsIn.setHmac(hmac);
     }
 
+    /**
+     * 
+     * 
+     * @return
+     */
+    protected int getCompressionLevel() {
+	return config.getCompressionLevel();
+    }
+
     private void onMsgServiceRequest(SshMsgServiceRequest msg)
 	    throws IOException {
 	if (acceptServices.containsKey(msg.getServiceName())) {
@@ -0,0 +1,328 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.daemon.vfs;
+
+import com.sshtools.daemon.platform.NativeAuthenticationProvider;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * The VFS mounts of one revision of the platform configuration, compiled
+ * into prefix tries over the path segments of both the mount points and the
+ * native paths they refer to. The table also holds the home directory of
+ * each user seen along with a cache of the paths translated for them. A new
+ * table is built whenever the configuration is reloaded.
+ * </p>
+ * 
+ * @author $author$
+ * @version $Revision: 1.1 $
+ * 
+ * @since 0.2.10
+ */
+class VFSMountTable {
+    private static final int PATH_CACHE_SIZE = 1024;
+    private int revision;
+    private VFSMount root;
+    private Node mounts = new Node();
+    private Node paths = new Node();
+    private Map<String, UserEntry> users = new ConcurrentHashMap<String, UserEntry>();
+
+    VFSMountTable(int revision, Map<String, VFSMount> vfsmounts, VFSMount root) {
+	this.revision = revision;
+	this.root = root;
+
+	for (VFSMount m : vfsmounts.values()) {
+	    mounts.add(m.getMount(), m);
+	    paths.add(m.getPath(), m);
+	}
+    }
+
+    int getRevision() {
+	return revision;
+    }
+
+    VFSMount getRoot() {
+	return root;
+    }
+
+    /**
+     * Finds the mount whose mount point is the longest prefix of a VFS path
+     */
+    Match findMount(String vfspath) {
+	return mounts.find(vfspath);
+    }
+
+    /**
+     * Finds the mount whose native path is the longest prefix of a canonical
+     * native path
+     */
+    Match findPath(String nfspath) {
+	return paths.find(nfspath);
+    }
+
+    boolean hasMountsBelow(String vfspath) {
+	Node node = mounts.get(vfspath);
+
+	return (node != null) && (node.children != null);
+    }
+
+    UserEntry getUser(String username) {
+	return users.get(username);
+    }
+
+    UserEntry addUser(String username, String vfshome) {
+	UserEntry user = new UserEntry(username, vfshome);
+	UserEntry existing = users.putIfAbsent(username, user);
+
+	return (existing != null) ? existing : user;
+    }
+
+    /**
+     * Determines whether a path is, or is below, a directory
+     */
+    static boolean isWithin(String path, String dir) {
+	if (!path.startsWith(dir)) {
+	    return false;
+	}
+
+	return (path.length() == dir.length()) || dir.endsWith("/")
+		|| (path.charAt(dir.length()) == '/');
+    }
+
+    /**
+     * Appends a path, which may or may not start with a separator, to a
+     * directory
+     */
+    static String join(String dir, String path) {
+	int start = 0;
+
+	while ((start < path.length()) && (path.charAt(start) == '/')) {
+	    start++;
+	}
+
+	if (start == path.length()) {
+	    return dir;
+	}
+
+	return dir + (dir.endsWith("/") ? "" : "/") + path.substring(start);
+    }
+
+    static class Match {
+	final VFSMount mount;
+	final int end;
+
+	Match(VFSMount mount, int end) {
+	    this.mount = mount;
+	    this.end = end;
+	}
+    }
+
+    static class Node {
+	Map<String, Node> children;
+	VFSMount mount;
+
+	void add(String path, VFSMount mount) {
+	    Node node = this;
+	    int pos = 0;
+
+	    while (pos < path.length()) {
+		int next = path.indexOf('/', pos);
+
+		if (next < 0) {
+		    next = path.length();
+		}
+
+		if (next > pos) {
+		    String segment = path.substring(pos, next);
+
+		    if (node.children == null) {
+			node.children = new HashMap<String, Node>();
+		    }
+
+		    Node child = node.children.get(segment);
+
+		    if (child == null) {
+			child = new Node();
+			node.children.put(segment, child);
+		    }
+
+		    node = child;
+		}
+
+		pos = next + 1;
+	    }
+
+	    node.mount = mount;
+	}
+
+	Node get(String path) {
+	    Node node = this;
+	    int pos = 0;
+
+	    while ((node != null) && (pos < path.length())) {
+		int next = path.indexOf('/', pos);
+
+		if (next < 0) {
+		    next = path.length();
+		}
+
+		if (next > pos) {
+		    node = (node.children == null) ? null : node.children
+			    .get(path.substring(pos, next));
+		}
+
+		pos = next + 1;
+	    }
+
+	    return node;
+	}
+
+	Match find(String path) {
+	    Node node = this;
+	    Match match = null;
+	    int pos = 0;
+
+	    while ((node.children != null) && (pos < path.length())) {
+		int next = path.indexOf('/', pos);
+
+		if (next < 0) {
+		    next = path.length();
+		}
+
+		if (next > pos) {
+		    node = node.children.get(path.substring(pos, next));
+
+		    if (node == null) {
+			break;
+		    }
+
+		    if (node.mount != null) {
+			match = new Match(node.mount, next);
+		    }
+		}
+
+		pos = next + 1;
+	    }
+
+	    return match;
+	}
+    }
+
+    /**
+     * The home directory of a user and the paths recently translated for them
+     */
+    static class UserEntry {
+	private String vfshome;
+	private String nfshome;
+	private VFSMount homeMount;
+	private Map<String, String> nativePaths = createPathCache();
+	private Map<String, String> vfsPaths = createPathCache();
+
+	UserEntry(String username, String vfshome) {
+	    this.vfshome = vfshome;
+
+	    try {
+		String home = NativeAuthenticationProvider.getInstance()
+			.getHomeDirectory(username);
+
+		if (home != null) {
+		    nfshome = new File(home.replace('\\', '/'))
+			    .getCanonicalPath().replace('\\', '/');
+		    homeMount = new VFSMount(vfshome, nfshome);
+		    homeMount.setPermissions(new VFSPermission(username, "rwx"));
+		}
+	    } catch (IOException ex) {
+		// The user has no native home directory
+		nfshome = null;
+		homeMount = null;
+	    }
+	}
+
+	String getVFSHome() {
+	    return vfshome;
+	}
+
+	String getNativeHome() {
+	    return nfshome;
+	}
+
+	VFSMount getHomeMount() {
+	    return homeMount;
+	}
+
+	String getNativePath(String vfspath) {
+	    synchronized (nativePaths) {
+		return nativePaths.get(vfspath);
+	    }
+	}
+
+	void putNativePath(String vfspath, String nfspath) {
+	    synchronized (nativePaths) {
+		nativePaths.put(vfspath, nfspath);
+	    }
+	}
+
+	String getVFSPath(String nfspath) {
+	    synchronized (vfsPaths) {
+		return vfsPaths.get(nfspath);
+	    }
+	}
+
+	void putVFSPath(String nfspath, String vfspath) {
+	    synchronized (vfsPaths) {
+		vfsPaths.put(nfspath, vfspath);
+	    }
+	}
+
+	void clear() {
+	    synchronized (nativePaths) {
+		nativePaths.clear();
+	    }
+
+	    synchronized (vfsPaths) {
+		vfsPaths.clear();
+	    }
+	}
+
+	private static Map<String, String> createPathCache() {
+	    return new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(
+			Map.Entry<String, String> eldest) {
+		    return size() > PATH_CACHE_SIZE;
+		}
+	    };
+	}
+    }
+}
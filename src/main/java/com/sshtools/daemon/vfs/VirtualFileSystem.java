@@ -27,7 +27,6 @@ package com.sshtools.daemon.vfs;
 
 import com.sshtools.daemon.configuration.PlatformConfiguration;
 import com.sshtools.daemon.platform.InvalidHandleException;
-import com.sshtools.daemon.platform.NativeAuthenticationProvider;
 import com.sshtools.daemon.platform.NativeFileSystemProvider;
 import com.sshtools.daemon.platform.PermissionDeniedException;
 import com.sshtools.daemon.platform.UnsupportedFileOperationException;
@@ -47,11 +46,30 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
-import java.util.HashMap;
+import java.math.BigInteger;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+
+import java.security.SecureRandom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -62,21 +80,29 @@ import java.util.Map;
  */
 public class VirtualFileSystem extends NativeFileSystemProvider {
     private static String USER_HOME = "/home/";
-    private static Map vfsmounts;
-    private static VFSMount vfsroot;
     private static Log log = LogFactory.getLog(VirtualFileSystem.class);
     private static VFSPermissionHandler permissionHandler = null;
 
-    static {
-        try {
-            vfsmounts = ((PlatformConfiguration) ConfigurationLoader.getConfiguration(PlatformConfiguration.class)).getVFSMounts();
-            vfsroot = ((PlatformConfiguration) ConfigurationLoader.getConfiguration(PlatformConfiguration.class)).getVFSRoot();
-        } catch (ConfigurationException ex) {
-            log.error("Failed to initialize the Virtual File System", ex);
-        }
-    }
+    // The mounts compiled for the current configuration revision
+    private static volatile VFSMountTable mountTable;
 
-    private Map openFiles = new HashMap();
+    /**
+     * The largest amount of data returned by a single read; larger requests
+     * receive a short read as the protocol allows
+     */
+    private static final int MAX_READ_LENGTH = 262144;
+
+    /**
+     * The approximate encoded size of the entries returned by a single
+     * directory read, so each reply fits in about one channel packet
+     */
+    private static final int MAX_DIRECTORY_READ = 32000;
+    private static final String PROCESS_USER = System.getProperty("user.name");
+    private static SecureRandom handleGenerator = new SecureRandom();
+
+    // Open files and directories keyed by the session that opened them, so
+    // a handle is only valid for that session
+    private Map<String, Object> openFiles = new ConcurrentHashMap<String, Object>();
 
     /**
  * Creates a new VirtualFileSystem object.
@@ -93,6 +119,9 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
     public static void setPermissionHandler(
         VFSPermissionHandler permissionHandler) {
         VirtualFileSystem.permissionHandler = permissionHandler;
+
+        // Home directories may now be different
+        mountTable = null;
     }
 
     private static String getVFSHomeDirectory(String username)
@@ -104,19 +133,77 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
         }
     }
 
-    private static String getNFSHomeDirectory() throws FileNotFoundException {
+    private static VFSMountTable getMountTable()
+        throws FileNotFoundException {
+        PlatformConfiguration platform;
+
         try {
-            if (Thread.currentThread() instanceof SshThread &&
-                    SshThread.hasUserContext()) {
-                NativeAuthenticationProvider nap = NativeAuthenticationProvider.getInstance();
+            platform = (PlatformConfiguration) ConfigurationLoader.getConfiguration(PlatformConfiguration.class);
+        } catch (ConfigurationException ex) {
+            throw new FileNotFoundException(
+                "No valid platform configuration available");
+        }
 
-                return nap.getHomeDirectory(SshThread.getCurrentThreadUser());
-            } else {
-                throw new FileNotFoundException("There is no user logged in");
+        VFSMountTable table = mountTable;
+
+        if ((table == null) ||
+                (table.getRevision() != platform.getRevision())) {
+            synchronized (VirtualFileSystem.class) {
+                table = mountTable;
+
+                if ((table == null) ||
+                        (table.getRevision() != platform.getRevision())) {
+                    table = new VFSMountTable(platform.getRevision(),
+                            platform.getVFSMounts(), platform.getVFSRoot());
+                    mountTable = table;
+                }
+            }
+        }
+
+        return table;
+    }
+
+    private static VFSMountTable.UserEntry getUser(VFSMountTable table) {
+        if (!SshThread.hasCurrentThread() || !SshThread.hasUserContext()) {
+            return null;
+        }
+
+        String username = SshThread.getCurrentThreadUser();
+        VFSMountTable.UserEntry user = table.getUser(username);
+
+        if (user == null) {
+            try {
+                user = table.addUser(username, getVFSHomeDirectory(username));
+            } catch (FileNotFoundException ex) {
+                return null;
+            }
+        }
+
+        return user;
+    }
+
+    private static void clearPathCache() throws FileNotFoundException {
+        VFSMountTable.UserEntry user = getUser(getMountTable());
+
+        if (user != null) {
+            user.clear();
+        }
+    }
+
+    private static String canonicalize(String path, String mount)
+        throws FileNotFoundException {
+        try {
+            String canonical = new File(path).getCanonicalPath().replace('\\',
+                    '/');
+
+            // Verify that the canonical path does not exit out of the mount
+            if (VFSMountTable.isWithin(canonical, mount)) {
+                return canonical;
             }
-        } catch (IOException e) {
-            throw new FileNotFoundException(e.getMessage());
+        } catch (IOException ex) {
         }
+
+        throw new FileNotFoundException(path + " could not be found");
     }
 
     /**
@@ -151,109 +238,83 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
             nfspath = nfspath.substring(2);
         }
 
-        //if (startsWithIgnoreCase(nfspath, nfshome)) {
-        try {
-            String nfshome = getNFSHomeDirectory().replace('\\', '/');
-            nfshome = translateCanonicalPath(nfshome, nfshome);
+        VFSMountTable table = getMountTable();
+        VFSMountTable.UserEntry user = getUser(table);
+        String vfspath = (user != null) ? user.getVFSPath(nfspath) : null;
 
-            String vfshome = getVFSHomeDirectory(SshThread.getCurrentThreadUser());
+        if (vfspath == null) {
+            vfspath = translateNFSPath(table, user, nfspath);
 
-            // First check for the userhome
-            log.debug("NFSPath=" + nfspath);
-            log.debug("NFSHome=" + nfshome);
-            nfspath = translateCanonicalPath(nfspath, nfshome);
+            if (user != null) {
+                user.putVFSPath(nfspath, vfspath);
+            }
+        }
 
-            int idx = nfspath.indexOf(nfshome);
+        return vfspath;
+    }
 
-            return vfshome + nfspath.substring(nfshome.length());
+    private static String translateNFSPath(VFSMountTable table,
+        VFSMountTable.UserEntry user, String nfspath)
+        throws FileNotFoundException {
+        String canonical;
 
-            //            StringBuffer buf = new StringBuffer(nfspath);
-            //            buf = buf.replace(idx, idx + nfshome.length(), vfshome);
-            //            return buf.toString(); /*nfspath.replaceFirst(nfshome, vfshome);*/
-            //}
-        } catch (FileNotFoundException ex) { /* Ignore as we will try other mounts */
+        try {
+            canonical = new File(nfspath).getCanonicalPath().replace('\\', '/');
+        } catch (IOException ex) {
+            throw new FileNotFoundException(nfspath + " could not be found");
         }
 
-        // Now lets translate from the available mounts
-        Iterator it = vfsmounts.entrySet().iterator();
-        Map.Entry entry;
-        String mount;
-        String path;
-        VFSMount m;
+        // First check for the userhome
+        if ((user != null) && (user.getNativeHome() != null) &&
+                VFSMountTable.isWithin(canonical, user.getNativeHome())) {
+            return VFSMountTable.join(user.getVFSHome(),
+                canonical.substring(user.getNativeHome().length()));
+        }
 
-        while (it.hasNext()) {
-            entry = (Map.Entry) it.next();
-            mount = (String) entry.getKey();
-            m = (VFSMount) entry.getValue();
-            path = m.getPath();
-            log.debug(m.getMount() + "=" + m.getPath());
+        // Now lets translate from the available mounts
+        VFSMountTable.Match match = table.findPath(canonical);
 
-            // if (startsWithIgnoreCase(nfspath, path)) {
-            try {
-                nfspath = translateCanonicalPath(nfspath, path);
+        if (match != null) {
+            return VFSMountTable.join(match.mount.getMount(),
+                canonical.substring(match.end));
+        }
 
-                int idx = nfspath.indexOf(path);
-                StringBuffer buf = new StringBuffer(nfspath);
-                buf = buf.replace(idx, idx + path.length(), mount);
+        VFSMount root = table.getRoot();
 
-                return buf.toString();
-            } catch (FileNotFoundException ex) {
-                /* Ingore as we will try other mounts */
-            }
+        if ((root != null) && VFSMountTable.isWithin(canonical, root.getPath())) {
+            String path = canonical.substring(root.getPath().length());
 
-            // }
+            return (path.startsWith("/") ? path : ("/" + path));
         }
 
-        // if (startsWithIgnoreCase(nfspath, vfsroot.getPath())) {
-        log.debug("VFSRoot=" + vfsroot.getPath());
-        nfspath = translateCanonicalPath(nfspath, vfsroot.getPath());
-        path = nfspath.substring(vfsroot.getPath().length()); //replaceFirst(vfsroot.getPath(), "");
-
-        return (path.startsWith("/") ? path : ("/" + path));
-
-        //  } else {
-        //      throw new FileNotFoundException(nfspath + " could not be found");
-        //  }
+        throw new FileNotFoundException(nfspath + " could not be found");
     }
 
     private static VFSMount getMount(String vfspath)
         throws FileNotFoundException, IOException {
-        String vfshome = getVFSHomeDirectory(SshThread.getCurrentThreadUser());
-        VFSMount m;
+        VFSMountTable table = getMountTable();
+        VFSMountTable.UserEntry user = getUser(table);
 
-        if (vfspath.startsWith("/")) {
-            if (vfspath.startsWith(vfshome)) {
-                m = new VFSMount(vfshome, getNFSHomeDirectory());
-                m.setPermissions(new VFSPermission(
-                        SshThread.getCurrentThreadUser(), "rwx"));
+        if (!vfspath.startsWith("/") ||
+                ((user != null) &&
+                VFSMountTable.isWithin(vfspath, user.getVFSHome()))) {
+            if ((user == null) || (user.getHomeMount() == null)) {
+                throw new FileNotFoundException("There is no user logged in");
+            }
 
-                return m;
-            } else {
-                Iterator it = vfsmounts.entrySet().iterator();
-                Map.Entry entry;
-                String mount;
+            return user.getHomeMount();
+        }
 
-                while (it.hasNext()) {
-                    entry = (Map.Entry) it.next();
-                    mount = (String) entry.getKey();
+        VFSMountTable.Match match = table.findMount(vfspath);
 
-                    if (vfspath.startsWith(mount)) {
-                        return (VFSMount) entry.getValue();
-                    }
-                }
+        if (match != null) {
+            return match.mount;
+        }
 
-                if (vfsroot != null) {
-                    return vfsroot;
-                } else {
-                    throw new FileNotFoundException("The path was not found");
-                }
-            }
+        if (table.getRoot() != null) {
+            return table.getRoot();
         } else {
-            m = new VFSMount(vfshome, getNFSHomeDirectory());
-            m.setPermissions(new VFSPermission(vfshome.substring(
-                        vfshome.lastIndexOf("/")), "rwx"));
-
-            return m;
+            throw new FileNotFoundException("The path was not found");
         }
     }
 
@@ -276,65 +337,66 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
         // Translate any backslashes for sanity
         vfspath = vfspath.replace('\\', '/').trim();
 
-        try {
-            if (!vfspath.startsWith("/")) {
-                // Work out the path using the current directory
-                String path = (((vfscwd == null) || vfscwd.trim().equals(""))
-                    ? getVFSHomeDirectory(SshThread.getCurrentThreadUser())
-                    : vfscwd);
-                vfspath = path + (path.endsWith("/") ? "" : "/") + vfspath;
-            }
+        VFSMountTable table = getMountTable();
+        VFSMountTable.UserEntry user = getUser(table);
 
-            String nfshome = getNFSHomeDirectory().replace('\\', '/');
-            String vfshome = getVFSHomeDirectory(SshThread.getCurrentThreadUser());
+        if (!vfspath.startsWith("/")) {
+            // Work out the path using the current directory
+            String path;
 
-            if (vfspath.startsWith(vfshome)) {
-                // Return the canonicalized system dependent path
-                if (vfspath.length() > vfshome.length()) {
-                    return translateCanonicalPath(nfshome +
-                        (nfshome.endsWith("/") ? "" : "/") +
-                        vfspath.substring(vfshome.length() + 1), nfshome);
-                } else {
-                    return translateCanonicalPath(nfshome, nfshome);
-                }
+            if ((vfscwd != null) && !vfscwd.trim().equals("")) {
+                path = vfscwd;
+            } else if (user != null) {
+                path = user.getVFSHome();
+            } else {
+                throw new FileNotFoundException(
+                    "Only fully qualified VFS paths can be translated outside of a user context");
             }
-        } catch (FileNotFoundException ex) {
-            // Ignore since we dont always need to be running as a user
+
+            vfspath = path + (path.endsWith("/") ? "" : "/") + vfspath;
         }
 
-        // The path does not refer to the absolute USER_HOME
-        // so we will look up using the platform.xml VFS mounts
-        Iterator it = vfsmounts.entrySet().iterator();
-        Map.Entry entry;
-        String mount;
-        String path;
-        VFSMount m;
-
-        while (it.hasNext()) {
-            entry = (Map.Entry) it.next();
-            mount = (String) entry.getKey();
-            m = (VFSMount) entry.getValue();
-            path = m.getPath();
-
-            if (vfspath.startsWith(mount)) {
-                // Lets translate the path, making sure we do not move outside
-                // vfs with ..
-                String str = path + vfspath.substring(mount.length());
-
-                // vfspath.replaceFirst(mount,
-                //        path)
-                return translateCanonicalPath(str, path);
+        String nfspath = (user != null) ? user.getNativePath(vfspath) : null;
+
+        if (nfspath == null) {
+            nfspath = translateVFSPath(table, user, vfspath);
+
+            if (user != null) {
+                user.putNativePath(vfspath, nfspath);
             }
         }
 
+        return nfspath;
+    }
+
+    private static String translateVFSPath(VFSMountTable table,
+        VFSMountTable.UserEntry user, String vfspath)
+        throws FileNotFoundException {
+        // Paths below the users home directory take precedence
+        if ((user != null) && (user.getNativeHome() != null) &&
+                VFSMountTable.isWithin(vfspath, user.getVFSHome())) {
+            return canonicalize(VFSMountTable.join(user.getNativeHome(),
+                    vfspath.substring(user.getVFSHome().length())),
+                user.getNativeHome());
+        }
+
+        // Then the platform.xml VFS mounts, making sure we do not move
+        // outside of the mount with ..
+        VFSMountTable.Match match = table.findMount(vfspath);
+
+        if (match != null) {
+            return canonicalize(VFSMountTable.join(match.mount.getPath(),
+                    vfspath.substring(match.end)), match.mount.getPath());
+        }
+
         // If we reached here then the VFS path did not refer to an optional mount
         // or the users home directory, so lets attempt to use the VFS root is there
         // is one defined
-        if (vfsroot != null) {
-            path = vfsroot.getPath() +
-                (vfsroot.getPath().endsWith("/") ? vfspath.substring(1) : vfspath);
+        VFSMount root = table.getRoot();
 
-            return translateCanonicalPath(path, vfsroot.getPath());
+        if (root != null) {
+            return canonicalize(VFSMountTable.join(root.getPath(), vfspath),
+                root.getPath());
         } else {
             throw new FileNotFoundException("The file could not be found");
         }
@@ -444,7 +506,7 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
  */
     public FileAttributes getFileAttributes(byte[] handle)
         throws IOException, InvalidHandleException {
-        String shandle = new String(handle);
+        String shandle = getHandleKey(handle);
 
         if (openFiles.containsKey(shandle)) {
             Object obj = openFiles.get(shandle);
@@ -569,9 +631,9 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
 
         if (f.exists()) {
             if (f.isDirectory()) {
-                openFiles.put(f.toString(), new OpenDirectory(realPath, path, f));
-
-                return f.toString().getBytes("US-ASCII");
+                // Directories opened more than once each get their own handle
+                return createHandle("dir:",
+                    new OpenDirectory(realPath, path, f));
             } else {
                 throw new IOException(translateNFSPath(path) +
                     " is not a directory");
@@ -595,47 +657,156 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
  */
     public SftpFile[] readDirectory(byte[] handle)
         throws InvalidHandleException, EOFException, IOException {
-        String shandle = new String(handle);
+        Object obj = openFiles.get(getHandleKey(handle));
 
-        if (openFiles.containsKey(shandle)) {
-            Object obj = openFiles.get(shandle);
+        if (obj == null) {
+            throw new InvalidHandleException("The handle is invalid");
+        }
 
-            if (obj instanceof OpenDirectory) {
-                OpenDirectory dir = (OpenDirectory) obj;
-                int pos = dir.getPosition();
-                File[] children = dir.getChildren();
+        if (!(obj instanceof OpenDirectory)) {
+            throw new InvalidHandleException("Handle is not an open directory");
+        }
+
+        OpenDirectory dir = (OpenDirectory) obj;
 
-                if (children == null) {
+        synchronized (dir) {
+            if (dir.children == null) {
+                // Entries are read from the stream as the client asks for
+                // them rather than listing the whole directory up front
+                try {
+                    dir.stream = Files.newDirectoryStream(dir.f.toPath());
+                } catch (IOException ex) {
                     throw new IOException("Permission denined.");
                 }
 
-                int count = ((children.length - pos) < 100)
-                    ? (children.length - pos) : 100;
+                dir.children = dir.stream.iterator();
+                dir.permissions = getVFSPermission(dir.f.getAbsolutePath());
+                dir.mounts = hasMountsBelow(dir.realPath);
+            }
+
+            List<SftpFile> files = new ArrayList<SftpFile>();
+            int size = 0;
 
-                if (count > 0) {
-                    SftpFile[] files = new SftpFile[count];
+            while (size < MAX_DIRECTORY_READ) {
+                Path child = dir.pending;
+                dir.pending = null;
 
-                    for (int i = 0; i < files.length; i++) {
-                        File f = children[pos + i];
-                        String absolutePath = dir.realPath + "/" + f.getName();
-                        SftpFile sftpfile = new SftpFile(f.getName(),
-                                getFileAttributes(absolutePath));
-                        files[i] = sftpfile;
+                if (child == null) {
+                    if (!dir.children.hasNext()) {
+                        break;
                     }
 
-                    dir.readpos = pos + files.length;
+                    child = dir.children.next();
+                }
 
-                    return files;
-                } else {
-                    throw new EOFException("There are no more files");
+                String name = child.getFileName().toString();
+
+                // Estimate the encoded size of the name, long name and
+                // attributes, keeping the entry for the next read if full
+                int entry = 96 + (name.length() * 2);
+
+                if (!files.isEmpty() && ((size + entry) > MAX_DIRECTORY_READ)) {
+                    dir.pending = child;
+
+                    break;
                 }
-            } else {
-                throw new InvalidHandleException(
-                    "Handle is not an open directory");
+
+                FileAttributes attrs;
+
+                try {
+                    if (dir.mounts) {
+                        attrs = getFileAttributes(dir.realPath + "/" + name);
+                    } else {
+                        attrs = getFileAttributes(child, dir.permissions);
+                    }
+                } catch (FileNotFoundException ex) {
+                    // Removed since the directory was read
+                    continue;
+                }
+
+                files.add(new SftpFile(name, attrs));
+                size += entry;
+            }
+
+            if (files.isEmpty()) {
+                dir.close();
+                throw new EOFException("There are no more files");
             }
+
+            return files.toArray(new SftpFile[files.size()]);
+        }
+    }
+
+    private static boolean hasMountsBelow(String vfspath)
+        throws FileNotFoundException {
+        return getMountTable().hasMountsBelow(vfspath);
+    }
+
+    private FileAttributes getFileAttributes(Path path,
+        VFSPermission permissions) throws IOException {
+        if (permissions == null) {
+            throw new IOException("No default permissions set");
+        }
+
+        // Read all of the attributes at once rather than a call per attribute
+        BasicFileAttributes basic;
+
+        try {
+            try {
+                basic = Files.readAttributes(path, PosixFileAttributes.class);
+            } catch (UnsupportedOperationException ex) {
+                basic = Files.readAttributes(path, BasicFileAttributes.class);
+            }
+        } catch (NoSuchFileException ex) {
+            // A dangling link is listed as the link itself
+            try {
+                basic = Files.readAttributes(path, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException ex2) {
+                throw new FileNotFoundException(path + " doesn't exist");
+            }
+        }
+
+        boolean canRead;
+        boolean canWrite;
+
+        // The owner bits answer for files owned by the server process, other
+        // files (and root, which ignores them) need an access check
+        if ((basic instanceof PosixFileAttributes) &&
+                !PROCESS_USER.equals("root") &&
+                ((PosixFileAttributes) basic).owner().getName().equals(PROCESS_USER)) {
+            Set<PosixFilePermission> perms = ((PosixFileAttributes) basic).permissions();
+            canRead = perms.contains(PosixFilePermission.OWNER_READ);
+            canWrite = perms.contains(PosixFilePermission.OWNER_WRITE);
         } else {
-            throw new InvalidHandleException("The handle is invalid");
+            canRead = Files.isReadable(path);
+            canWrite = Files.isWritable(path);
         }
+
+        boolean canExec = true;
+
+        try {
+            if (System.getSecurityManager() != null) {
+                System.getSecurityManager().checkExec(path.toString());
+            }
+        } catch (SecurityException ex1) {
+            canExec = false;
+        }
+
+        FileAttributes attrs = new FileAttributes();
+        attrs.setSize(new UnsignedInteger64(String.valueOf(basic.size())));
+        attrs.setTimes(new UnsignedInteger32(basic.lastModifiedTime()
+                                                  .toMillis() / 1000),
+            new UnsignedInteger32(basic.lastModifiedTime().toMillis() / 1000));
+        attrs.setPermissions((((canRead && permissions.canRead()) ? "r" : "-") +
+            ((canWrite && permissions.canWrite()) ? "w" : "-") +
+            ((canExec && permissions.canExecute()) ? "x" : "-")));
+        attrs.setPermissions(new UnsignedInteger32(attrs.getPermissions()
+                                                        .longValue() |
+                (basic.isDirectory() ? FileAttributes.S_IFDIR
+                                     : FileAttributes.S_IFREG)));
+
+        return attrs;
     }
 
     /**
@@ -683,25 +854,26 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
             }
         }
 
-        // The file now exists so open the file according to the flags yb building the relevant
-        // flags for the RandomAccessFile class
-        String mode = "r" +
-            (((flags.intValue() & NativeFileSystemProvider.OPEN_WRITE) == NativeFileSystemProvider.OPEN_WRITE)
-            ? "ws" : "");
-        RandomAccessFile raf = new RandomAccessFile(f, mode);
+        // The file now exists so open the channel according to the flags. The
+        // data is not synced on every write; see closeFile and setFileAttributes
+        FileChannel channel;
+
+        if ((flags.intValue() & NativeFileSystemProvider.OPEN_WRITE) == NativeFileSystemProvider.OPEN_WRITE) {
+            channel = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        } else {
+            channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        }
 
         // Determine whether we need to truncate the file
         if (((flags.intValue() & NativeFileSystemProvider.OPEN_CREATE) == NativeFileSystemProvider.OPEN_CREATE) &&
                 ((flags.intValue() & NativeFileSystemProvider.OPEN_TRUNCATE) == NativeFileSystemProvider.OPEN_TRUNCATE)) {
             // Set the length to zero
-            raf.setLength(0);
+            channel.truncate(0);
         }
 
-        // Record the open file
-        openFiles.put(raf.toString(), new OpenFile(f, raf, flags));
-
-        // Return the handle
-        return raf.toString().getBytes("US-ASCII");
+        // Record the open file and return its handle
+        return createHandle("file:", new OpenFile(f, channel, flags));
     }
 
     /**
@@ -720,46 +892,80 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
     public byte[] readFile(byte[] handle, UnsignedInteger64 offset,
         UnsignedInteger32 len)
         throws InvalidHandleException, EOFException, IOException {
-        String shandle = new String(handle);
+        // The data is read straight into the returned array, which is only
+        // copied again when the read comes up short
+        ByteBuffer buf = readFileBuffer(handle, offset, len);
 
-        if (openFiles.containsKey(shandle)) {
-            Object obj = openFiles.get(shandle);
+        if (buf.remaining() == buf.capacity()) {
+            return buf.array();
+        }
 
-            if (obj instanceof OpenFile) {
-                OpenFile file = (OpenFile) obj;
+        return Arrays.copyOf(buf.array(), buf.remaining());
+    }
 
-                if ((file.getFlags().intValue() &
-                        NativeFileSystemProvider.OPEN_READ) == NativeFileSystemProvider.OPEN_READ) {
-                    byte[] buf = new byte[len.intValue()];
+    /**
+ * <p>
+ * Reads file data into a buffer which is sent as it is, so the data is
+ * copied only once more, into the outgoing packet. The file is read rather
+ * than mapped, since reading a mapping of a file that another process
+ * truncates fails outside of any request.
+ * </p>
+ *
+ * @param handle
+ * @param offset
+ * @param len
+ *
+ * @return
+ *
+ * @throws InvalidHandleException
+ * @throws EOFException
+ * @throws IOException
+ *
+ * @since 0.2.10
+ */
+    public ByteBuffer readFileBuffer(byte[] handle, UnsignedInteger64 offset,
+        UnsignedInteger32 len)
+        throws InvalidHandleException, EOFException, IOException {
+        Object obj = openFiles.get(getHandleKey(handle));
 
-                    if (file.getRandomAccessFile().getFilePointer() != offset.longValue()) {
-                        file.getRandomAccessFile().seek(offset.longValue());
-                    }
+        if (obj == null) {
+            throw new InvalidHandleException("The handle is invalid");
+        }
 
-                    int read = file.getRandomAccessFile().read(buf);
+        if (!(obj instanceof OpenFile)) {
+            throw new InvalidHandleException("Handle is not an open file");
+        }
 
-                    if (read >= 0) {
-                        if (read == buf.length) {
-                            return buf;
-                        } else {
-                            byte[] tmp = new byte[read];
-                            System.arraycopy(buf, 0, tmp, 0, read);
+        OpenFile file = (OpenFile) obj;
 
-                            return tmp;
-                        }
-                    } else {
-                        throw new EOFException("The file is EOF");
-                    }
-                } else {
-                    throw new InvalidHandleException(
-                        "The file handle was not opened for reading");
-                }
-            } else {
-                throw new InvalidHandleException("Handle is not an open file");
+        if ((file.getFlags().intValue() & NativeFileSystemProvider.OPEN_READ) != NativeFileSystemProvider.OPEN_READ) {
+            throw new InvalidHandleException(
+                "The file handle was not opened for reading");
+        }
+
+        int length = (int) Math.min(len.longValue(), MAX_READ_LENGTH);
+
+        if (length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+
+        // The buffer becomes part of the reply so it cannot be pooled
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        long position = offset.longValue();
+
+        while (buf.hasRemaining()) {
+            if (file.getChannel().read(buf, position + buf.position()) <= 0) {
+                break;
             }
-        } else {
-            throw new InvalidHandleException("The handle is invalid");
         }
+
+        if (buf.position() == 0) {
+            throw new EOFException("The file is EOF");
+        }
+
+        buf.flip();
+
+        return buf;
     }
 
     /**
@@ -776,37 +982,44 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
  */
     public void writeFile(byte[] handle, UnsignedInteger64 offset, byte[] data,
         int off, int len) throws InvalidHandleException, IOException {
-        String shandle = new String(handle);
+        Object obj = openFiles.get(getHandleKey(handle));
 
-        if (openFiles.containsKey(shandle)) {
-            Object obj = openFiles.get(shandle);
+        if (obj == null) {
+            throw new InvalidHandleException("The handle is invalid");
+        }
 
-            if (obj instanceof OpenFile) {
-                OpenFile file = (OpenFile) obj;
+        if (!(obj instanceof OpenFile)) {
+            throw new InvalidHandleException("Handle is not an open file");
+        }
 
-                if ((file.getFlags().intValue() &
-                        NativeFileSystemProvider.OPEN_WRITE) == NativeFileSystemProvider.OPEN_WRITE) {
-                    if ((file.getFlags().intValue() &
-                            NativeFileSystemProvider.OPEN_APPEND) == NativeFileSystemProvider.OPEN_APPEND) {
-                        // Force the data to be written to the end of the file by seeking to the end
-                        file.getRandomAccessFile().seek(file.getRandomAccessFile()
-                                                            .length());
-                    } else if (file.getRandomAccessFile().getFilePointer() != offset.longValue()) {
-                        // Move the file pointer if its not in the write place
-                        file.getRandomAccessFile().seek(offset.longValue());
-                    }
+        OpenFile file = (OpenFile) obj;
 
-                    file.getRandomAccessFile().write(data, off, len);
-                } else {
-                    throw new InvalidHandleException(
-                        "The file was not opened for writing");
+        if ((file.getFlags().intValue() & NativeFileSystemProvider.OPEN_WRITE) != NativeFileSystemProvider.OPEN_WRITE) {
+            throw new InvalidHandleException(
+                "The file was not opened for writing");
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(data, off, len);
+        FileChannel channel = file.getChannel();
+
+        if ((file.getFlags().intValue() & NativeFileSystemProvider.OPEN_APPEND) == NativeFileSystemProvider.OPEN_APPEND) {
+            // Force the data to be written to the end of the file
+            synchronized (file) {
+                long position = channel.size();
+
+                while (buf.hasRemaining()) {
+                    position += channel.write(buf, position);
                 }
-            } else {
-                throw new InvalidHandleException("Handle is not an open file");
             }
         } else {
-            throw new InvalidHandleException("The handle is invalid");
+            long position = offset.longValue();
+
+            while (buf.hasRemaining()) {
+                position += channel.write(buf, position);
+            }
         }
+
+        file.modified = true;
     }
 
     /**
@@ -819,16 +1032,27 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
  */
     public void closeFile(byte[] handle)
         throws InvalidHandleException, IOException {
-        String shandle = new String(handle);
+        String shandle = getHandleKey(handle);
 
         if (openFiles.containsKey(shandle)) {
             Object obj = openFiles.get(shandle);
 
             if (obj instanceof OpenDirectory) {
                 openFiles.remove(shandle);
+                ((OpenDirectory) obj).close();
             } else if (obj instanceof OpenFile) {
-                ((OpenFile) obj).getRandomAccessFile().close();
                 openFiles.remove(shandle);
+
+                OpenFile file = (OpenFile) obj;
+
+                try {
+                    // Make written data durable once, rather than per write
+                    if (file.modified) {
+                        file.getChannel().force(true);
+                    }
+                } finally {
+                    file.getChannel().close();
+                }
             } else {
                 throw new InvalidHandleException("Internal server error");
             }
@@ -850,6 +1074,9 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
         throws PermissionDeniedException, IOException, FileNotFoundException {
         path = VirtualFileSystem.translateVFSPath(path);
 
+        // Cached translations may resolve through the path being removed
+        clearPathCache();
+
         File f = new File(path);
 
         if (f.exists()) {
@@ -886,6 +1113,7 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
         throws PermissionDeniedException, FileNotFoundException, IOException {
         oldpath = VirtualFileSystem.translateVFSPath(oldpath);
         newpath = VirtualFileSystem.translateVFSPath(newpath);
+        clearPathCache();
 
         File f = new File(oldpath);
         verifyPermissions(SshThread.getCurrentThreadUser(), oldpath, "rw");
@@ -921,6 +1149,7 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
     public void removeDirectory(String path)
         throws PermissionDeniedException, FileNotFoundException, IOException {
         path = VirtualFileSystem.translateVFSPath(path);
+        clearPathCache();
 
         File f = new File(path);
         verifyPermissions(SshThread.getCurrentThreadUser(), path, "rw");
@@ -979,6 +1208,17 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
  */
     public void setFileAttributes(byte[] handle, FileAttributes attrs)
         throws PermissionDeniedException, IOException, InvalidHandleException {
+        Object obj = openFiles.get(getHandleKey(handle));
+
+        if (obj == null) {
+            throw new InvalidHandleException("The handle is invalid");
+        }
+
+        // The attributes cannot be set but a client may use this to ask
+        // for what it has written so far to be flushed to disk
+        if (obj instanceof OpenFile && ((OpenFile) obj).modified) {
+            ((OpenFile) obj).getChannel().force(true);
+        }
     }
 
     /**
@@ -1111,14 +1351,35 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
         }
     }
 
+    /**
+     * Records an open file or directory under a new random handle for the
+     * current session.
+     */
+    private byte[] createHandle(String type, Object open)
+        throws IOException {
+        byte[] handle = (type +
+            new BigInteger(128, handleGenerator).toString(16)).getBytes("US-ASCII");
+        openFiles.put(getHandleKey(handle), open);
+
+        return handle;
+    }
+
+    /**
+     * Returns the key of a handle in the open files of the current session.
+     */
+    private String getHandleKey(byte[] handle) {
+        return SshThread.getCurrentSessionId() + "/" + new String(handle);
+    }
+
     class OpenFile {
         File f;
-        RandomAccessFile raf;
+        FileChannel channel;
         UnsignedInteger32 flags;
+        volatile boolean modified = false;
 
-        public OpenFile(File f, RandomAccessFile raf, UnsignedInteger32 flags) {
+        public OpenFile(File f, FileChannel channel, UnsignedInteger32 flags) {
             this.f = f;
-            this.raf = raf;
+            this.channel = channel;
             this.flags = flags;
         }
 
@@ -1126,8 +1387,8 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
             return f;
         }
 
-        public RandomAccessFile getRandomAccessFile() {
-            return raf;
+        public FileChannel getChannel() {
+            return channel;
         }
 
         public UnsignedInteger32 getFlags() {
@@ -1137,8 +1398,11 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
 
     class OpenDirectory {
         File f;
-        File[] children;
-        int readpos = 0;
+        DirectoryStream<Path> stream;
+        Iterator<Path> children;
+        Path pending;
+        VFSPermission permissions;
+        boolean mounts;
         String path;
         String realPath;
 
@@ -1146,23 +1410,17 @@ public class VirtualFileSystem extends NativeFileSystemProvider {
             this.path = path;
             this.realPath = realPath;
             this.f = f;
-            this.children = f.listFiles();
         }
 
         public File getFile() {
             return f;
         }
 
-        public File[] getChildren() {
-            return children;
-        }
-
-        public int getPosition() {
-            return readpos;
-        }
-
-        public void setPosition(int readpos) {
-            this.readpos = readpos;
+        public synchronized void close() throws IOException {
+            if (stream != null) {
+                stream.close();
+                stream = null;
+            }
         }
     }
 }
@@ -32,6 +32,16 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import com.sshtools.j2ssh.configuration.ConfigurationLoader;
 import com.sshtools.j2ssh.connection.ChannelEventListener;
 import com.sshtools.j2ssh.session.SessionChannelClient;
@@ -48,6 +58,20 @@ import com.sshtools.j2ssh.session.SessionChannelClient;
  * @since 0.2.0
  */
 public final class ScpClient {
+  /**
+   * The number of bytes a single file is counted as on top of its length when
+   * balancing parallel transfers, roughly what one round trip is worth
+   */
+  private static final long FILE_OVERHEAD = 64 * 1024;
+  /** The largest weight of files grouped together for one channel */
+  private static final long MAXIMUM_UNIT_WEIGHT = 64 * FILE_OVERHEAD;
+  /**
+   * The window space offered by an SCP channel, large enough for the remote
+   * side to keep streaming file data whilst the window is adjusted
+   */
+  private static final int WINDOW_SPACE = 2097152;
+  /** The largest block of file data read and sent in one go */
+  private static final int MAXIMUM_BLOCK_SIZE = 1048576;
   private SshClient ssh;
   private File cwd;
   private boolean verbose;
@@ -298,6 +322,259 @@ public final class ScpClient {
     scp.close();
   }
 
+  /**
+   * <p>
+   * Uploads an array of local files onto the remote server using several
+   * SCP channels concurrently.
+   * </p>
+   *
+   * <p>
+   * The local files are grouped by directory into units of similar weight,
+   * and the units are handed out largest first to whichever channel is free.
+   * The remote directory tree is created before any files are sent, so
+   * that channels never race to create the same directory. Single files are
+   * never split between channels.
+   * </p>
+   *
+   * @param localFiles an array of local files; may be files or directories
+   * @param remoteFile the remote directory to place the files in
+   * @param recursive Copy the contents of directorys recursivly
+   * @param channels the maximum number of SCP channels to use
+   * @param progress receives the progress of all files together, may be
+   *        <code>null</code>
+   *
+   * @throws IOException if an IO error occurs during the operation
+   *
+   * @since 0.2.10
+   */
+  public void put(String[] localFiles, String remoteFile, boolean recursive,
+                  int channels, FileTransferProgress progress) throws
+      IOException {
+    if ( (remoteFile == null) || remoteFile.equals("")) {
+      remoteFile = ".";
+    }
+    List<String[]> dirs = new ArrayList<String[]>();
+    List<ScpUnit> units = new ArrayList<ScpUnit>();
+    ScpUnit unit = null;
+    for (int i = 0; i < localFiles.length; i++) {
+      File lf = new File(localFiles[i]);
+      if (!lf.isAbsolute()) {
+        lf = new File(cwd, localFiles[i]);
+      }
+      if (lf.isDirectory()) {
+        if (!recursive) {
+          throw new IOException(localFiles[i]
+                                + " is a directory, use recursive mode");
+        }
+        collectFiles(lf, new String[] {lf.getName()}, dirs, units);
+      }
+      else if (lf.isFile()) {
+        unit = addFile(units, unit, new String[0], lf);
+      }
+      else {
+        throw new IOException(localFiles[i]
+                              + " is not a regular file or directory");
+      }
+    }
+    // Heaviest units first so that the last units to finish are small ones
+    Collections.sort(units, new Comparator<ScpUnit>() {
+      public int compare(ScpUnit a, ScpUnit b) {
+        return Long.compare(b.weight, a.weight);
+      }
+    });
+    final String cmd = "scp -d -t " + (recursive ? "-r " : "")
+        + (verbose ? "-v " : "") + remoteFile;
+    if (dirs.size() > 0) {
+      // Each record is answered, so the whole tree is sent before reading
+      ScpChannel scp = openScpChannel(cmd);
+      try {
+        scp.waitForResponse();
+        int records = 0;
+        for (int i = 0; i < dirs.size(); i++) {
+          records += scp.changeDirectory(dirs.get(i), false);
+        }
+        records += scp.changeDirectory(new String[0], false);
+        for (int i = 0; i < records; i++) {
+          scp.waitForResponse();
+        }
+      }
+      finally {
+        scp.close();
+      }
+    }
+    final ScpTransfer transfer = new ScpTransfer(progress);
+    long total = 0;
+    for (int i = 0; i < units.size(); i++) {
+      transfer.units.add(units.get(i));
+      total += units.get(i).length;
+    }
+    if (progress != null) {
+      progress.started(total, remoteFile);
+    }
+    transfer.start(Math.min(Math.max(channels, 1), units.size()),
+                   new Runnable() {
+      public void run() {
+        ScpChannel scp = null;
+        try {
+          ScpUnit unit;
+          while ( (unit = transfer.nextUnit()) != null) {
+            if (scp == null) {
+              scp = openScpChannel(cmd);
+              scp.transfer = transfer;
+              scp.waitForResponse();
+            }
+            scp.changeDirectory(unit.path, true);
+            for (int i = 0; i < unit.files.size(); i++) {
+              scp.writeFileToRemote(unit.files.get(i), false);
+            }
+          }
+          if (scp != null) {
+            scp.changeDirectory(new String[0], true);
+          }
+        }
+        catch (IOException ex) {
+          transfer.failed(ex);
+        }
+        catch (Throwable t) {
+          // Anything else would otherwise only end this channel's thread
+          transfer.failed(new IOException("SCP transfer failed: " + t, t));
+        }
+        finally {
+          transfer.finished(scp);
+        }
+      }
+    });
+    transfer.waitForCompletion();
+    if (progress != null) {
+      progress.completed();
+    }
+  }
+
+  /**
+   * <p>
+   * Downloads an array of remote files to the local computer using several
+   * SCP channels concurrently.
+   * </p>
+   *
+   * <p>
+   * SCP cannot list a remote directory, so each remote path is copied over
+   * its own channel with no more than the given number open at once; a
+   * single large directory is copied by one channel. The sizes of the remote files are not known in advance and
+   * the total passed to the progress is -1.
+   * </p>
+   *
+   * @param localFile The local directory to place the files in
+   * @param remoteFiles The paths of the remote files
+   * @param recursive recursivly copy the contents of a directory
+   * @param channels the maximum number of SCP channels to use
+   * @param progress receives the progress of all files together, may be
+   *        <code>null</code>
+   *
+   * @throws IOException if an IO error occurs during the operation
+   *
+   * @since 0.2.10
+   */
+  public void get(String localFile, String[] remoteFiles, boolean recursive,
+                  int channels, FileTransferProgress progress) throws
+      IOException {
+    if ( (localFile == null) || localFile.equals("")) {
+      localFile = ".";
+    }
+    File lf = new File(localFile);
+    if (!lf.isAbsolute()) {
+      lf = new File(cwd, localFile);
+    }
+    if ( (remoteFiles.length > 1) && !lf.isDirectory()) {
+      throw new IOException(localFile + " must be a directory");
+    }
+    final File target = lf;
+    final String cmd = "scp -f " + (recursive ? "-r " : "")
+        + (verbose ? "-v " : "");
+    final ScpTransfer transfer = new ScpTransfer(progress);
+    Collections.addAll(transfer.paths, remoteFiles);
+    if (progress != null) {
+      progress.started( -1, localFile);
+    }
+    transfer.start(Math.min(Math.max(channels, 1), remoteFiles.length),
+                   new Runnable() {
+      public void run() {
+        ScpChannel scp = null;
+        try {
+          String path;
+          while ( (path = transfer.nextPath()) != null) {
+            scp = openScpChannel(cmd + path);
+            scp.transfer = transfer;
+            scp.readFromRemote(target);
+            scp.close();
+            scp = null;
+          }
+        }
+        catch (IOException ex) {
+          transfer.failed(ex);
+        }
+        catch (Throwable t) {
+          // Anything else would otherwise only end this channel's thread
+          transfer.failed(new IOException("SCP transfer failed: " + t, t));
+        }
+        finally {
+          transfer.finished(scp);
+        }
+      }
+    });
+    transfer.waitForCompletion();
+    if (progress != null) {
+      progress.completed();
+    }
+  }
+
+  private ScpChannel openScpChannel(String cmd) throws IOException {
+    ScpChannel scp = new ScpChannel(cmd);
+    scp.addEventListener(eventListener);
+    if (!ssh.openChannel(scp)) {
+      throw new IOException("Failed to open SCP channel");
+    }
+    return scp;
+  }
+
+  private void collectFiles(File dir, String[] path, List<String[]> dirs,
+                            List<ScpUnit> units) throws IOException {
+    String[] list = dir.list();
+    if (list == null) {
+      throw new IOException("Failed to list " + dir.getPath());
+    }
+    dirs.add(path);
+    ScpUnit unit = null;
+    for (int i = 0; i < list.length; i++) {
+      File f = new File(dir, list[i]);
+      if (f.isDirectory()) {
+        String[] child = new String[path.length + 1];
+        System.arraycopy(path, 0, child, 0, path.length);
+        child[path.length] = list[i];
+        collectFiles(f, child, dirs, units);
+      }
+      else if (f.isFile()) {
+        unit = addFile(units, unit, path, f);
+      }
+      else {
+        throw new IOException(f.getName() + " not valid for SCP");
+      }
+    }
+  }
+
+  private ScpUnit addFile(List<ScpUnit> units, ScpUnit unit, String[] path,
+                          File file) {
+    long weight = file.length() + FILE_OVERHEAD;
+    if ( (unit == null)
+        || ( (unit.weight + weight) > MAXIMUM_UNIT_WEIGHT)) {
+      unit = new ScpUnit(path);
+      units.add(unit);
+    }
+    unit.files.add(file);
+    unit.length += file.length();
+    unit.weight += weight;
+    return unit;
+  }
+
   /**
    * <p>
    * Implements an SCP channel by extending the
@@ -309,7 +586,10 @@ public final class ScpClient {
   class ScpChannel
       extends SessionChannelClient {
     byte[] buffer = new byte[16384];
+    int blockSize;
     String cmd;
+    ScpTransfer transfer;
+    List<String> directory = new ArrayList<String>();
     /**
      * <p>
      * Contruct the channel with the specified scp command.
@@ -335,11 +615,44 @@ public final class ScpClient {
      * @since 0.2.0
      */
     protected void onChannelOpen() throws IOException {
+      // Read and send whole packets, as many as the remote window takes
+      long packet = getRemotePacketSize();
+      long window = Math.min(getRemoteWindow().getWindowSpace(),
+                             MAXIMUM_BLOCK_SIZE);
+      blockSize = (int) (Math.max(1, window / packet) * packet);
       if (!executeCommand(cmd)) {
         throw new IOException("Failed to execute the command " + cmd);
       }
     }
 
+    /**
+     * <p>
+     * Returns the minimum window space, half of the window so that the
+     * remote side does not stall waiting for it to be adjusted.
+     * </p>
+     *
+     * @return the minimum window space
+     *
+     * @since 0.2.10
+     */
+    protected int getMinimumWindowSpace() {
+      return WINDOW_SPACE / 2;
+    }
+
+    /**
+     * <p>
+     * Returns the maximum window space, large enough to stream file data
+     * over a connection with some latency.
+     * </p>
+     *
+     * @return the maximum window space
+     *
+     * @since 0.2.10
+     */
+    protected int getMaximumWindowSpace() {
+      return WINDOW_SPACE;
+    }
+
     /**
      * <p>
      * Writes a directory to the remote server.
@@ -393,7 +706,7 @@ public final class ScpClient {
       String cmd = "C0644 " + length + " " + localName + "\n";
       out.write(cmd.getBytes());
       waitForResponse();
-      writeCompleteFile(in, length);
+      writeCompleteFile(Channels.newChannel(in), length);
       writeOk();
       waitForResponse();
     }
@@ -423,7 +736,7 @@ public final class ScpClient {
         out.write(cmd.getBytes());
         waitForResponse();
         FileInputStream fi = new FileInputStream(file);
-        writeCompleteFile(fi, file.length());
+        writeCompleteFile(fi.getChannel(), file.length());
         writeOk();
       }
       else {
@@ -432,6 +745,47 @@ public final class ScpClient {
       waitForResponse();
     }
 
+    /**
+     * <p>
+     * Moves the remote sink into a directory below the target by writing
+     * the <code>E</code> and <code>D</code> records between the current and
+     * the new directory.
+     * </p>
+     *
+     * @param path the directory relative to the target
+     * @param wait wait for the response to each record
+     *
+     * @return the number of records written
+     *
+     * @throws IOException if an IO error occurs
+     */
+    private int changeDirectory(String[] path, boolean wait) throws
+        IOException {
+      int common = 0;
+      while ( (common < directory.size()) && (common < path.length)
+             && directory.get(common).equals(path[common])) {
+        common++;
+      }
+      int records = 0;
+      while (directory.size() > common) {
+        out.write("E\n".getBytes());
+        directory.remove(directory.size() - 1);
+        records++;
+        if (wait) {
+          waitForResponse();
+        }
+      }
+      for (int i = common; i < path.length; i++) {
+        out.write( ("D0755 0 " + path[i] + "\n").getBytes());
+        directory.add(path[i]);
+        records++;
+        if (wait) {
+          waitForResponse();
+        }
+      }
+      return records;
+    }
+
     private void readFromRemote(File file) throws IOException {
       String cmd;
       String[] cmdParts = new String[3];
@@ -587,20 +941,37 @@ public final class ScpClient {
       out.write(reason.getBytes());
     }
 
-    private void writeCompleteFile(InputStream file, long size) throws
+    /**
+     * <p>
+     * Sends the file data in blocks sized to the remote window. Each block
+     * is passed to the channel as it is, so it is not copied again until it
+     * is written into the transport packets.
+     * </p>
+     *
+     * @param file the source of the data, closed once it has been sent
+     * @param size the number of bytes to send
+     *
+     * @throws IOException if an IO error occurs
+     */
+    private void writeCompleteFile(ReadableByteChannel file, long size) throws
         IOException {
-      int count = 0;
-      int read;
+      long count = 0;
       try {
         while (count < size) {
-          read = file.read(buffer, 0,
-                           (int) ( ( (size - count) < buffer.length)
-                                  ? (size - count) : buffer.length));
-          if (read == -1) {
-            throw new EOFException("SCP received an unexpected EOF");
+          // A new block each time since a sent block may still be queued
+          ByteBuffer block = ByteBuffer.allocate(
+              (int) Math.min(size - count, blockSize));
+          while (block.hasRemaining()) {
+            if (file.read(block) == -1) {
+              throw new EOFException("SCP received an unexpected EOF");
+            }
+          }
+          block.flip();
+          sendChannelData(new ByteBuffer[] {block});
+          count += block.limit();
+          if (transfer != null) {
+            transfer.progressed(block.limit());
           }
-          count += read;
-          out.write(buffer, 0, read);
         }
       }
       finally {
@@ -608,20 +979,31 @@ public final class ScpClient {
       }
     }
 
+    /**
+     * <p>
+     * Writes the file data straight from the received messages to the file.
+     * </p>
+     *
+     * @param file the target file, closed once the data has been written
+     * @param size the number of bytes to receive
+     *
+     * @throws IOException if an IO error occurs
+     */
     private void readCompleteFile(FileOutputStream file, long size) throws
         IOException {
-      int count = 0;
+      FileChannel target = file.getChannel();
+      long count = 0;
       int read;
       try {
         while (count < size) {
-          read = in.read(buffer, 0,
-                         (int) ( ( (size - count) < buffer.length)
-                                ? (size - count) : buffer.length));
+          read = in.read(target, (int) Math.min(size - count, blockSize));
           if (read == -1) {
             throw new EOFException("SCP received an unexpected EOF");
           }
           count += read;
-          file.write(buffer, 0, read);
+          if (transfer != null) {
+            transfer.progressed(read);
+          }
         }
       }
       finally {
@@ -630,6 +1012,105 @@ public final class ScpClient {
     }
   }
 
+  /**
+   * <p>
+   * Files from one directory that are sent together over one channel.
+   * </p>
+   */
+  static class ScpUnit {
+    String[] path;
+    List<File> files = new ArrayList<File>();
+    long length;
+    long weight;
+    ScpUnit(String[] path) {
+      this.path = path;
+    }
+  }
+
+  /**
+   * <p>
+   * The shared state of a transfer running over several channels. Work is
+   * taken from here by each channel's thread, and the progress of all of
+   * them is totalled into a single <code>FileTransferProgress</code>.
+   * </p>
+   */
+  class ScpTransfer {
+    ArrayDeque<ScpUnit> units = new ArrayDeque<ScpUnit>();
+    ArrayDeque<String> paths = new ArrayDeque<String>();
+    FileTransferProgress progress;
+    IOException failure;
+    long transferred;
+    int active;
+    ScpTransfer(FileTransferProgress progress) {
+      this.progress = progress;
+    }
+
+    void start(int channels, Runnable worker) {
+      synchronized (this) {
+        active = channels;
+      }
+      for (int i = 0; i < channels; i++) {
+        new SshThread(worker, "SCP transfer", true).start();
+      }
+    }
+
+    synchronized ScpUnit nextUnit() {
+      return (failure == null) ? units.poll() : null;
+    }
+
+    synchronized String nextPath() {
+      return (failure == null) ? paths.poll() : null;
+    }
+
+    synchronized void progressed(int read) throws IOException {
+      if (failure != null) {
+        throw new IOException("SCP transfer aborted");
+      }
+      transferred += read;
+      if (progress != null) {
+        if (progress.isCancelled()) {
+          throw new TransferCancelledException();
+        }
+        progress.progressed(transferred);
+      }
+    }
+
+    synchronized void failed(IOException ex) {
+      if (failure == null) {
+        failure = ex;
+      }
+    }
+
+    void finished(ScpChannel scp) {
+      if (scp != null) {
+        try {
+          scp.close();
+        }
+        catch (IOException ex) {
+        }
+      }
+      synchronized (this) {
+        active--;
+        notifyAll();
+      }
+    }
+
+    synchronized void waitForCompletion() throws IOException {
+      try {
+        while (active > 0) {
+          wait();
+        }
+      }
+      catch (InterruptedException ex) {
+        failed(new InterruptedIOException("SCP transfer interrupted"));
+        throw failure;
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
   class ScpInputStream
       extends InputStream {
     long length;
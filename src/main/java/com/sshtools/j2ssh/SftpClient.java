@@ -114,6 +114,21 @@ public class SftpClient {
         return old;
     }
 
+    /**
+     * <p>
+     * Sets the number of read or write requests that may be outstanding on
+     * a file while it is downloaded or uploaded. Higher values help on links
+     * with a long round trip time.
+     * </p>
+     *
+     * @param maxOutstandingRequests the maximum number of requests in flight
+     *
+     * @since 0.2.10
+     */
+    public void setMaxOutstandingRequests(int maxOutstandingRequests) {
+        sftp.setMaxOutstandingRequests(maxOutstandingRequests);
+    }
+
     /**
      * <p>
      * Changes the working directory on the remote server.
@@ -428,6 +443,9 @@ public class SftpClient {
             }
           }
         }
+
+        // Wait for any pipelined writes so that failures are reported
+        out.flush();
       } 
       finally {
         try {
@@ -28,6 +28,7 @@ package com.sshtools.j2ssh;
 import com.sshtools.j2ssh.configuration.ConfigurationLoader;
 
 import java.util.HashMap;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
@@ -44,6 +45,12 @@ import java.util.HashMap;
 public class SshThread extends Thread {
     private static HashMap<String, Integer> names = new HashMap<String, Integer>();
 
+    /** The factory that creates the threads which run SshThreads */
+    private static ThreadFactory threadFactory = null;
+
+    /** The SshThread being run by a thread created with the factory */
+    private static ThreadLocal<SshThread> context = new ThreadLocal<SshThread>();
+
     /** The raw session id generating during the first key exchange. */
     protected byte[] sessionId;
 
@@ -56,6 +63,9 @@ public class SshThread extends Thread {
     /** The thread properties */
     private HashMap<String, String> settings = new HashMap<String, String>();
 
+    /** The thread created by the factory to run this thread */
+    private volatile Thread runner;
+
     /**
      * <p>
      * Constructs an SshThread.
@@ -79,13 +89,16 @@ public class SshThread extends Thread {
     private void setProperties(String name, boolean daemon) {
         Integer i;
 
-        if (names.containsKey(name)) {
-            i = new Integer(((Integer) names.get(name)).intValue() + 1);
-        } else {
-            i = new Integer(1);
+        synchronized (names) {
+            if (names.containsKey(name)) {
+                i = new Integer(((Integer) names.get(name)).intValue() + 1);
+            } else {
+                i = new Integer(1);
+            }
+
+            names.put(name, i);
         }
 
-        names.put(name, i);
         setName(name + " " + Integer.toHexString(i.intValue() & 0xFF));
         setDaemon(daemon);
 
@@ -94,6 +107,152 @@ public class SshThread extends Thread {
         }
     }
 
+    /**
+     * <p>
+     * Sets the factory used to create the threads that run SshThreads. When
+     * set, an SshThread only carries the session context and the thread
+     * created by the factory executes it; a factory returned by
+     * <code>getVirtualThreadFactory</code> runs every worker as a virtual
+     * thread. Set to <code>null</code> to run each SshThread as its own
+     * platform thread.
+     * </p>
+     *
+     * @param factory the thread factory, or <code>null</code>
+     *
+     * @since 0.2.10
+     */
+    public static void setThreadFactory(ThreadFactory factory) {
+        threadFactory = factory;
+    }
+
+    /**
+     * <p>
+     * Returns the factory used to create the threads that run SshThreads.
+     * </p>
+     *
+     * @return the thread factory, or <code>null</code> if SshThreads run as
+     *         platform threads
+     *
+     * @since 0.2.10
+     */
+    public static ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
+    /**
+     * <p>
+     * Returns a factory that creates virtual threads, if the running JVM
+     * supports them.
+     * </p>
+     *
+     * @return the virtual thread factory, or <code>null</code> if virtual
+     *         threads are not available
+     *
+     * @since 0.2.10
+     */
+    public static ThreadFactory getVirtualThreadFactory() {
+        try {
+            // Looked up reflectively so we still run on older JVMs
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                                        .getMethod("factory").invoke(builder);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    /**
+     * <p>
+     * Starts the thread, using the configured thread factory if there is
+     * one.
+     * </p>
+     *
+     * @since 0.2.10
+     */
+    public synchronized void start() {
+        ThreadFactory factory = threadFactory;
+
+        if ((factory == null) || !isFactoryThread()) {
+            super.start();
+
+            return;
+        }
+
+        if (runner != null) {
+            throw new IllegalThreadStateException();
+        }
+
+        runner = factory.newThread(new Runnable() {
+                    public void run() {
+                        context.set(SshThread.this);
+
+                        try {
+                            SshThread.this.run();
+                        } finally {
+                            context.remove();
+                        }
+                    }
+                });
+        runner.setName(getName());
+        runner.start();
+    }
+
+    /**
+     * <p>
+     * Determines whether this thread may be run by the configured thread
+     * factory. Threads that spend their life blocked in native calls
+     * override this to keep a platform thread of their own.
+     * </p>
+     *
+     * @return true if the thread factory may run this thread
+     *
+     * @since 0.2.10
+     */
+    protected boolean isFactoryThread() {
+        return true;
+    }
+
+    /**
+     *
+     */
+    public void interrupt() {
+        Thread thread = runner;
+
+        if (thread != null) {
+            thread.interrupt();
+        } else {
+            super.interrupt();
+        }
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public boolean isInterrupted() {
+        Thread thread = runner;
+
+        return (thread != null) ? thread.isInterrupted() : super.isInterrupted();
+    }
+
+    /**
+     * <p>
+     * Determines whether the thread is running, whether as a platform thread
+     * or on a thread created by the thread factory.
+     * </p>
+     *
+     * @return true if the thread has been started and has not yet died
+     *
+     * @since 0.2.10
+     */
+    public boolean isRunning() {
+        Thread thread = runner;
+
+        return (thread != null) ? thread.isAlive() : isAlive();
+    }
+
     /**
      * <p>
      * Sets the session id for this thread.
@@ -165,13 +324,30 @@ public class SshThread extends Thread {
      */
     public SshThread cloneThread(Runnable target, String name) {
         SshThread thread = new SshThread(target, name, isDaemon());
-        thread.setSessionId(sessionId);
-        thread.setUsername(username);
-        thread.settings.putAll(settings);
+        thread.inheritContext(this);
 
         return thread;
     }
 
+    /**
+     * <p>
+     * Takes on the session id, user and properties of another thread so
+     * that a pooled thread can work on behalf of that thread's session.
+     * </p>
+     *
+     * @param thread the thread whose context to copy
+     *
+     * @since 0.2.10
+     */
+    public void inheritContext(SshThread thread) {
+        sessionId = null;
+        sessionIdString = null;
+        setSessionId(thread.sessionId);
+        setUsername(thread.username);
+        settings.clear();
+        settings.putAll(thread.settings);
+    }
+
     /**
      * <p>
      * Sets a property in the thread.
@@ -235,9 +411,10 @@ public class SshThread extends Thread {
      * @since 0.2.0
      */
     public static String getCurrentThreadUser() throws SshRuntimeException {
+        SshThread thread = currentContext();
 
-        if (Thread.currentThread() instanceof SshThread) {
-            return ((SshThread) Thread.currentThread()).getUsername();
+        if (thread != null) {
+            return thread.getUsername();
         } else {
             throw new SshRuntimeException(
                 "The current thread is not running within an SshThread context");
@@ -245,14 +422,30 @@ public class SshThread extends Thread {
     }
 
     public static boolean hasUserContext() {
-        if (Thread.currentThread() instanceof SshThread) {
-            return ((SshThread) Thread.currentThread()).getUsername() != null;
+        SshThread thread = currentContext();
+
+        if (thread != null) {
+            return thread.getUsername() != null;
         } else {
             throw new SshRuntimeException(
                 "The current thread is not running within an SshThread context");
         }
     }
 
+    /**
+     * <p>
+     * Determines whether the current thread is running in an
+     * <code>SshThread</code> context.
+     * </p>
+     *
+     * @return true if there is an <code>SshThread</code> context
+     *
+     * @since 0.2.10
+     */
+    public static boolean hasCurrentThread() {
+        return currentContext() != null;
+    }
+
     /**
      * <p>
      * Returns the session id of the current thread context.
@@ -272,9 +465,10 @@ public class SshThread extends Thread {
      * @since 0.2.0
      */
     public static String getCurrentSessionId() throws SshRuntimeException {
+        SshThread thread = currentContext();
 
-        if (Thread.currentThread() instanceof SshThread) {
-            return ((SshThread) Thread.currentThread()).getSessionIdString();
+        if (thread != null) {
+            return thread.getSessionIdString();
         } else {
             throw new SshRuntimeException(
                 "The current thread is not running within an SshThread context");
@@ -300,11 +494,23 @@ public class SshThread extends Thread {
      * @since 0.2.0
      */
     public static SshThread getCurrentThread() throws SshRuntimeException {
-        if (Thread.currentThread() instanceof SshThread) {
-            return (SshThread) Thread.currentThread();
+        SshThread thread = currentContext();
+
+        if (thread != null) {
+            return thread;
         } else {
             throw new SshRuntimeException(
                 "The current thread is not an SshThread");
         }
     }
+
+    private static SshThread currentContext() {
+        Thread thread = Thread.currentThread();
+
+        if (thread instanceof SshThread) {
+            return (SshThread) thread;
+        }
+
+        return context.get();
+    }
 }
@@ -30,6 +30,7 @@ import java.util.Map;
 
 import com.sshtools.j2ssh.forwarding.ForwardingConfiguration;
 import com.sshtools.j2ssh.transport.cipher.SshCipherFactory;
+import com.sshtools.j2ssh.transport.compression.SshCompression;
 import com.sshtools.j2ssh.transport.compression.SshCompressionFactory;
 import com.sshtools.j2ssh.transport.hmac.SshHmacFactory;
 import com.sshtools.j2ssh.transport.kex.SshKeyExchangeFactory;
@@ -99,6 +100,9 @@ public class SshConnectionProperties {
     /**  */
     protected String prefSendMac = SshHmacFactory.getDefaultHmac();
 
+    /**  */
+    protected int compressionLevel = SshCompression.DEFAULT_LEVEL;
+
     /**  */
     protected String username;
 
@@ -301,6 +305,31 @@ public class SshConnectionProperties {
         return prefSendComp;
     }
 
+    /**
+     * <p>
+     * Sets the zlib compression level (1-9) used when compression is
+     * negotiated.
+     * </p>
+     *
+     * @param compressionLevel
+     *
+     * @since 0.2.10
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     *
+     *
+     * @return
+     *
+     * @since 0.2.10
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
     /**
      *
      *
@@ -26,8 +26,10 @@
 package com.sshtools.j2ssh.connection;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -48,6 +50,9 @@ public abstract class Channel {
     /**  */
     protected ChannelDataWindow remoteWindow = new ChannelDataWindow();
 
+    /**  */
+    protected ReentrantLock writeLock = new ReentrantLock();
+
     /**  */
     protected ConnectionProtocol connection;
 
@@ -150,19 +155,8 @@ public abstract class Channel {
                         name + "]");
                 }
 
-                long windowSpace = localWindow.consumeWindowSpace(msg.getChannelData().length);
-
-                if (windowSpace < getMinimumWindowSpace()) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Channel " + String.valueOf(localChannelId) +
-                            " requires more window space [" + name + "]");
-                    }
-
-                    windowSpace = getMaximumWindowSpace() - windowSpace;
-                    log.debug("Requesting connection protocol increase window");
-                    connection.sendChannelWindowAdjust(this, windowSpace);
-                    localWindow.increaseWindowSpace(windowSpace);
-                }
+                localWindow.consumeWindowSpace(msg.getChannelData().length);
+                adjustLocalWindow();
 
                 onChannelData(msg);
 
@@ -179,6 +173,78 @@ public abstract class Channel {
         }
     }
 
+    /**
+     * <p>
+     * Increases the local window once the space left, together with any data
+     * the channel is still holding, falls below the minimum window space.
+     * Channels that hold received data should call this again once it has
+     * been consumed.
+     * </p>
+     *
+     * @throws IOException
+     *
+     * @since 0.2.10
+     */
+    protected void adjustLocalWindow() throws IOException {
+        synchronized (state) {
+            long windowSpace = localWindow.getWindowSpace() +
+                getBufferedDataLength();
+
+            if (windowSpace < getMinimumWindowSpace()) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Channel " + String.valueOf(localChannelId) +
+                        " requires more window space [" + name + "]");
+                }
+
+                windowSpace = getMaximumWindowSpace() - windowSpace;
+                log.debug("Requesting connection protocol increase window");
+                connection.sendChannelWindowAdjust(this, windowSpace);
+                localWindow.increaseWindowSpace(windowSpace);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Returns whether the channel handles data without blocking. Data for
+     * such a channel is passed to it on the transport thread; data for any
+     * other channel is passed on the connection service thread, so that a
+     * slow channel does not hold up reading from the transport.
+     * </p>
+     *
+     * @return <tt>true</tt> if the data handlers never block, by default
+     *         <tt>false</tt>
+     *
+     * @since 0.2.10
+     */
+    protected boolean isNonBlockingReceiver() {
+        return false;
+    }
+
+    /**
+     * <p>
+     * Returns the amount of received data the channel is holding that has not
+     * yet been consumed. The local window is not increased to cover it.
+     * </p>
+     *
+     * @return the number of bytes held, by default zero
+     *
+     * @since 0.2.10
+     */
+    protected long getBufferedDataLength() {
+        return 0;
+    }
+
+    /**
+     * <p>
+     * Called when the remote side increases the remote window.
+     * </p>
+     *
+     * @since 0.2.10
+     */
+    protected void onRemoteWindowAdjust() {
+    }
+
     /**
      *
      *
@@ -228,6 +294,56 @@ public abstract class Channel {
         }
     }
 
+    /**
+     * <p>
+     * Sends the remaining content of the buffers as channel data without
+     * copying it first. Event listeners, if any, are passed a copy of the
+     * data.
+     * </p>
+     *
+     * @param data
+     *
+     * @throws IOException
+     *
+     * @since 0.2.10
+     */
+    protected void sendChannelData(ByteBuffer[] data) throws IOException {
+        if (!connection.isConnected()) {
+            throw new IOException("The connection has been closed [" + name +
+                "]");
+        }
+
+        if (!isClosed()) {
+            connection.sendChannelData(this, data);
+
+            if (!eventListeners.isEmpty()) {
+                int len = 0;
+
+                for (int i = 0; i < data.length; i++) {
+                    len += data[i].remaining();
+                }
+
+                byte[] copy = new byte[len];
+                int pos = 0;
+
+                for (int i = 0; i < data.length; i++) {
+                    ByteBuffer buf = data[i].duplicate();
+                    len = buf.remaining();
+                    buf.get(copy, pos, len);
+                    pos += len;
+                }
+
+                for (final ChannelEventListener eventListener : eventListeners) {
+                    if (eventListener != null) {
+                        eventListener.onDataSent(this, copy);
+                    }
+                }
+            }
+        } else {
+            throw new IOException("The channel is closed [" + name + "]");
+        }
+    }
+
     /**
      *
      *
@@ -282,18 +398,8 @@ public abstract class Channel {
                     name + "]");
             }
 
-            long windowSpace = localWindow.consumeWindowSpace(msg.getChannelData().length);
-
-            if (windowSpace < getMinimumWindowSpace()) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Channel " + String.valueOf(localChannelId) +
-                        " requires more window space [" + name + "]");
-                }
-
-                windowSpace = getMaximumWindowSpace() - windowSpace;
-                connection.sendChannelWindowAdjust(this, windowSpace);
-                localWindow.increaseWindowSpace(windowSpace);
-            }
+            localWindow.consumeWindowSpace(msg.getChannelData().length);
+            adjustLocalWindow();
 
             onChannelExtData(msg);
 
@@ -421,6 +527,9 @@ public abstract class Channel {
     protected void finalizeClose() throws IOException {
         synchronized (state) {
             state.setValue(ChannelState.CHANNEL_CLOSED);
+
+            // Release any writers waiting for window space
+            remoteWindow.close();
             onChannelClose();
 
             for (ChannelEventListener eventListener : eventListeners) {
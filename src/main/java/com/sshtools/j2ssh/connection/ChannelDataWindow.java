@@ -25,6 +25,11 @@
  */
 package com.sshtools.j2ssh.connection;
 
+import java.io.IOException;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -38,6 +43,11 @@ import org.apache.commons.logging.LogFactory;
 public class ChannelDataWindow {
     private static Log log = LogFactory.getLog(ChannelDataWindow.class);
     long windowSpace = 0;
+    boolean closed = false;
+
+    // An explicit lock does not pin the carrier of a waiting virtual thread
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition changed = lock.newCondition();
 
     /**
      * Creates a new ChannelDataWindow object.
@@ -50,8 +60,14 @@ public class ChannelDataWindow {
      *
      * @return
      */
-    public synchronized long getWindowSpace() {
-        return windowSpace;
+    public long getWindowSpace() {
+        lock.lock();
+
+        try {
+            return windowSpace;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -61,14 +77,75 @@ public class ChannelDataWindow {
      *
      * @return
      */
-    public synchronized long consumeWindowSpace(int count) {
-        if (windowSpace < count) {
-            waitForWindowSpace(count);
+    public long consumeWindowSpace(int count) {
+        lock.lock();
+
+        try {
+            if (windowSpace < count) {
+                waitForWindowSpace(count);
+            }
+
+            windowSpace -= count;
+
+            return windowSpace;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        windowSpace -= count;
+    /**
+     * <p>
+     * Waits until there is window space available and consumes as much of
+     * it as possible, up to the maximum given. Only the calling thread is
+     * blocked whilst waiting; it is woken as soon as the window is
+     * increased or closed.
+     * </p>
+     *
+     * @param maximum the most space required
+     *
+     * @return the number of bytes consumed
+     *
+     * @throws IOException if the window is closed whilst waiting
+     *
+     * @since 0.2.10
+     */
+    public int consumeAvailableWindowSpace(int maximum)
+        throws IOException {
+        lock.lock();
 
-        return windowSpace;
+        try {
+            waitForWindowSpace(1);
+
+            if (closed) {
+                throw new IOException(
+                    "The channel data window has been closed");
+            }
+
+            int count = (windowSpace < maximum) ? (int) windowSpace : maximum;
+            windowSpace -= count;
+
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>
+     * Closes the window, releasing any threads waiting for space.
+     * </p>
+     *
+     * @since 0.2.10
+     */
+    public void close() {
+        lock.lock();
+
+        try {
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -76,13 +153,19 @@ public class ChannelDataWindow {
      *
      * @param count
      */
-    public synchronized void increaseWindowSpace(long count) {
+    public void increaseWindowSpace(long count) {
         if (log.isDebugEnabled()) {
             log.debug("Increasing window space by " + String.valueOf(count));
         }
 
-        windowSpace += count;
-        notifyAll();
+        lock.lock();
+
+        try {
+            windowSpace += count;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -90,17 +173,20 @@ public class ChannelDataWindow {
      *
      * @param minimum
      */
-    public synchronized void waitForWindowSpace(int minimum) {
+    public void waitForWindowSpace(int minimum) {
         if (log.isDebugEnabled()) {
             log.debug("Waiting for " + String.valueOf(minimum) +
                 " bytes of window space");
         }
 
-        while (windowSpace < minimum) {
-            try {
-                wait(50);
-            } catch (InterruptedException e) {
+        lock.lock();
+
+        try {
+            while ((windowSpace < minimum) && !closed) {
+                changed.awaitUninterruptibly();
             }
+        } finally {
+            lock.unlock();
         }
     }
 }
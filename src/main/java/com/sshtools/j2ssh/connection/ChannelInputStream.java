@@ -37,6 +37,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
 
 /**
  *
@@ -222,6 +225,46 @@ public class ChannelInputStream extends InputStream {
         }
     }
 
+    /**
+     * <p>
+     * Reads up to <code>len</code> bytes of channel data and writes them
+     * straight from the received message to the target, without copying
+     * them into an intermediate buffer.
+     * </p>
+     *
+     * @param target the channel to write the data to
+     * @param len the maximum number of bytes to transfer
+     *
+     * @return the number of bytes transferred, or -1 if the stream is EOF
+     *
+     * @throws IOException
+     * @throws InterruptedIOException
+     *
+     * @since 0.2.10
+     */
+    public int read(WritableByteChannel target, int len)
+        throws IOException {
+        try {
+            block();
+
+            int actual = Math.min(msgdata.length - currentPos, len);
+            ByteBuffer buf = ByteBuffer.wrap(msgdata, currentPos, actual);
+
+            while (buf.hasRemaining()) {
+                target.write(buf);
+            }
+
+            currentPos += actual;
+
+            return actual;
+        } catch (MessageStoreEOFException mse) {
+            return -1;
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException(
+                "The thread was interrupted whilst waiting for channel data");
+        }
+    }
+
     private void block()
         throws MessageStoreEOFException, InterruptedException, IOException {
         if (msgdata == null) {
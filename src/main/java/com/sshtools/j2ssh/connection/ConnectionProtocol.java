@@ -26,19 +26,26 @@
 package com.sshtools.j2ssh.connection;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.sshtools.j2ssh.SshException;
 import com.sshtools.j2ssh.transport.AsyncService;
-import com.sshtools.j2ssh.transport.MessageStoreEOFException;
 import com.sshtools.j2ssh.transport.ServiceState;
 import com.sshtools.j2ssh.transport.SshMessage;
+import com.sshtools.j2ssh.transport.SshMessageHandler;
+import com.sshtools.j2ssh.transport.SshMessageListener;
 import com.sshtools.j2ssh.transport.TransportProtocolState;
 
 
@@ -55,6 +62,9 @@ public class ConnectionProtocol extends AsyncService {
     private Map<String, ChannelFactory> allowedChannels = new HashMap<String, ChannelFactory>();
     private Map<String, GlobalRequestHandler> globalRequests = new HashMap<String, GlobalRequestHandler>();
     private long nextChannelId = 0;
+    // Asynchronous messages queued or being processed by the service thread
+    private AtomicInteger pendingMessages = new AtomicInteger();
+    private Map<Long, PendingOpen> pendingOpens = new ConcurrentHashMap<Long, PendingOpen>();
 
     /**
      * Creates a new ConnectionProtocol object.
@@ -116,7 +126,7 @@ public class ConnectionProtocol extends AsyncService {
      *
      * @throws IOException
      */
-    public synchronized boolean openChannel(Channel channel)
+    public boolean openChannel(Channel channel)
         throws IOException {
         return openChannel(channel, null);
     }
@@ -132,7 +142,7 @@ public class ConnectionProtocol extends AsyncService {
         (getState().getValue() == ServiceState.SERVICE_STARTED);
     }
 
-    private Long getChannelId() {
+    private synchronized Long getChannelId() {
        // synchronized (activeChannels) { 
 //            if (reusableChannels.size() <= 0) {
                 return new Long(nextChannelId++);
@@ -153,10 +163,82 @@ public class ConnectionProtocol extends AsyncService {
      * @throws IOException
      * @throws SshException
      */
-    public synchronized boolean openChannel(Channel channel,
+    public boolean openChannel(Channel channel,
         ChannelEventListener eventListener) throws IOException {
-        //synchronized (activeChannels) {
-            Long channelId = getChannelId();
+        boolean confirmed;
+
+        try {
+            confirmed = requestChannelOpen(channel, eventListener).get()
+                            .booleanValue();
+        } catch (ExecutionException ex) {
+            throw toIOException(ex.getCause());
+        } catch (InterruptedException ex) {
+            throw new SshException(
+                "The thread was interrupted whilst waiting for a connection protocol message");
+        }
+
+        if (confirmed) {
+            openConfirmedChannel(channel);
+        }
+
+        return confirmed;
+    }
+
+    /**
+     * <p>
+     * Sends a request to open a channel and returns without waiting for the
+     * reply, so any number of channels may be opening at once. The future
+     * completes with <tt>true</tt> once the channel is open or with
+     * <tt>false</tt> if the remote side refused it, and fails with an
+     * <code>IOException</code> if the connection closes first.
+     * </p>
+     *
+     * <p>
+     * The future is completed by the thread that reads the transport, which
+     * also calls the channel's <code>onChannelOpen</code>. Channels that wait
+     * for the remote side when they open, and actions chained on the future
+     * that do so, must use <code>openChannel</code> or the
+     * <code>...Async</code> forms of the <code>CompletableFuture</code>
+     * methods instead.
+     * </p>
+     *
+     * @param channel the channel to open
+     * @param eventListener a listener for the channel's events, or
+     *        <tt>null</tt>
+     *
+     * @return a future for the result of the open
+     *
+     * @throws IOException if the request cannot be sent
+     *
+     * @since 0.2.10
+     */
+    public CompletableFuture<Boolean> openChannelAsync(final Channel channel,
+        ChannelEventListener eventListener) throws IOException {
+        return requestChannelOpen(channel, eventListener).thenApply(confirmed -> {
+                if (confirmed.booleanValue()) {
+                    try {
+                        openConfirmedChannel(channel);
+                    } catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    }
+                }
+
+                return confirmed;
+            });
+    }
+
+    private CompletableFuture<Boolean> requestChannelOpen(Channel channel,
+        ChannelEventListener eventListener) throws IOException {
+        Long channelId = getChannelId();
+        PendingOpen pending = new PendingOpen(channel, eventListener);
+
+        // Register before sending; the reply is matched by its recipient id
+        pendingOpens.put(channelId, pending);
+
+        try {
+            if (messageStore.isClosed()) {
+                throw new IOException("The connection protocol has stopped");
+            }
 
             // Create the message
             SshMsgChannelOpen msg = new SshMsgChannelOpen(channel.getChannelType(),
@@ -166,41 +248,75 @@ public class ConnectionProtocol extends AsyncService {
 
             // Send the message
             transport.sendMessage(msg, this);
+        } catch (IOException ex) {
+            pendingOpens.remove(channelId);
+            throw ex;
+        }
 
-            // Wait for the next message to confirm the open channel (or not)
-            int[] messageIdFilter = new int[2];
-            messageIdFilter[0] = SshMsgChannelOpenConfirmation.SSH_MSG_CHANNEL_OPEN_CONFIRMATION;
-            messageIdFilter[1] = SshMsgChannelOpenFailure.SSH_MSG_CHANNEL_OPEN_FAILURE;
+        return pending.result;
+    }
 
-            try {
-                SshMessage result = messageStore.getMessage(messageIdFilter);
-
-                if (result.getMessageId() == SshMsgChannelOpenConfirmation.SSH_MSG_CHANNEL_OPEN_CONFIRMATION) {
-                    SshMsgChannelOpenConfirmation conf = (SshMsgChannelOpenConfirmation) result;
-                    activeChannels.put(channelId, channel);
-                    log.debug("Initiating channel");
-                    channel.init(this, channelId.longValue(),
-                        conf.getSenderChannel(), conf.getInitialWindowSize(),
-                        conf.getMaximumPacketSize(), eventListener);
-                    channel.open();
-                    log.info("Channel " +
-                        String.valueOf(channel.getLocalChannelId()) +
-                        " is open [" + channel.getName() + "]");
-
-                    return true;
-                } else {
-                    // Make sure the channels state is closed
-                    channel.getState().setValue(ChannelState.CHANNEL_CLOSED);
+    private void openConfirmedChannel(Channel channel)
+        throws IOException {
+        channel.open();
+        log.info("Channel " + String.valueOf(channel.getLocalChannelId()) +
+            " is open [" + channel.getName() + "]");
+    }
 
-                    return false;
-                }
-            } catch (MessageStoreEOFException mse) {
-                throw new IOException(mse.getMessage());
-            } catch (InterruptedException ex) {
-                throw new SshException(
-                    "The thread was interrupted whilst waiting for a connection protocol message");
+    private boolean onMsgChannelOpenReply(SshMessage msg) {
+        long recipient;
+
+        if (msg instanceof SshMsgChannelOpenConfirmation) {
+            recipient = ((SshMsgChannelOpenConfirmation) msg).getRecipientChannel();
+        } else {
+            recipient = ((SshMsgChannelOpenFailure) msg).getRecipientChannel();
+        }
+
+        Long channelId = Long.valueOf(recipient);
+        PendingOpen pending = pendingOpens.remove(channelId);
+
+        if (pending == null) {
+            log.warn("Discarding " + msg.getMessageName() +
+                " for channel id " + channelId.toString() +
+                " which is not being opened");
+
+            return true;
+        }
+
+        if (msg instanceof SshMsgChannelOpenConfirmation) {
+            SshMsgChannelOpenConfirmation conf = (SshMsgChannelOpenConfirmation) msg;
+
+            try {
+                // Register before any data for the channel can be read
+                activeChannels.put(channelId, pending.channel);
+                log.debug("Initiating channel");
+                pending.channel.init(this, recipient, conf.getSenderChannel(),
+                    conf.getInitialWindowSize(), conf.getMaximumPacketSize(),
+                    pending.eventListener);
+                pending.result.complete(Boolean.TRUE);
+            } catch (IOException ex) {
+                activeChannels.remove(channelId);
+                pending.result.completeExceptionally(ex);
             }
-        //}
+        } else {
+            // Make sure the channels state is closed
+            pending.channel.getState().setValue(ChannelState.CHANNEL_CLOSED);
+            pending.result.complete(Boolean.FALSE);
+        }
+
+        return true;
+    }
+
+    private static IOException toIOException(Throwable cause) {
+        if (cause instanceof CompletionException && (cause.getCause() != null)) {
+            cause = cause.getCause();
+        }
+
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+
+        return new IOException(String.valueOf(cause.getMessage()));
     }
 
     /**
@@ -231,6 +347,13 @@ public class ConnectionProtocol extends AsyncService {
 
         activeChannels.clear();
 	//	}
+
+        for (Iterator<PendingOpen> x = pendingOpens.values().iterator();
+                x.hasNext();) {
+            x.next().result.completeExceptionally(new IOException(
+                    "The connection protocol has stopped"));
+            x.remove();
+        }
     }
 
     /**
@@ -241,43 +364,96 @@ public class ConnectionProtocol extends AsyncService {
      *
      * @throws IOException
      */
-    public synchronized void sendChannelData(Channel channel, byte[] data)
+    public void sendChannelData(Channel channel, byte[] data)
         throws IOException {
-        synchronized (channel.getState()) {
-            if (log.isDebugEnabled()) {
-                log.debug("Sending " + String.valueOf(data.length) +
-                    " bytes for channel id " +
-                    String.valueOf(channel.getLocalChannelId()));
-            }
+        if (log.isDebugEnabled()) {
+            log.debug("Sending " + String.valueOf(data.length) +
+                " bytes for channel id " +
+                String.valueOf(channel.getLocalChannelId()));
+        }
 
-            int sent = 0;
-            int block;
-            int remaining;
-            long max;
-            byte[] buffer;
+        sendChannelData(channel, null, data);
+    }
+
+    /**
+     * <p>
+     * Sends the remaining content of the buffers as channel data. Each packet
+     * refers to slices of the buffers rather than a copy of them, so the data
+     * is copied once, into the transport packet, as it is encrypted. The
+     * buffers must not be modified after this call since a packet may be
+     * queued during a key exchange.
+     * </p>
+     *
+     * @param channel
+     * @param data
+     *
+     * @throws IOException
+     *
+     * @since 0.2.10
+     */
+    public void sendChannelData(Channel channel, ByteBuffer[] data)
+        throws IOException {
+        ByteBuffer[] src = new ByteBuffer[data.length];
+        long remaining = 0;
+
+        for (int i = 0; i < data.length; i++) {
+            src[i] = data[i].duplicate();
+            remaining += src[i].remaining();
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Sending " + String.valueOf(remaining) +
+                " bytes for channel id " +
+                String.valueOf(channel.getLocalChannelId()));
+        }
+
+        channel.writeLock.lock();
+
+        try {
             ChannelDataWindow window = channel.getRemoteWindow();
+            ArrayList<ByteBuffer> slices = new ArrayList<ByteBuffer>();
+            int index = 0;
+            int block;
+            int max;
 
-            while (sent < data.length) {
-                remaining = data.length - sent;
-                max = ((window.getWindowSpace() < channel.getRemotePacketSize()) &&
-                    (window.getWindowSpace() > 0)) ? window.getWindowSpace()
-                                                   : channel.getRemotePacketSize();
-                block = (max < remaining) ? (int) max : remaining;
-                channel.remoteWindow.consumeWindowSpace(block);
-                buffer = new byte[block];
-                System.arraycopy(data, sent, buffer, 0, block);
+            while (remaining > 0) {
+                max = (int) Math.min(remaining, channel.getRemotePacketSize());
 
-                SshMsgChannelData msg = new SshMsgChannelData(channel.getRemoteChannelId(),
-                        buffer);
-                transport.sendMessage(msg, this);
+                try {
+                    block = window.consumeAvailableWindowSpace(max);
+                } catch (IOException ex) {
+                    throw new IOException("The channel is closed [" +
+                        channel.getName() + "]");
+                }
 
-                /*                if (type != null) {
-                     channel.sendChannelExtData(type.intValue(), buffer);
-                                } else {
-                                    channel.sendChannelData(buffer);
-                                }*/
-                sent += block;
+                // Slice the next block of data out of the buffers
+                slices.clear();
+
+                for (int needed = block; needed > 0;) {
+                    ByteBuffer buf = src[index];
+
+                    if (!buf.hasRemaining()) {
+                        index++;
+
+                        continue;
+                    }
+
+                    int len = Math.min(needed, buf.remaining());
+                    ByteBuffer slice = buf.duplicate();
+                    slice.limit(slice.position() + len);
+                    buf.position(buf.position() + len);
+                    slices.add(slice);
+                    needed -= len;
+                }
+
+                transport.sendMessage(new SshMsgChannelData(
+                        channel.getRemoteChannelId(),
+                        slices.toArray(new ByteBuffer[slices.size()])), this);
+
+                remaining -= block;
             }
+        } finally {
+            channel.writeLock.unlock();
         }
     }
 
@@ -314,37 +490,51 @@ public class ConnectionProtocol extends AsyncService {
      *
      * @throws IOException
      */
-    public synchronized void sendChannelExtData(Channel channel,
-        int extendedType, byte[] data) throws IOException {
-        channel.getRemoteWindow().consumeWindowSpace(data.length);
-
-        int sent = 0;
-        int block;
-        int remaining;
-        long max;
-        byte[] buffer;
-        ChannelDataWindow window = channel.getRemoteWindow();
-
-        while (sent < data.length) {
-            remaining = data.length - sent;
-            max = ((window.getWindowSpace() < channel.getRemotePacketSize()) &&
-                (window.getWindowSpace() > 0)) ? window.getWindowSpace()
-                                               : channel.getRemotePacketSize();
-            block = (max < remaining) ? (int) max : remaining;
-            channel.remoteWindow.consumeWindowSpace(block);
-            buffer = new byte[block];
-            System.arraycopy(data, sent, buffer, 0, block);
-
-            SshMsgChannelExtendedData msg = new SshMsgChannelExtendedData(channel.getRemoteChannelId(),
-                    extendedType, buffer);
-            transport.sendMessage(msg, this);
+    public void sendChannelExtData(Channel channel, int extendedType,
+        byte[] data) throws IOException {
+        sendChannelData(channel, Integer.valueOf(extendedType), data);
+    }
+
+    private void sendChannelData(Channel channel, Integer extendedType,
+        byte[] data) throws IOException {
+        // Only writers to this channel wait for its window, other channels
+        // carry on sending
+        channel.writeLock.lock();
+
+        try {
+            int sent = 0;
+            int block;
+            int max;
+            byte[] buffer;
+            ChannelDataWindow window = channel.getRemoteWindow();
+
+            while (sent < data.length) {
+                max = (int) Math.min(data.length - sent,
+                        channel.getRemotePacketSize());
+
+                try {
+                    block = window.consumeAvailableWindowSpace(max);
+                } catch (IOException ex) {
+                    throw new IOException("The channel is closed [" +
+                        channel.getName() + "]");
+                }
+
+                buffer = new byte[block];
+                System.arraycopy(data, sent, buffer, 0, block);
+
+                if (extendedType != null) {
+                    transport.sendMessage(new SshMsgChannelExtendedData(
+                            channel.getRemoteChannelId(),
+                            extendedType.intValue(), buffer), this);
+                } else {
+                    transport.sendMessage(new SshMsgChannelData(
+                            channel.getRemoteChannelId(), buffer), this);
+                }
 
-            /*                if (type != null) {
-                            channel.sendChannelExtData(type.intValue(), buffer);
-                        } else {
-                            channel.sendChannelData(buffer);
-                        }*/
-            sent += block;
+                sent += block;
+            }
+        } finally {
+            channel.writeLock.unlock();
         }
     }
 
@@ -577,6 +767,14 @@ public class ConnectionProtocol extends AsyncService {
      * @throws IOException
      */
     protected void onMessageReceived(SshMessage msg) throws IOException {
+        try {
+            routeMessage(msg);
+        } finally {
+            pendingMessages.decrementAndGet();
+        }
+    }
+
+    private void routeMessage(SshMessage msg) throws IOException {
         // Route the message to the correct handling function
         switch (msg.getMessageId()) {
         case SshMsgGlobalRequest.SSH_MSG_GLOBAL_REQUEST: {
@@ -678,6 +876,85 @@ public class ConnectionProtocol extends AsyncService {
             SshMsgRequestFailure.class);
         messageStore.registerMessage(SshMsgRequestSuccess.SSH_MSG_REQUEST_SUCCESS,
             SshMsgRequestSuccess.class);
+
+        final boolean[] asyncMessages = new boolean[256];
+        int[] messageFilter = getAsyncMessageFilter();
+
+        for (int i = 0; i < messageFilter.length; i++) {
+            asyncMessages[messageFilter[i] & 0xFF] = true;
+        }
+
+        messageStore.addMessageListener(new SshMessageListener() {
+                public void messageReceived(SshMessage msg) {
+                    if (asyncMessages[msg.getMessageId() & 0xFF]) {
+                        pendingMessages.incrementAndGet();
+                    }
+                }
+            });
+
+        // Channel data is passed to its channel on the transport thread
+        // unless earlier messages are still waiting for the service thread
+        // or the channel could block
+        SshMessageHandler channelData = new SshMessageHandler() {
+                public boolean handleMessage(SshMessage msg) {
+                    return deliverChannelData(msg);
+                }
+            };
+
+        messageStore.setMessageHandler(SshMsgChannelData.SSH_MSG_CHANNEL_DATA,
+            channelData);
+        messageStore.setMessageHandler(SshMsgChannelExtendedData.SSH_MSG_CHANNEL_EXTENDED_DATA,
+            channelData);
+
+        // Open replies complete the pending open with the same channel id
+        SshMessageHandler openReply = new SshMessageHandler() {
+                public boolean handleMessage(SshMessage msg) {
+                    return onMsgChannelOpenReply(msg);
+                }
+            };
+
+        messageStore.setMessageHandler(SshMsgChannelOpenConfirmation.SSH_MSG_CHANNEL_OPEN_CONFIRMATION,
+            openReply);
+        messageStore.setMessageHandler(SshMsgChannelOpenFailure.SSH_MSG_CHANNEL_OPEN_FAILURE,
+            openReply);
+    }
+
+    private boolean deliverChannelData(SshMessage msg) {
+        if ((pendingMessages.get() > 0) || messageStore.isClosed()) {
+            return false;
+        }
+
+        try {
+            if (msg instanceof SshMsgChannelData) {
+                SshMsgChannelData data = (SshMsgChannelData) msg;
+                Channel channel = activeChannels.get(Long.valueOf(
+                            data.getRecipientChannel()));
+
+                if ((channel == null) || !channel.isNonBlockingReceiver()) {
+                    return false;
+                }
+
+                channel.processChannelData(data);
+            } else {
+                SshMsgChannelExtendedData data = (SshMsgChannelExtendedData) msg;
+                Channel channel = activeChannels.get(Long.valueOf(
+                            data.getRecipientChannel()));
+
+                if ((channel == null) || !channel.isNonBlockingReceiver()) {
+                    return false;
+                }
+
+                channel.processChannelData(data);
+            }
+        } catch (IOException ex) {
+            if ((state.getValue() != ServiceState.SERVICE_STOPPED) &&
+                    transport.isConnected()) {
+                log.fatal("Channel data could not be processed!", ex);
+                stop();
+            }
+        }
+
+        return true;
     }
 
     /**
@@ -827,7 +1104,6 @@ public class ConnectionProtocol extends AsyncService {
                 "Remote computer sent data for non existent channel");
         }
 
-        channel.getLocalWindow().consumeWindowSpace(msg.getChannelData().length);
         channel.processChannelData(msg);
     }
 
@@ -903,6 +1179,7 @@ public class ConnectionProtocol extends AsyncService {
         }
 
         channel.getRemoteWindow().increaseWindowSpace(msg.getBytesToAdd());
+        channel.onRemoteWindowAdjust();
 
         if (log.isDebugEnabled()) {
             log.debug(String.valueOf(msg.getBytesToAdd()) +
@@ -935,4 +1212,15 @@ public class ConnectionProtocol extends AsyncService {
             //reusableChannels.add(channelId);
         //}
     }
+
+    private static class PendingOpen {
+        Channel channel;
+        ChannelEventListener eventListener;
+        CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+
+        PendingOpen(Channel channel, ChannelEventListener eventListener) {
+            this.channel = channel;
+            this.eventListener = eventListener;
+        }
+    }
 }
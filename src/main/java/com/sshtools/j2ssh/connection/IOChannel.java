@@ -25,6 +25,7 @@
  */
 package com.sshtools.j2ssh.connection;
 
+import com.sshtools.j2ssh.SshThread;
 import com.sshtools.j2ssh.io.IOStreamConnector;
 import com.sshtools.j2ssh.transport.MessageNotAvailableException;
 import com.sshtools.j2ssh.transport.MessageStoreEOFException;
@@ -37,6 +38,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 
 /**
  *
@@ -46,6 +52,7 @@ import java.io.OutputStream;
  */
 public abstract class IOChannel extends Channel {
     private static Log log = LogFactory.getLog(IOChannel.class);
+    private static ExecutorService executor;
 
     /**  */
     private SshMessageStore incoming = new SshMessageStore();
@@ -64,6 +71,13 @@ public abstract class IOChannel extends Channel {
 
     //protected IOChannel boundIOChannel = null;
 
+    // Data waiting to be written to the bound OutputStream, guarded by incoming
+    private ArrayDeque<byte[]> boundData = new ArrayDeque<byte[]>();
+    private long boundDataLength = 0;
+    private boolean writing = false;
+    private boolean pendingEOF = false;
+    private boolean pendingClose = false;
+
     /**  */
     protected IOStreamConnector ios = null;
 
@@ -96,8 +110,10 @@ public abstract class IOChannel extends Channel {
         super.open();
 
         // If were bound send any outstanding messages sitting around
-        if (boundOutputStream != null) {
-            sendOutstandingMessages();
+        synchronized (incoming) {
+            if (boundOutputStream != null) {
+                sendOutstandingMessages();
+            }
         }
 
         // Start the bound inputstream
@@ -140,20 +156,88 @@ public abstract class IOChannel extends Channel {
         // messages are not being flushed to an outputstream after a bind
         synchronized (incoming) {
             if (boundOutputStream != null) {
-                try {
-                    boundOutputStream.write(msg.getChannelData());
-                } catch (IOException ex) {
-                    log.info(
-                        "Could not route data to the bound OutputStream; Closing channel.");
-                    log.info(ex.getMessage());
-                    close();
-                }
+                // The bound OutputStream is written by a writer so that a
+                // slow reader does not hold up the connection
+                writeBoundData(msg.getChannelData());
             } else {
                 incoming.addMessage(msg);
             }
         }
     }
 
+    /**
+     * <p>
+     * Channel data is either queued for the channel's input stream or handed
+     * to the writer of the bound OutputStream, neither of which blocks.
+     * Subclasses that handle data in a way that can block must override this
+     * to return <tt>false</tt>.
+     * </p>
+     *
+     * @return <tt>true</tt>
+     *
+     * @since 0.2.10
+     */
+    protected boolean isNonBlockingReceiver() {
+        return true;
+    }
+
+    /**
+     * <p>
+     * Returns the amount of data waiting to be written to the bound
+     * OutputStream, so that the remote side cannot send more data than the
+     * window while the stream is slow.
+     * </p>
+     *
+     * @return the number of bytes waiting to be written
+     *
+     * @since 0.2.10
+     */
+    protected long getBufferedDataLength() {
+        synchronized (incoming) {
+            return boundDataLength;
+        }
+    }
+
+    /**
+     * <p>
+     * Passes the EOF on once any data waiting for the bound OutputStream has
+     * been written.
+     * </p>
+     *
+     * @throws IOException
+     */
+    protected void setRemoteEOF() throws IOException {
+        synchronized (incoming) {
+            if (writing) {
+                pendingEOF = true;
+
+                return;
+            }
+        }
+
+        super.setRemoteEOF();
+    }
+
+    /**
+     * <p>
+     * Closes the channel once any data waiting for the bound OutputStream has
+     * been written.
+     * </p>
+     *
+     * @throws IOException
+     */
+    protected void remoteClose() throws IOException {
+        synchronized (incoming) {
+            if (writing) {
+                pendingClose = true;
+
+                return;
+            }
+        }
+
+        super.remoteClose();
+    }
+
     /**
      *
      *
@@ -301,13 +385,8 @@ public abstract class IOChannel extends Channel {
                     // Remove the message so we dont process again
                     incoming.removeMessage(msg);
 
-                    // Write the message out to the bound OutputStream
-                    try {
-                        boundOutputStream.write(msg.getChannelData());
-                    } catch (IOException ex1) {
-                        //log.info("Could not write outstanding messages to the bound OutputStream: "  +ex1.getMessage());
-                        close();
-                    }
+                    // Pass the message to the writer of the bound OutputStream
+                    writeBoundData(msg.getChannelData());
                 } catch (MessageStoreEOFException ex) {
                     break;
                 } catch (MessageNotAvailableException ex) {
@@ -318,4 +397,105 @@ public abstract class IOChannel extends Channel {
             }
         }
     }
+
+    private void writeBoundData(byte[] data) {
+        boundData.add(data);
+        boundDataLength += data.length;
+
+        if (!writing) {
+            writing = true;
+            getExecutor().execute(new BoundOutputWriter());
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            // Each channel has at most one writer running at a time
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            return new SshThread(r, "Channel data writer", true);
+                        }
+                    });
+        }
+
+        return executor;
+    }
+
+    class BoundOutputWriter implements Runnable {
+        public void run() {
+            boolean failed = false;
+
+            while (true) {
+                byte[] data;
+                boolean eof;
+                boolean closed;
+
+                synchronized (incoming) {
+                    data = boundData.poll();
+
+                    if (data != null) {
+                        boundDataLength -= data.length;
+                        eof = false;
+                        closed = false;
+                    } else {
+                        writing = false;
+                        eof = pendingEOF;
+                        closed = pendingClose;
+                        pendingEOF = false;
+                        pendingClose = false;
+                    }
+                }
+
+                if (data == null) {
+                    // Pass on anything that arrived after the data
+                    finish(eof, closed);
+
+                    return;
+                }
+
+                if (failed) {
+                    continue;
+                }
+
+                try {
+                    // Flush so that a piped reader is woken straight away
+                    boundOutputStream.write(data);
+                    boundOutputStream.flush();
+
+                    if (isOpen()) {
+                        adjustLocalWindow();
+                    }
+                } catch (IOException ex) {
+                    log.info(
+                        "Could not route data to the bound OutputStream; Closing channel.");
+                    log.info(ex.getMessage());
+                    failed = true;
+
+                    try {
+                        close();
+                    } catch (IOException ex1) {
+                        log.info("Failed to close the channel", ex1);
+                    }
+                }
+            }
+        }
+
+        private void finish(boolean eof, boolean closed) {
+            try {
+                if (eof) {
+                    IOChannel.super.setRemoteEOF();
+                }
+            } catch (IOException ex) {
+                log.info("Failed to set the channel to EOF", ex);
+            }
+
+            try {
+                if (closed) {
+                    IOChannel.super.remoteClose();
+                }
+            } catch (IOException ex) {
+                log.info("Failed to close the channel", ex);
+            }
+        }
+    }
 }
@@ -25,7 +25,10 @@
  */
 package com.sshtools.j2ssh.connection;
 
+import com.sshtools.j2ssh.SshThread;
 import com.sshtools.j2ssh.io.ByteArrayWriter;
+import com.sshtools.j2ssh.net.SelectionHandler;
+import com.sshtools.j2ssh.net.SelectorThread;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,22 +36,43 @@ import org.apache.commons.logging.LogFactory;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.UnknownHostException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
- *
+ * <p>
+ * A channel that forwards its data to and from a socket. Sockets that were
+ * created from a <code>java.nio.channels.SocketChannel</code> are served by a
+ * selector shared by all such channels; reading stops whilst the remote
+ * window is exhausted, and data that cannot be written immediately is queued
+ * without increasing the local window. The selector only performs socket
+ * I/O; data, EOF and window adjustments are sent on the connection by worker
+ * threads, so a connection that is slow to send does not hold up the other
+ * sockets. Other sockets are read by a thread of their own.
+ * </p>
  *
  * @author $author$
  * @version $Revision: 1.14 $
  */
 public abstract class SocketChannel extends Channel {
     private static Log log = LogFactory.getLog(SocketChannel.class);
+    private static SelectorThread selector;
 
     /**  */
     protected Socket socket = null;
     Thread thread;
+    private SelectedSocket selected;
 
     /**
      *
@@ -75,6 +99,12 @@ public abstract class SocketChannel extends Channel {
      */
     protected void onChannelData(SshMsgChannelData msg)
         throws IOException {
+        if (selected != null) {
+            selected.write(msg.getChannelData());
+
+            return;
+        }
+
         try {
             socket.getOutputStream().write(msg.getChannelData());
         } catch (IOException ex) {
@@ -87,6 +117,12 @@ public abstract class SocketChannel extends Channel {
      * @throws IOException
      */
     protected void onChannelEOF() throws IOException {
+        if (selected != null) {
+            selected.shutdownOutput();
+
+            return;
+        }
+
         try {
             //synchronized(state) {
             //if (isOpen())
@@ -107,6 +143,12 @@ public abstract class SocketChannel extends Channel {
      * @throws IOException
      */
     protected void onChannelClose() throws IOException {
+        if (selected != null) {
+            selected.close();
+
+            return;
+        }
+
         try {
             socket.close();
         } catch (IOException ex) {
@@ -126,8 +168,84 @@ public abstract class SocketChannel extends Channel {
                 "The socket must be bound to the channel before opening");
         }
 
-        thread = new Thread(new SocketReader());
-        thread.start();
+        if (socket.getChannel() != null) {
+            selected = new SelectedSocket(socket.getChannel());
+            getSelector().update(selected);
+        } else {
+            thread = new Thread(new SocketReader());
+            thread.start();
+        }
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    protected boolean isNonBlockingReceiver() {
+        // Only the selector writes without blocking
+        return selected != null;
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    protected long getBufferedDataLength() {
+        return (selected == null) ? 0 : selected.buffered;
+    }
+
+    /**
+     *
+     */
+    protected void onRemoteWindowAdjust() {
+        if (selected != null) {
+            selected.resume();
+        }
+    }
+
+    /**
+     * <p>
+     * Connects a socket that can be bound to a channel and served by the
+     * shared selector.
+     * </p>
+     *
+     * @param host the host to connect to
+     * @param port the port to connect to
+     *
+     * @return the connected socket
+     *
+     * @throws IOException if the connection fails
+     *
+     * @since 0.2.10
+     */
+    public static Socket connectSocket(String host, int port)
+        throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+
+        return java.nio.channels.SocketChannel.open(address).socket();
+    }
+
+    private static synchronized SelectorThread getSelector()
+        throws IOException {
+        if (selector == null) {
+            // Workers only exist whilst a socket has data to send
+            selector = new SelectorThread("Socket channel selector",
+                    Executors.newCachedThreadPool(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            return new SshThread(r, "Socket channel worker",
+                                true);
+                        }
+                    }));
+            selector.start();
+        }
+
+        return selector;
     }
 
     /**
@@ -196,4 +314,320 @@ public abstract class SocketChannel extends Channel {
             thread = null;
         }
     }
+
+    class SelectedSocket implements SelectionHandler {
+        private java.nio.channels.SocketChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(getMaximumPacketSize());
+        private ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+        private boolean readable = true;
+        private boolean blocked = false;
+        private boolean shutdown = false;
+        private boolean closing = false;
+        private boolean sending = false;
+        private boolean adjusting = false;
+        volatile long buffered = 0;
+
+        SelectedSocket(java.nio.channels.SocketChannel channel)
+            throws IOException {
+            this.channel = channel;
+            channel.configureBlocking(false);
+        }
+
+        public SelectableChannel getSelectableChannel() {
+            return channel;
+        }
+
+        public synchronized int getInterestOps() {
+            int ops = 0;
+
+            if (readable && !blocked && !sending) {
+                ops |= SelectionKey.OP_READ;
+            }
+
+            if (!pending.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+
+            return ops;
+        }
+
+        public void ready(int ops) {
+            if ((ops & SelectionKey.OP_WRITE) != 0) {
+                flush();
+            }
+
+            if ((ops & SelectionKey.OP_READ) != 0) {
+                read();
+            }
+        }
+
+        void write(byte[] data) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+
+            synchronized (this) {
+                if (!pending.isEmpty()) {
+                    queue(buf);
+
+                    return;
+                }
+
+                try {
+                    channel.write(buf);
+                } catch (IOException ex) {
+                    return;
+                }
+
+                if (!buf.hasRemaining()) {
+                    return;
+                }
+
+                queue(buf);
+            }
+
+            // Wait for the socket to accept the rest
+            selector.update(this);
+        }
+
+        void shutdownOutput() {
+            synchronized (this) {
+                if (!pending.isEmpty()) {
+                    shutdown = true;
+
+                    return;
+                }
+            }
+
+            try {
+                channel.socket().shutdownOutput();
+            } catch (IOException ex) {
+                log.info(
+                    "Failed to shutdown Socket OutputStream in response to EOF event: " +
+                    ex.getMessage());
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                // Deliver the data already received before closing
+                if (!pending.isEmpty()) {
+                    closing = true;
+
+                    return;
+                }
+            }
+
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.info("Failed to close socket on channel close event: " +
+                    ex.getMessage());
+            }
+
+            // Release the key of the closed channel
+            selector.wakeup();
+        }
+
+        void resume() {
+            synchronized (this) {
+                if (!blocked) {
+                    return;
+                }
+
+                blocked = false;
+            }
+
+            selector.update(this);
+        }
+
+        private void queue(ByteBuffer buf) {
+            pending.addLast(buf);
+            buffered += buf.remaining();
+        }
+
+        private void flush() {
+            boolean eof;
+            boolean close;
+
+            synchronized (this) {
+                try {
+                    while (!pending.isEmpty()) {
+                        ByteBuffer buf = pending.peekFirst();
+                        int written = channel.write(buf);
+                        buffered -= written;
+
+                        if (buf.hasRemaining()) {
+                            break;
+                        }
+
+                        pending.removeFirst();
+                    }
+                } catch (IOException ex) {
+                    // The data can no longer be delivered
+                    pending.clear();
+                    buffered = 0;
+                }
+
+                eof = shutdown && pending.isEmpty();
+
+                if (eof) {
+                    shutdown = false;
+                }
+
+                close = closing && pending.isEmpty();
+            }
+
+            if (eof) {
+                shutdownOutput();
+            }
+
+            if (close) {
+                close();
+
+                return;
+            }
+
+            synchronized (this) {
+                if (adjusting) {
+                    return;
+                }
+
+                adjusting = true;
+            }
+
+            // The data written no longer holds back the window
+            selector.execute(new Runnable() {
+                    public void run() {
+                        synchronized (SelectedSocket.this) {
+                            adjusting = false;
+                        }
+
+                        try {
+                            synchronized (state) {
+                                if (isOpen()) {
+                                    adjustLocalWindow();
+                                }
+                            }
+                        } catch (IOException ex) {
+                            log.info("Failed to adjust the channel window: " +
+                                ex.getMessage());
+                        }
+                    }
+                });
+        }
+
+        private void read() {
+            int read = fill();
+
+            if (read != 0) {
+                selector.execute(new Sender(read));
+            }
+        }
+
+        // Reads as much as the remote window allows into the buffer. Reading
+        // stops until a sender has passed the data on to the connection
+        private int fill() {
+            int read;
+
+            try {
+                synchronized (this) {
+                    // Stop reading until the remote side increases the window
+                    int space = (int) Math.min(remoteWindow.getWindowSpace(),
+                            Math.min(buffer.capacity(), getRemotePacketSize()));
+
+                    if (space <= 0) {
+                        blocked = true;
+                        sending = false;
+
+                        return 0;
+                    }
+
+                    buffer.clear();
+                    buffer.limit(space);
+                    read = channel.read(buffer);
+
+                    if (read < 0) {
+                        readable = false;
+                    }
+
+                    sending = (read != 0);
+                }
+            } catch (IOException ex) {
+                // Treat the failure as the end of the socket
+                synchronized (this) {
+                    readable = false;
+                    sending = true;
+                }
+
+                read = -1;
+            }
+
+            return read;
+        }
+
+        class Sender implements Runnable {
+            private int read;
+
+            Sender(int read) {
+                this.read = read;
+            }
+
+            public void run() {
+                while (read > 0) {
+                    byte[] data = new byte[read];
+                    buffer.flip();
+                    buffer.get(data);
+
+                    try {
+                        synchronized (state) {
+                            if (isClosed() || isLocalEOF()) {
+                                synchronized (SelectedSocket.this) {
+                                    readable = false;
+                                }
+
+                                break;
+                            }
+                        }
+
+                        sendChannelData(data);
+                    } catch (IOException ex) {
+                        // Treat the failure as the end of the socket
+                        synchronized (SelectedSocket.this) {
+                            readable = false;
+                        }
+
+                        read = -1;
+
+                        break;
+                    }
+
+                    // Carry on whilst the socket has data rather than
+                    // waiting for the selector
+                    read = fill();
+                }
+
+                if (read < 0) {
+                    try {
+                        synchronized (state) {
+                            if (!isLocalEOF()) {
+                                setLocalEOF();
+                            }
+
+                            if (isOpen()) {
+                                close();
+                            }
+                        }
+                    } catch (Exception ex) {
+                        log.info("Failed to send channel EOF message: " +
+                            ex.getMessage());
+                    }
+                }
+
+                synchronized (SelectedSocket.this) {
+                    sending = false;
+                }
+
+                selector.update(SelectedSocket.this);
+            }
+        }
+    }
 }
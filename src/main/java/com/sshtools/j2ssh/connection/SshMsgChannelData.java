@@ -32,6 +32,8 @@ import com.sshtools.j2ssh.transport.SshMessage;
 
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+
 
 /**
  *
@@ -46,6 +48,10 @@ public class SshMsgChannelData extends SshMessage {
     // The channel data
     private byte[] channelData;
 
+    // Channel data still held in buffers, copied only into the packet
+    private ByteBuffer[] channelBuffers;
+    private int channelBuffersLength;
+
     // The recipient channel id
     private long recipientChannel;
 
@@ -61,6 +67,29 @@ public class SshMsgChannelData extends SshMessage {
         this.channelData = channelData;
     }
 
+    /**
+     * <p>
+     * Creates a new SshMsgChannelData object whose data is the remaining
+     * content of the given buffers. The buffers are not copied until the
+     * message is written into the transport packet, so they must not be
+     * modified once the message has been sent.
+     * </p>
+     *
+     * @param recipientChannel
+     * @param channelBuffers
+     *
+     * @since 0.2.10
+     */
+    public SshMsgChannelData(long recipientChannel, ByteBuffer[] channelBuffers) {
+        super(SSH_MSG_CHANNEL_DATA);
+        this.recipientChannel = recipientChannel;
+        this.channelBuffers = channelBuffers;
+
+        for (int i = 0; i < channelBuffers.length; i++) {
+            channelBuffersLength += channelBuffers[i].remaining();
+        }
+    }
+
     /**
      * Creates a new SshMsgChannelData object.
      */
@@ -74,6 +103,20 @@ public class SshMsgChannelData extends SshMessage {
      * @return
      */
     public byte[] getChannelData() {
+        if ((channelData == null) && (channelBuffers != null)) {
+            byte[] data = new byte[channelBuffersLength];
+            int pos = 0;
+
+            for (int i = 0; i < channelBuffers.length; i++) {
+                ByteBuffer buf = channelBuffers[i].duplicate();
+                int len = buf.remaining();
+                buf.get(data, pos, len);
+                pos += len;
+            }
+
+            return data;
+        }
+
         return channelData;
     }
 
@@ -83,6 +126,10 @@ public class SshMsgChannelData extends SshMessage {
      * @return
      */
     public long getChannelDataLength() {
+        if (channelBuffers != null) {
+            return channelBuffersLength;
+        }
+
         return channelData.length;
     }
 
@@ -116,7 +163,15 @@ public class SshMsgChannelData extends SshMessage {
         try {
             baw.writeInt(recipientChannel);
 
-            if (channelData != null) {
+            if (channelBuffers != null) {
+                baw.writeInt(channelBuffersLength);
+
+                // Duplicates leave the buffers intact should the message
+                // be written more than once
+                for (int i = 0; i < channelBuffers.length; i++) {
+                    baw.write(channelBuffers[i].duplicate());
+                }
+            } else if (channelData != null) {
                 baw.writeBinaryString(channelData);
             } else {
                 baw.writeInt(0);
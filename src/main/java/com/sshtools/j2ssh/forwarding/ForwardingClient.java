@@ -40,6 +40,7 @@ import com.sshtools.j2ssh.connection.Channel;
 import com.sshtools.j2ssh.connection.ChannelFactory;
 import com.sshtools.j2ssh.connection.ConnectionProtocol;
 import com.sshtools.j2ssh.connection.InvalidChannelException;
+import com.sshtools.j2ssh.connection.SocketChannel;
 import com.sshtools.j2ssh.io.ByteArrayReader;
 import com.sshtools.j2ssh.io.ByteArrayWriter;
 import com.sshtools.j2ssh.util.StartStopState;
@@ -612,7 +613,7 @@ public class ForwardingClient implements ChannelFactory {
                     x11ForwardingConfiguration.getHostToConnect() + "/" +
                     x11ForwardingConfiguration.getPortToConnect());
 
-                Socket socket = new Socket(x11ForwardingConfiguration.getHostToConnect(),
+                Socket socket = SocketChannel.connectSocket(x11ForwardingConfiguration.getHostToConnect(),
                         x11ForwardingConfiguration.getPortToConnect());
 
                 // Create the channel adding it to the active channels
@@ -639,7 +640,7 @@ public class ForwardingClient implements ChannelFactory {
                 int originatingPort = (int) bar.readInt();
                 ForwardingConfiguration config = getRemoteForwardingByAddress(addressBound,
                         portBound);
-                Socket socket = new Socket(config.getHostToConnect(),
+                Socket socket = SocketChannel.connectSocket(config.getHostToConnect(),
                         config.getPortToConnect());
 
                 /*Socket socket = new Socket();
@@ -35,9 +35,12 @@ import org.apache.commons.logging.LogFactory;
 import java.io.IOException;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 
+import java.nio.channels.ServerSocketChannel;
+
 
 /**
  *
@@ -50,7 +53,7 @@ public abstract class ForwardingListener extends ForwardingConfiguration
     private static Log log = LogFactory.getLog(ForwardingListener.class);
     private ConnectionProtocol connection;
     private ServerSocket server;
-    private Thread thread;
+    private SshThread thread;
     private boolean listening;
 
     /**
@@ -137,13 +140,22 @@ public abstract class ForwardingListener extends ForwardingConfiguration
                             portToConnect, socket);
                     channel.bindSocket(socket);
 
-                    if (connection.openChannel(channel)) {
-                        log.info("Forwarding channel for '" + name +
-                            "' is open");
-                    } else {
-                        log.warn("Failed to open forwarding chanel " + name);
-                        socket.close();
-                    }
+                    // Accept the next connection while this one is opening
+                    final Socket accepted = socket;
+                    connection.openChannelAsync(channel, null).whenComplete((open, ex) -> {
+                            if ((open != null) && open.booleanValue()) {
+                                log.info("Forwarding channel for '" + name +
+                                    "' is open");
+                            } else {
+                                log.warn("Failed to open forwarding chanel " +
+                                    name, ex);
+
+                                try {
+                                    accepted.close();
+                                } catch (IOException ioe) {
+                                }
+                            }
+                        });
                 } catch (Exception ex) {
                     log.warn("Failed to open forwarding chanel " + name, ex);
 
@@ -170,7 +182,7 @@ public abstract class ForwardingListener extends ForwardingConfiguration
      * @return
      */
     public boolean isRunning() {
-        return (thread != null) && thread.isAlive();
+        return (thread != null) && thread.isRunning();
     }
 
     /**
@@ -184,8 +196,10 @@ public abstract class ForwardingListener extends ForwardingConfiguration
 
         /* Bind server socket */
         try {
-            server = new ServerSocket(getPortToBind(), 50,
-                    InetAddress.getByName(getAddressToBind()));
+            // Accepted sockets have channels that the selector can serve
+            server = ServerSocketChannel.open().socket();
+            server.bind(new InetSocketAddress(InetAddress.getByName(
+                        getAddressToBind()), getPortToBind()), 50);
         } catch (IOException ioe) {
             super.stop();
             throw ioe;
@@ -47,6 +47,18 @@ public class ByteArrayReader extends ByteArrayInputStream {
         super(data);
     }
 
+    /**
+     * Creates a new ByteArrayReader object that reads a range of an array
+     * without copying it.
+     *
+     * @param data
+     * @param offset
+     * @param len
+     */
+    public ByteArrayReader(byte[] data, int offset, int len) {
+        super(data, offset, len);
+    }
+
     /**
      *
      *
@@ -30,6 +30,10 @@ import java.io.IOException;
 
 import java.math.BigInteger;
 
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
 
 /**
  *
@@ -44,6 +48,50 @@ public class ByteArrayWriter extends ByteArrayOutputStream {
     public ByteArrayWriter() {
     }
 
+    /**
+     * Creates a new ByteArrayWriter object with an initial capacity.
+     *
+     * @param size
+     */
+    public ByteArrayWriter(int size) {
+        super(size);
+    }
+
+    /**
+     * <p>
+     * Returns the internal buffer of this writer without copying it. Only the
+     * first <code>size()</code> bytes are valid and the array is replaced
+     * whenever the writer has to grow, so callers must not hold on to it
+     * across further writes.
+     * </p>
+     *
+     * @return the internal buffer
+     */
+    public byte[] getArray() {
+        return buf;
+    }
+
+    /**
+     * <p>
+     * Writes the remaining bytes of a buffer, copying them straight into
+     * this writer. The buffer position is advanced to its limit.
+     * </p>
+     *
+     * @param src the buffer to write
+     *
+     * @since 0.2.10
+     */
+    public void write(ByteBuffer src) {
+        int len = src.remaining();
+
+        if ((count + len) > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + len));
+        }
+
+        src.get(buf, count, len);
+        count += len;
+    }
+
     /**
      *
      *
@@ -88,12 +136,7 @@ public class ByteArrayWriter extends ByteArrayOutputStream {
      * @throws IOException
      */
     public void writeInt(long i) throws IOException {
-        byte[] raw = new byte[4];
-        raw[0] = (byte) (i >> 24);
-        raw[1] = (byte) (i >> 16);
-        raw[2] = (byte) (i >> 8);
-        raw[3] = (byte) (i);
-        write(raw);
+        writeInt((int) i);
     }
 
     /**
@@ -104,12 +147,10 @@ public class ByteArrayWriter extends ByteArrayOutputStream {
      * @throws IOException
      */
     public void writeInt(int i) throws IOException {
-        byte[] raw = new byte[4];
-        raw[0] = (byte) (i >> 24);
-        raw[1] = (byte) (i >> 16);
-        raw[2] = (byte) (i >> 8);
-        raw[3] = (byte) (i);
-        write(raw);
+        write(i >> 24);
+        write(i >> 16);
+        write(i >> 8);
+        write(i);
     }
 
     /**
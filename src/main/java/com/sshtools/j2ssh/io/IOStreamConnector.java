@@ -31,21 +31,44 @@ import org.apache.commons.logging.*;
 
 import java.io.*;
 
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 import javax.swing.event.*;
 
 
 /**
+ * <p>
+ * Copies an input stream to an output stream in the background. Each
+ * connector occupies a thread for as long as it is connected; the threads
+ * are not limited in number but are reused by later connectors once a
+ * connector ends. Data is read into buffers taken from a shared pool and
+ * sized to the data arriving, and whatever has arrived is written in a
+ * single write. The output is only flushed once the input has no more data
+ * available.
+ * </p>
  *
+ * <p>
+ * Listeners are given their own copy of the data.
+ * </p>
  *
  * @author $author$
  * @version $Revision: 1.29 $
  */
 public class IOStreamConnector {
     private static Log log = LogFactory.getLog(IOStreamConnector.class);
+    private static final int MINIMUM_BUFFER = 1024;
+    private static final int MAXIMUM_BUFFER = 32768;
+    private static final int POOLED_BUFFERS = 64;
+
+    // Free buffers for each power of two size from the minimum to maximum
+    private static ArrayDeque<byte[]>[] buffers = newBufferPool();
+    private static ExecutorService executor;
     private IOStreamConnectorState state = new IOStreamConnectorState();
     private InputStream in = null;
     private OutputStream out = null;
-    private Thread thread;
     private long bytes;
     private boolean closeInput = true;
     private boolean closeOutput = true;
@@ -94,8 +117,6 @@ public class IOStreamConnector {
         if (closeOutput) {
             out.close();
         }
-
-        thread = null;
     }
 
     /**
@@ -127,9 +148,7 @@ public class IOStreamConnector {
         this.out = out;
         log.info("Connecting InputStream to OutputStream");
         state.setValue(IOStreamConnectorState.CONNECTED);
-        thread = new SshThread(new IOStreamConnectorThread(),
-                "IOStream connector", true);
-        thread.start();
+        getExecutor().execute(new IOStreamConnectorThread());
     }
 
     /**
@@ -159,67 +178,141 @@ public class IOStreamConnector {
         listenerList.remove(IOStreamConnectorListener.class, l);
     }
 
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            // A connector blocks in its input until it ends, so a bounded
+            // pool could leave connectors waiting for each other
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            return new SshThread(r, "IOStream connector", true);
+                        }
+                    });
+        }
+
+        return executor;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<byte[]>[] newBufferPool() {
+        ArrayDeque<byte[]>[] pool = new ArrayDeque[Integer.numberOfTrailingZeros(MAXIMUM_BUFFER /
+                MINIMUM_BUFFER) + 1];
+
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = new ArrayDeque<byte[]>();
+        }
+
+        return pool;
+    }
+
+    private static byte[] getBuffer(int size) {
+        ArrayDeque<byte[]> pool = buffers[Integer.numberOfTrailingZeros(size / MINIMUM_BUFFER)];
+
+        synchronized (pool) {
+            byte[] buffer = pool.pollFirst();
+
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+
+        return new byte[size];
+    }
+
+    private static void releaseBuffer(byte[] buffer) {
+        ArrayDeque<byte[]> pool = buffers[Integer.numberOfTrailingZeros(buffer.length / MINIMUM_BUFFER)];
+
+        synchronized (pool) {
+            if (pool.size() < POOLED_BUFFERS) {
+                pool.addFirst(buffer);
+            }
+        }
+    }
+
     class IOStreamConnectorThread implements Runnable {
         private Log log = LogFactory.getLog(IOStreamConnectorThread.class);
 
         public void run() {
-            byte[] buffer = new byte[4096];
+            byte[] buffer = getBuffer(MINIMUM_BUFFER);
             int read = 0;
             int count;
             int available;
             log.info("Starting IOStreamConnectorThread thread");
 
-            while (state.getValue() == IOStreamConnectorState.CONNECTED) {
-                try {
-                    // Block
-                    read = in.read(buffer, 0, 1);
-
-                    if (read > 0) {
-                        count = read;
-                        available = in.available();
-
-                        // Verify the buffer length and adjust if necersary
-                        if ((available > 0) &&
-                                ((buffer.length - 1) < available)) {
-                            byte[] tmp = new byte[available + 1];
-                            System.arraycopy(buffer, 0, tmp, 0, 1);
-                            buffer = tmp;
-                        }
-
-                        // Read the remaining available bytes of the message
-                        if (available > 0) {
-                            read = in.read(buffer, 1, available);
-                            count += read;
-                        }
-
-                        // Write the message to the output stream
-                        out.write(buffer, 0, count);
-                        bytes += count;
-
-                        // Flush it
-                        out.flush();
-
-                        // Inform all of the listeners
-                        IOStreamConnectorListener[] l = (IOStreamConnectorListener[]) listenerList.getListeners(IOStreamConnectorListener.class);
-
-                        for (int i = (l.length - 1); i >= 0; i--) {
-                            l[i].data(buffer, count);
+            try {
+                while (state.getValue() == IOStreamConnectorState.CONNECTED) {
+                    try {
+                        // Block until some data arrives
+                        read = in.read(buffer, 0, buffer.length);
+
+                        if (read > 0) {
+                            count = read;
+
+                            // Add whatever else has already arrived
+                            while ((count < buffer.length) &&
+                                    ((available = in.available()) > 0)) {
+                                read = in.read(buffer, count,
+                                        Math.min(available,
+                                            buffer.length - count));
+
+                                if (read <= 0) {
+                                    break;
+                                }
+
+                                count += read;
+                            }
+
+                            // Write the data to the output stream
+                            out.write(buffer, 0, count);
+                            bytes += count;
+
+                            // Flush it once the input has drained
+                            if ((read < 0) || (in.available() == 0)) {
+                                out.flush();
+                            }
+
+                            // Inform all of the listeners, the buffer goes
+                            // back to the pool so they get a copy
+                            IOStreamConnectorListener[] l = (IOStreamConnectorListener[]) listenerList.getListeners(IOStreamConnectorListener.class);
+
+                            if (l.length > 0) {
+                                byte[] data = new byte[count];
+                                System.arraycopy(buffer, 0, data, 0, count);
+
+                                for (int i = (l.length - 1); i >= 0; i--) {
+                                    l[i].data(data, count);
+                                }
+                            }
+
+                            if (read < 0) {
+                                state.setValue(IOStreamConnectorState.EOF);
+                            } else if ((count == buffer.length) &&
+                                    (buffer.length < MAXIMUM_BUFFER)) {
+                                // Read more at a time whilst the buffer fills
+                                releaseBuffer(buffer);
+                                buffer = getBuffer(buffer.length * 2);
+                            } else if ((count < (buffer.length / 4)) &&
+                                    (buffer.length > MINIMUM_BUFFER)) {
+                                releaseBuffer(buffer);
+                                buffer = getBuffer(buffer.length / 2);
+                            }
+                        } else {
+                            log.debug("Blocking read returned with " +
+                                String.valueOf(read));
+
+                            if (read < 0) {
+                                state.setValue(IOStreamConnectorState.EOF);
+                            }
                         }
-                    } else {
-                        log.debug("Blocking read returned with " +
-                            String.valueOf(read));
-
-                        if (read < 0) {
+                    } catch (IOException ioe) {
+                        // only warn if were supposed to be still connected, as we will ignore close exceptions
+                        if (state.getValue() == IOStreamConnectorState.CONNECTED) {
+                            log.debug(ioe.getMessage());
                             state.setValue(IOStreamConnectorState.EOF);
                         }
                     }
-                } catch (IOException ioe) {
-                    // only warn if were supposed to be still connected, as we will ignore close exceptions
-                    if (state.getValue() == IOStreamConnectorState.CONNECTED) {
-                        log.debug(ioe.getMessage());
-                        state.setValue(IOStreamConnectorState.EOF);
-                    }
                 }
+            } finally {
+                releaseBuffer(buffer);
             }
 
             try {
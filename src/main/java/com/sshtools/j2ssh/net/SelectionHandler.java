@@ -0,0 +1,73 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.net;
+
+import java.nio.channels.SelectableChannel;
+
+
+/**
+ * <p>
+ * A non-blocking channel served by a <code>SelectorThread</code>. The
+ * selector registers the channel with the interest returned by the handler
+ * whenever the handler asks it to update, and passes readiness events back
+ * to the handler on the selector thread.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public interface SelectionHandler {
+    /**
+     * <p>
+     * Returns the channel to select.
+     * </p>
+     *
+     * @return the channel, which must be in non-blocking mode
+     */
+    public SelectableChannel getSelectableChannel();
+
+    /**
+     * <p>
+     * Returns the operations the handler is currently interested in.
+     * </p>
+     *
+     * @return a set of <code>SelectionKey</code> operation bits
+     */
+    public int getInterestOps();
+
+    /**
+     * <p>
+     * Called on the selector thread when the channel is ready for some of the
+     * operations of interest, or with no operations when the channel could
+     * not be registered because it has been closed.
+     * </p>
+     *
+     * @param readyOps the operations that are ready
+     */
+    public void ready(int readyOps);
+}
@@ -0,0 +1,228 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.net;
+
+import com.sshtools.j2ssh.SshThread;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+
+/**
+ * <p>
+ * Performs readiness selection for a set of <code>SelectionHandler</code>s,
+ * such as <code>SocketChannelTransportProvider</code> connections. Interest
+ * in reading or writing is only ever changed on this thread; handlers queue
+ * their changes and wake the selector.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public class SelectorThread extends SshThread {
+    private static Log log = LogFactory.getLog(SelectorThread.class);
+    private Selector selector;
+    private Executor executor;
+    private Set<SelectionHandler> updates = new LinkedHashSet<SelectionHandler>();
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new SelectorThread object.
+     *
+     * @param name the thread name
+     * @param executor executes the tasks of providers that become readable
+     *
+     * @throws IOException
+     */
+    public SelectorThread(String name, Executor executor)
+        throws IOException {
+        super(name, true);
+        this.executor = executor;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Creates a new SelectorThread object for handlers that do their work in
+     * <code>ready</code> and have no tasks to execute.
+     *
+     * @param name the thread name
+     *
+     * @throws IOException
+     */
+    public SelectorThread(String name) throws IOException {
+        this(name, null);
+    }
+
+    /**
+     * The selector blocks in a native call, so it keeps a platform thread
+     * of its own.
+     *
+     * @return
+     */
+    protected boolean isFactoryThread() {
+        return false;
+    }
+
+    /**
+     *
+     */
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                processUpdates();
+
+                for (Iterator<SelectionKey> it = selector.selectedKeys()
+                                                         .iterator();
+                        it.hasNext();) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    SelectionHandler handler = (SelectionHandler) key.attachment();
+
+                    try {
+                        handler.ready(key.readyOps());
+                        key.interestOps(handler.getInterestOps());
+                    } catch (CancelledKeyException ex) {
+                        // The handler was closed whilst we were selecting
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            if (running) {
+                log.error("The selector failed", ex);
+            }
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Stops the selector. Connections registered with it are left open.
+     * </p>
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * <p>
+     * Registers the handler's channel, or updates its interest, on the
+     * selector thread.
+     * </p>
+     *
+     * @param handler the handler to update
+     */
+    public void update(SelectionHandler handler) {
+        synchronized (updates) {
+            updates.add(handler);
+        }
+
+        selector.wakeup();
+    }
+
+    /**
+     * <p>
+     * Wakes the selector so that the keys of closed channels are released.
+     * </p>
+     */
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * <p>
+     * Executes a task for a handler so that work that can block is kept off
+     * the selector thread.
+     * </p>
+     *
+     * @param task the task to execute
+     */
+    public void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            log.debug("Task rejected as the server is shutting down");
+        }
+    }
+
+    private void processUpdates() {
+        SelectionHandler[] pending;
+
+        synchronized (updates) {
+            if (updates.isEmpty()) {
+                return;
+            }
+
+            pending = updates.toArray(new SelectionHandler[updates.size()]);
+            updates.clear();
+        }
+
+        for (int i = 0; i < pending.length; i++) {
+            SelectionHandler handler = pending[i];
+            SelectableChannel channel = handler.getSelectableChannel();
+            SelectionKey key = channel.keyFor(selector);
+
+            try {
+                if (key == null) {
+                    channel.register(selector, handler.getInterestOps(),
+                        handler);
+                } else if (key.isValid()) {
+                    key.interestOps(handler.getInterestOps());
+                }
+            } catch (ClosedChannelException ex) {
+                handler.ready(0);
+            } catch (CancelledKeyException ex) {
+                handler.ready(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * <p>
+ * Provides the transport protocol with a connection over a non-blocking
+ * <code>SocketChannel</code>. The streams returned wait for readiness events
+ * from a <code>SelectorThread</code> rather than blocking in the socket, and
+ * the transport protocol may hand its message loop back to the selector
+ * whilst the connection is idle.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public class SocketChannelTransportProvider
+    implements SelectableTransportProvider, SelectionHandler {
+    private static final int READ_AHEAD = 16384;
+    private SocketChannel channel;
+    private SelectorThread selector;
+    private Object lock = new Object();
+    private int interest = 0;
+    private int ready = 0;
+    private boolean closed = false;
+    private Runnable readTask;
+    private InputStream in = new ChannelInputStream();
+    private OutputStream out = new ChannelOutputStream();
+
+    /**
+     * Creates a new SocketChannelTransportProvider object.
+     *
+     * @param channel a connected channel
+     * @param selector the selector to register the channel with
+     *
+     * @throws IOException
+     */
+    public SocketChannelTransportProvider(SocketChannel channel,
+        SelectorThread selector) throws IOException {
+        this.channel = channel;
+        this.selector = selector;
+        channel.configureBlocking(false);
+        selector.update(this);
+    }
+
+    /**
+     *
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            readTask = null;
+            lock.notifyAll();
+        }
+
+        channel.close();
+
+        // The socket is not released until the selector deregisters it
+        selector.wakeup();
+    }
+
+    /**
+     *
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    public InputStream getInputStream() throws IOException {
+        return in;
+    }
+
+    /**
+     *
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    public OutputStream getOutputStream() throws IOException {
+        return out;
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public String getProviderDetail() {
+        return channel.socket().toString();
+    }
+
+    /**
+     *
+     *
+     * @param task
+     *
+     * @throws IOException
+     */
+    public void resumeWhenReadable(Runnable task) throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("The socket is closed");
+            }
+
+            readTask = task;
+            interest |= SelectionKey.OP_READ;
+        }
+
+        selector.update(this);
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public SelectableChannel getSelectableChannel() {
+        return channel;
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public int getInterestOps() {
+        synchronized (lock) {
+            return interest;
+        }
+    }
+
+    /**
+     *
+     *
+     * @param ops
+     */
+    public void ready(int ops) {
+        Runnable task = null;
+
+        synchronized (lock) {
+            interest &= ~ops;
+            ready |= ops;
+
+            if (((ops & SelectionKey.OP_READ) != 0) && (readTask != null)) {
+                task = readTask;
+                readTask = null;
+            }
+
+            lock.notifyAll();
+        }
+
+        if (task != null) {
+            selector.execute(task);
+        }
+    }
+
+    private void await(int op) throws IOException {
+        synchronized (lock) {
+            ready &= ~op;
+            interest |= op;
+            selector.update(this);
+
+            try {
+                while (((ready & op) == 0) && !closed) {
+                    lock.wait();
+                }
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException(
+                    "Interrupted whilst waiting for the socket");
+            }
+
+            if (closed) {
+                throw new IOException("The socket is closed");
+            }
+        }
+    }
+
+    class ChannelInputStream extends InputStream {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_AHEAD);
+
+        ChannelInputStream() {
+            buffer.flip();
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+
+            return (read(b, 0, 1) < 0) ? (-1) : (b[0] & 0xFF);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (!buffer.hasRemaining()) {
+                int read;
+
+                if (len >= READ_AHEAD) {
+                    // Large reads bypass the read ahead buffer
+                    read = channel.read(ByteBuffer.wrap(b, off, len));
+
+                    if (read != 0) {
+                        return read;
+                    }
+                } else if ((read = fill()) < 0) {
+                    return -1;
+                }
+
+                if (read == 0) {
+                    await(SelectionKey.OP_READ);
+                }
+            }
+
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+
+            return count;
+        }
+
+        public int available() throws IOException {
+            if (!buffer.hasRemaining() && !closed) {
+                // Look for data without blocking
+                fill();
+            }
+
+            return buffer.remaining();
+        }
+
+        public void close() throws IOException {
+            SocketChannelTransportProvider.this.close();
+        }
+
+        private int fill() throws IOException {
+            buffer.clear();
+
+            int read = channel.read(buffer);
+            buffer.flip();
+
+            return read;
+        }
+    }
+
+    class ChannelOutputStream extends OutputStream {
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0) {
+                    await(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        public void close() throws IOException {
+            SocketChannelTransportProvider.this.close();
+        }
+    }
+}
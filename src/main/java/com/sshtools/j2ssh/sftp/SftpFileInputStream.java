@@ -29,16 +29,46 @@ import com.sshtools.j2ssh.io.*;
 
 import java.io.*;
 
+import java.math.BigInteger;
+
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+
 
 /**
+ * <p>
+ * Reads a remote file through a pipeline of SSH_FXP_READ requests. Several
+ * requests are kept outstanding on the handle so that the transfer is not
+ * bound to one round trip per block; the replies are matched by request id
+ * and returned to the caller in offset order.
+ * </p>
  *
+ * <p>
+ * Like the OpenSSH sftp client the pipeline starts with a single request and
+ * grows by one for every full block received, up to the limit set with
+ * <code>SftpSubsystemClient.setMaxOutstandingRequests</code>, so the depth
+ * settles where the round trip time and the channel window allow.
+ * </p>
  *
  * @author $author$
  * @version $Revision: 1.16 $
  */
 public class SftpFileInputStream extends InputStream {
+    /**
+     * The size of each read request
+     *
+     * @since 0.2.10
+     */
+    public static final int BLOCK_SIZE = 32768;
     SftpFile file;
     UnsignedInteger64 position = new UnsignedInteger64("0");
+    private LinkedList<ReadRequest> outstanding = new LinkedList<ReadRequest>();
+    private long nextOffset = 0;
+    private int maxRequests;
+    private int requests = 1;
+    private boolean eof = false;
+    private byte[] block;
+    private int blockPos;
 
     /**
      * Creates a new SftpFileInputStream object.
@@ -58,6 +88,7 @@ public class SftpFileInputStream extends InputStream {
         }
 
         this.file = file;
+        this.maxRequests = file.getSFTPSubsystem().getMaxOutstandingRequests();
     }
 
     /**
@@ -73,14 +104,22 @@ public class SftpFileInputStream extends InputStream {
      */
     public int read(byte[] buffer, int offset, int len)
         throws IOException {
-        int read = file.getSFTPSubsystem().readFile(file.getHandle(), position,
-                buffer, offset, len);
+        if (len == 0) {
+            return 0;
+        }
 
-        if (read > 0) {
-            position = UnsignedInteger64.add(position, read);
+        while ((block == null) || (blockPos == block.length)) {
+            if (!nextBlock()) {
+                return -1;
+            }
         }
 
-        return read;
+        int count = Math.min(len, block.length - blockPos);
+        System.arraycopy(block, blockPos, buffer, offset, count);
+        blockPos += count;
+        position = UnsignedInteger64.add(position, count);
+
+        return count;
     }
 
     /**
@@ -92,20 +131,35 @@ public class SftpFileInputStream extends InputStream {
      */
     public int read() throws java.io.IOException {
         byte[] buffer = new byte[1];
-        int read = file.getSFTPSubsystem().readFile(file.getHandle(), position,
-                buffer, 0, 1);
-        position = UnsignedInteger64.add(position, read);
+
+        if (read(buffer, 0, 1) == -1) {
+            return -1;
+        }
 
         return buffer[0] & 0xFF;
     }
 
+    /**
+     *
+     *
+     * @return
+     */
+    public int available() {
+        return (block == null) ? 0 : (block.length - blockPos);
+    }
+
     /**
      *
      *
      * @throws IOException
      */
     public void close() throws IOException {
-        file.close();
+        try {
+            // Collect the replies to any reads still in flight
+            drain();
+        } finally {
+            file.close();
+        }
     }
 
     /**
@@ -118,4 +172,72 @@ public class SftpFileInputStream extends InputStream {
             close();
         }
     }
+
+    private boolean nextBlock() throws IOException {
+        while (!eof && (outstanding.size() < requests)) {
+            postRequest(nextOffset, BLOCK_SIZE, false);
+            nextOffset += BLOCK_SIZE;
+        }
+
+        if (outstanding.isEmpty()) {
+            return false;
+        }
+
+        ReadRequest request = outstanding.removeFirst();
+        byte[] data = SftpSubsystemClient.await(request.reply);
+
+        if (data == null) {
+            // Anything requested beyond this point is also past the end
+            eof = true;
+            drain();
+
+            return false;
+        }
+
+        if (data.length < request.length) {
+            // A short read; request the remainder before any later block
+            postRequest(request.offset + data.length,
+                request.length - data.length, true);
+        } else if (requests < maxRequests) {
+            requests++;
+        }
+
+        block = data;
+        blockPos = 0;
+
+        return true;
+    }
+
+    private void postRequest(long offset, int length, boolean first)
+        throws IOException {
+        ReadRequest request = new ReadRequest();
+        request.offset = offset;
+        request.length = length;
+        request.reply = file.getSFTPSubsystem().readFileAsync(file,
+                new UnsignedInteger64(BigInteger.valueOf(offset)), length);
+
+        if (first) {
+            outstanding.addFirst(request);
+        } else {
+            outstanding.addLast(request);
+        }
+    }
+
+    private void drain() throws IOException {
+        eof = true;
+
+        while (!outstanding.isEmpty()) {
+            try {
+                SftpSubsystemClient.await(outstanding.removeFirst().reply);
+            } catch (IOException ex) {
+                // The transfer is over; only the reply matters, not its result
+            }
+        }
+    }
+
+    class ReadRequest {
+        CompletableFuture<byte[]> reply;
+        long offset;
+        int length;
+    }
 }
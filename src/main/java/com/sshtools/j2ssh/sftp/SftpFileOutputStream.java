@@ -29,16 +29,40 @@ import com.sshtools.j2ssh.io.*;
 
 import java.io.*;
 
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+
 
 /**
+ * <p>
+ * Writes a remote file through a pipeline of SSH_FXP_WRITE requests. Up to
+ * <code>SftpSubsystemClient.getMaxOutstandingRequests</code> writes are sent
+ * before the oldest acknowledgement is waited for, so an upload is not bound
+ * to one round trip per block.
+ * </p>
  *
+ * <p>
+ * Because writes are acknowledged later, a failed write is reported by the
+ * next call to <code>write</code>, <code>flush</code> or <code>close</code>.
+ * <code>flush</code> waits until every outstanding write has been
+ * acknowledged.
+ * </p>
  *
  * @author $author$
  * @version $Revision: 1.17 $
  */
 public class SftpFileOutputStream extends OutputStream {
+    /**
+     * The largest amount of data sent in a single write request
+     *
+     * @since 0.2.10
+     */
+    public static final int BLOCK_SIZE = 32768;
     SftpFile file;
     UnsignedInteger64 position = new UnsignedInteger64("0");
+    private LinkedList<CompletableFuture<Void>> outstanding = new LinkedList<CompletableFuture<Void>>();
+    private int maxRequests;
+    private IOException error;
 
     /**
      * Creates a new SftpFileOutputStream object.
@@ -58,6 +82,7 @@ public class SftpFileOutputStream extends OutputStream {
         }
 
         this.file = file;
+        this.maxRequests = file.getSFTPSubsystem().getMaxOutstandingRequests();
     }
 
     /**
@@ -73,15 +98,19 @@ public class SftpFileOutputStream extends OutputStream {
         throws IOException {
         int pos = 0;
         int count;
-        int available;
-        int max = (int) file.getSFTPSubsystem().maximumPacketSize();
 
         while (pos < len) {
-            available = ((int) file.getSFTPSubsystem().availableWindowSpace() < max)
-                ? (int) file.getSFTPSubsystem().availableWindowSpace() : max;
-            count = (available < (len - pos)) ? available : (len - pos);
-            file.getSFTPSubsystem().writeFile(file.getHandle(), position,
-                buffer, offset + pos, count);
+            checkError();
+
+            // Keep the pipeline bounded by collecting the oldest ack first
+            if (outstanding.size() >= maxRequests) {
+                collect();
+                checkError();
+            }
+
+            count = Math.min(BLOCK_SIZE, len - pos);
+            outstanding.addLast(file.getSFTPSubsystem().writeFileAsync(file,
+                    position, buffer, offset + pos, count));
             position = UnsignedInteger64.add(position, count);
             pos += count;
         }
@@ -97,9 +126,20 @@ public class SftpFileOutputStream extends OutputStream {
     public void write(int b) throws IOException {
         byte[] buffer = new byte[1];
         buffer[0] = (byte) b;
-        file.getSFTPSubsystem().writeFile(file.getHandle(), position, buffer,
-            0, 1);
-        position = UnsignedInteger64.add(position, 1);
+        write(buffer, 0, 1);
+    }
+
+    /**
+     * Waits for all outstanding writes to be acknowledged.
+     *
+     * @throws IOException if any of the writes failed
+     */
+    public void flush() throws IOException {
+        while (!outstanding.isEmpty()) {
+            collect();
+        }
+
+        checkError();
     }
 
     /**
@@ -108,7 +148,11 @@ public class SftpFileOutputStream extends OutputStream {
      * @throws IOException
      */
     public void close() throws IOException {
-        file.close();
+        try {
+            flush();
+        } finally {
+            file.close();
+        }
     }
 
     /**
@@ -121,4 +165,23 @@ public class SftpFileOutputStream extends OutputStream {
             close();
         }
     }
+
+    private void collect() {
+        CompletableFuture<Void> reply = outstanding.removeFirst();
+
+        try {
+            SftpSubsystemClient.await(reply);
+        } catch (IOException ex) {
+            // Report the first failure; later writes depend on it anyway
+            if (error == null) {
+                error = ex;
+            }
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
 }
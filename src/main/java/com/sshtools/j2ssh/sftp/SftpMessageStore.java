@@ -25,6 +25,14 @@
  */
 package com.sshtools.j2ssh.sftp;
 
+import java.io.IOException;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -34,9 +42,21 @@ import com.sshtools.j2ssh.subsystem.SubsystemMessageStore;
 import com.sshtools.j2ssh.util.OpenClosedState;
 
 
+/**
+ * <p>
+ * Dispatches SFTP replies to the requests that are waiting for them. Each
+ * outstanding request id has a future which is completed by the thread that
+ * delivers the reply, so any number of requests may be in flight on one
+ * channel and replies may arrive in any order. Replies to request ids that
+ * are not waited for are dropped. Messages without a request id, such as
+ * SSH_FXP_VERSION, are queued as before.
+ * </p>
+ */
 class SftpMessageStore extends SubsystemMessageStore {
     /**  */
     public static Log log = LogFactory.getLog(SftpMessageStore.class);
+    private Map<UnsignedInteger32, CompletableFuture<SubsystemMessage>> replies =
+        new ConcurrentHashMap<UnsignedInteger32, CompletableFuture<SubsystemMessage>>();
 
     /**
      * Creates a new SftpMessageStore object.
@@ -47,30 +67,87 @@ class SftpMessageStore extends SubsystemMessageStore {
     /**
      *
      *
+     * @param msg
+     */
+    public void addMessage(SubsystemMessage msg) {
+        if (msg instanceof MessageRequestId) {
+            if (log.isDebugEnabled()) {
+                log.debug("Received " + msg.getMessageName() +
+                    " subsystem message");
+            }
+
+            UnsignedInteger32 id = ((MessageRequestId) msg).getId();
+            CompletableFuture<SubsystemMessage> reply = replies.remove(id);
+
+            if (reply != null) {
+                reply.complete(msg);
+            } else {
+                log.warn("Dropping " + msg.getMessageName() +
+                    " for unknown request id " + id.toString());
+            }
+        } else {
+            super.addMessage(msg);
+        }
+    }
+
+    /**
+     * Returns the future that completes with the reply to a request. It must
+     * be called before the request is sent, and only once per request.
+     * The future fails with an <code>IOException</code> if the store is
+     * closed first.
+     *
      * @param requestId
      *
      * @return
      *
-     * @throws InterruptedException
+     * @since 0.2.10
      */
-    public synchronized SubsystemMessage getMessage(UnsignedInteger32 requestId)
-            throws InterruptedException {
-
-        // If there ae no messages available then wait untill there are.
-        while (getState().getValue() == OpenClosedState.OPEN) {
-            for (final SubsystemMessage msg : messages) {
-                if (msg instanceof MessageRequestId) {
-                    if (((MessageRequestId) msg).getId().equals(requestId)) {
-                        messages.remove(msg);
-                        return msg;
-                    }
-                }
-            }
+    public CompletableFuture<SubsystemMessage> getReply(
+        UnsignedInteger32 requestId) {
+        CompletableFuture<SubsystemMessage> reply = replies.computeIfAbsent(requestId,
+                k -> new CompletableFuture<SubsystemMessage>());
 
-            log.debug("Waiting for new messages");
-            wait(5000);
+        if (getState().getValue() != OpenClosedState.OPEN) {
+            reply.completeExceptionally(new IOException(
+                    "The SFTP channel has been closed"));
         }
 
-        return null;
+        // A reply removes the future itself; forget it too if it is failed
+        // or cancelled instead
+        reply.whenComplete((msg, ex) -> replies.remove(requestId, reply));
+
+        return reply;
+    }
+
+    /**
+     *
+     *
+     * @param requestId
+     *
+     * @return
+     *
+     * @throws InterruptedException
+     */
+    public SubsystemMessage getMessage(UnsignedInteger32 requestId)
+        throws InterruptedException {
+        try {
+            return getReply(requestId).get();
+        } catch (ExecutionException ex) {
+            return null;
+        }
+    }
+
+    /**
+     *
+     */
+    public synchronized void close() {
+        super.close();
+
+        for (Iterator<CompletableFuture<SubsystemMessage>> it = replies.values()
+                                                                     .iterator();
+                it.hasNext();) {
+            it.next().completeExceptionally(new IOException(
+                    "The SFTP channel has been closed"));
+        }
     }
 }
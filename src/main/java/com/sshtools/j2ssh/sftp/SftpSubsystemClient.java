@@ -27,8 +27,13 @@ package com.sshtools.j2ssh.sftp;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,7 +48,20 @@ import com.sshtools.j2ssh.transport.MessageStoreEOFException;
 
 
 /**
+ * <p>
+ * The SFTP protocol client. Requests are multiplexed over the channel by
+ * their request id, so any number of threads may use the same instance at
+ * once; each caller only waits for its own reply.
+ * </p>
  *
+ * <p>
+ * The methods ending in <code>Async</code> send their request and return a
+ * <code>CompletableFuture</code> for the result without blocking. The futures
+ * are completed by the thread that reads the channel, so actions chained on
+ * them must not block; use the <code>...Async</code> forms of the
+ * <code>CompletableFuture</code> methods for work that calls back into this
+ * client synchronously.
+ * </p>
  *
  * @author $author$
  * @version $Revision: 1.38 $
@@ -79,12 +97,20 @@ public class SftpSubsystemClient extends SubsystemChannel {
     /**  */
     public static final int VERSION_4 = 4;
 
+    /**
+     * The default number of requests kept in flight per file handle
+     *
+     * @since 0.2.10
+     */
+    public static final int DEFAULT_MAX_OUTSTANDING_REQUESTS = 64;
+
     /* Private variables */
     private static Log log = LogFactory.getLog(SftpSubsystemClient.class);
-    private List<byte[]> handles = new ArrayList<byte[]>();
-    private UnsignedInteger32 nextRequestId = new UnsignedInteger32(1);
+    private List<byte[]> handles = Collections.synchronizedList(new ArrayList<byte[]>());
+    private AtomicLong nextRequestId = new AtomicLong(1);
     private int version = VERSION_3;
     private SftpMessageStore messageStore;
+    private int maxOutstandingRequests = DEFAULT_MAX_OUTSTANDING_REQUESTS;
 
     /**
      * Creates a new SftpSubsystemClient object.
@@ -130,10 +156,13 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    protected synchronized void closeHandle(byte[] handle)
-        throws IOException {
+    protected void closeHandle(byte[] handle) throws IOException {
+        await(closeHandleAsync(handle));
+    }
+
+    private CompletableFuture<Void> closeHandleAsync(byte[] handle) {
         if (!isValidHandle(handle)) {
-            throw new IOException("The handle is invalid!");
+            return failed(new IOException("The handle is invalid!"));
         }
 
         // We will remove the handle first so that even if an excpetion occurs
@@ -141,9 +170,9 @@ public class SftpSubsystemClient extends SubsystemChannel {
         handles.remove(handle);
 
         UnsignedInteger32 requestId = nextRequestId();
-        SshFxpClose msg = new SshFxpClose(requestId, handle);
-        sendMessage(msg);
-        getOKRequestStatus(requestId);
+
+        return request(new SshFxpClose(requestId, handle), requestId,
+            SftpSubsystemClient::checkStatus);
     }
 
     /**
@@ -157,6 +186,19 @@ public class SftpSubsystemClient extends SubsystemChannel {
         closeHandle(file.getHandle());
     }
 
+    /**
+     *
+     *
+     * @param file
+     *
+     * @return
+     *
+     * @since 0.2.10
+     */
+    public CompletableFuture<Void> closeFileAsync(SftpFile file) {
+        return closeHandleAsync(file.getHandle());
+    }
+
     /**
      *
      *
@@ -178,7 +220,7 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    public synchronized int listChildren(SftpFile file, List<SftpFile> children)
+    public int listChildren(SftpFile file, List<SftpFile> children)
         throws IOException {
         if (file.isDirectory()) {
             if (!isValidHandle(file.getHandle())) {
@@ -193,39 +235,32 @@ public class SftpSubsystemClient extends SubsystemChannel {
         }
 
         UnsignedInteger32 requestId = nextRequestId();
-        SshFxpReadDir msg = new SshFxpReadDir(requestId, file.getHandle());
-        sendMessage(msg);
-
-        try {
-            SubsystemMessage reply = messageStore.getMessage(requestId);
-
-            if (reply instanceof SshFxpName) {
-                SshFxpName names = (SshFxpName) reply;
-                SftpFile[] files = names.getFiles();
-                SftpFile f;
-
-                for (int i = 0; i < files.length; i++) {
-                    f = new SftpFile(file.getAbsolutePath() + "/" +
-                            files[i].getFilename(), files[i].getAttributes());
-                    f.setSFTPSubsystem(this);
-                    children.add(f);
-                }
+        SubsystemMessage reply = await(request(new SshFxpReadDir(requestId,
+                        file.getHandle()), requestId, r -> r));
+
+        if (reply instanceof SshFxpName) {
+            SshFxpName names = (SshFxpName) reply;
+            SftpFile[] files = names.getFiles();
+            SftpFile f;
+
+            for (int i = 0; i < files.length; i++) {
+                f = new SftpFile(file.getAbsolutePath() + "/" +
+                        files[i].getFilename(), files[i].getAttributes());
+                f.setSFTPSubsystem(this);
+                children.add(f);
+            }
 
-                return files.length;
-            } else if (reply instanceof SshFxpStatus) {
-                SshFxpStatus status = (SshFxpStatus) reply;
+            return files.length;
+        } else if (reply instanceof SshFxpStatus) {
+            SshFxpStatus status = (SshFxpStatus) reply;
 
-                if (status.getErrorCode().intValue() == SshFxpStatus.STATUS_FX_EOF) {
-                    return -1;
-                } else {
-                    throw new IOException(status.getErrorMessage());
-                }
+            if (status.getErrorCode().intValue() == SshFxpStatus.STATUS_FX_EOF) {
+                return -1;
             } else {
-                throw new IOException("Unexpected server response " +
-                    reply.getMessageName());
+                throw new IOException(status.getErrorMessage());
             }
-        } catch (InterruptedException ex) {
-            throw new IOException("The thread was interrupted");
+        } else {
+            throw unexpected(reply);
         }
     }
 
@@ -236,12 +271,24 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    public synchronized void makeDirectory(String path)
-        throws IOException {
+    public void makeDirectory(String path) throws IOException {
+        await(makeDirectoryAsync(path));
+    }
+
+    /**
+     *
+     *
+     * @param path
+     *
+     * @return
+     *
+     * @since 0.2.10
+     */
+    public CompletableFuture<Void> makeDirectoryAsync(String path) {
         UnsignedInteger32 requestId = nextRequestId();
-        SshFxpMkdir msg = new SshFxpMkdir(requestId, path, new FileAttributes());
-        sendMessage(msg);
-        getOKRequestStatus(requestId);
+
+        return request(new SshFxpMkdir(requestId, path, new FileAttributes()),
+            requestId, SftpSubsystemClient::checkStatus);
     }
 
     /**
@@ -298,37 +345,24 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    public synchronized SftpFile openDirectory(String path)
-        throws IOException {
+    public SftpFile openDirectory(String path) throws IOException {
         String absolutePath = getAbsolutePath(path);
-        UnsignedInteger32 requestId = nextRequestId();
-        SubsystemMessage msg = new SshFxpOpenDir(requestId, absolutePath);
-        sendMessage(msg);
 
-        byte[] handle = getHandleResponse(requestId);
+        // Send the open and the stat together rather than one after the other
+        UnsignedInteger32 requestId = nextRequestId();
+        CompletableFuture<byte[]> handle = request(new SshFxpOpenDir(
+                    requestId, absolutePath), requestId, this::handleReply);
         requestId = nextRequestId();
-        msg = new SshFxpStat(requestId, absolutePath);
-        sendMessage(msg);
 
-        try {
-            SubsystemMessage reply = messageStore.getMessage(requestId);
+        CompletableFuture<FileAttributes> attrs = request(new SshFxpStat(
+                    requestId, absolutePath), requestId,
+                SftpSubsystemClient::attributesReply);
 
-            if (reply instanceof SshFxpAttrs) {
-                SftpFile file = new SftpFile(absolutePath,
-                        ((SshFxpAttrs) reply).getAttributes());
-                file.setHandle(handle);
-                file.setSFTPSubsystem(this);
+        SftpFile file = new SftpFile(absolutePath, await(attrs));
+        file.setHandle(await(handle));
+        file.setSFTPSubsystem(this);
 
-                return file;
-            } else if (reply instanceof SshFxpStatus) {
-                throw new IOException(((SshFxpStatus) reply).getErrorMessage());
-            } else {
-                throw new IOException("Unexpected server response " +
-                    reply.getMessageName());
-            }
-        } catch (InterruptedException ex) {
-            throw new IOException("The thread was interrupted");
-        }
+        return file;
     }
 
     /**
@@ -351,33 +385,24 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    public synchronized String getAbsolutePath(String path)
-        throws IOException {
-        UnsignedInteger32 requestId = nextRequestId();
-        SubsystemMessage msg = new SshFxpRealPath(requestId, path);
-        sendMessage(msg);
-
-        try {
-            SubsystemMessage reply = messageStore.getMessage(requestId);
-
-            if (reply instanceof SshFxpName) {
-                SftpFile[] files = ((SshFxpName) reply).getFiles();
+    public String getAbsolutePath(String path) throws IOException {
+        return await(getAbsolutePathAsync(path));
+    }
 
-                if (files.length != 1) {
-                    throw new IOException(
-                        "Server responded to SSH_FXP_REALPATH with too many files!");
-                }
+    /**
+     *
+     *
+     * @param path
+     *
+     * @return
+     *
+     * @since 0.2.10
+     */
+    public CompletableFuture<String> getAbsolutePathAsync(String path) {
+        UnsignedInteger32 requestId = nextRequestId();
 
-                return files[0].getAbsolutePath();
-            } else if (reply instanceof SshFxpStatus) {
-                throw new IOException(((SshFxpStatus) reply).getErrorMessage());
-            } else {
-                throw new IOException("Unexpected server response " +
-                    reply.getMessageName());
-            }
-        } catch (InterruptedException ex) {
-            throw new IOException("The thread was interrupted");
-        }
+        return request(new SshFxpRealPath(requestId, path), requestId,
+            reply -> nameReply(reply, "SSH_FXP_REALPATH"));
     }
 
     /**
@@ -419,23 +444,39 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    public synchronized SftpFile openFile(String absolutePath, int flags,
+    public SftpFile openFile(String absolutePath, int flags,
         FileAttributes attrs) throws IOException {
+        return await(openFileAsync(absolutePath, flags, attrs));
+    }
+
+    /**
+     *
+     *
+     * @param absolutePath
+     * @param flags
+     * @param attrs
+     *
+     * @return
+     *
+     * @since 0.2.10
+     */
+    public CompletableFuture<SftpFile> openFileAsync(String absolutePath,
+        int flags, FileAttributes attrs) {
         if (attrs == null) {
             attrs = new FileAttributes();
         }
 
         UnsignedInteger32 requestId = nextRequestId();
-        SubsystemMessage msg = new SshFxpOpen(requestId, absolutePath,
-                new UnsignedInteger32(flags), attrs);
-        sendMessage(msg);
 
-        byte[] handle = getHandleResponse(requestId);
-        SftpFile file = new SftpFile(absolutePath, null);
-        file.setHandle(handle);
-        file.setSFTPSubsystem(this);
+        return request(new SshFxpOpen(requestId, absolutePath,
+                new UnsignedInteger32(flags), attrs), requestId,
+            reply -> {
+                SftpFile file = new SftpFile(absolutePath, null);
+                file.setHandle(handleReply(reply));
+                file.setSFTPSubsystem(this);
 
-        return file;
+                return file;
+            });
     }
 
     /**
@@ -447,27 +488,24 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    public synchronized FileAttributes getAttributes(String path)
-        throws IOException {
-        SubsystemMessage msg;
-        UnsignedInteger32 requestId = nextRequestId();
-        msg = new SshFxpStat(requestId, path);
-        sendMessage(msg);
+    public FileAttributes getAttributes(String path) throws IOException {
+        return await(getAttributesAsync(path));
+    }
 
-        try {
-            SubsystemMessage reply = messageStore.getMessage(requestId);
+    /**
+     *
+     *
+     * @param path
+     *
+     * @return
+     *
+     * @since 0.2.10
+     */
+    public CompletableFuture<FileAttributes> getAttributesAsync(String path) {
+        UnsignedInteger32 requestId = nextRequestId();
 
-            if (reply instanceof SshFxpAttrs) {
-                return ((SshFxpAttrs) reply).getAttributes();
-            } else if (reply instanceof SshFxpStatus) {
-                throw new IOException(((SshFxpStatus) reply).getErrorMessage());
-            } else {
-                throw new IOException("Unexpected server response " +
-                    reply.getMessageName());
-            }
-        } catch (InterruptedException ex) {
-            throw new IOException("The thread was interrupted");
-        }
+        return request(new SshFxpStat(requestId, path), requestId,
+            SftpSubsystemClient::attributesReply);
     }
 
     /**
@@ -479,8 +517,21 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    public synchronized FileAttributes getAttributes(SftpFile file)
+    public FileAttributes getAttributes(SftpFile file)
         throws IOException {
+        return await(getAttributesAsync(file));
+    }
+
+    /**
+     *
+     *
+     * @param file
+     *
+     * @return
+     *
+     * @since 0.2.10
+     */
+    public CompletableFuture<FileAttributes> getAttributesAsync(SftpFile file) {
         SubsystemMessage msg;
         UnsignedInteger32 requestId = nextRequestId();
 
@@ -490,22 +541,7 @@ public class SftpSubsystemClient extends SubsystemChannel {
             msg = new SshFxpFStat(requestId, file.getHandle());
         }
 
-        sendMessage(msg);
-
-        try {
-            SubsystemMessage reply = messageStore.getMessage(requestId);
-
-            if (reply instanceof SshFxpAttrs) {
-                return ((SshFxpAttrs) reply).getAttributes();
-            } else if (reply instanceof SshFxpStatus) {
-                throw new IOException(((SshFxpStatus) reply).getErrorMessage());
-            } else {
-                throw new IOException("Unexpected server response " +
-                    reply.getMessageName());
-            }
-        } catch (InterruptedException ex) {
-            throw new IOException("The thread was interrupted");
-        }
+        return request(msg, requestId, SftpSubsystemClient::attributesReply);
     }
 
     /**
@@ -521,46 +557,82 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    protected synchronized int readFile(byte[] handle,
-        UnsignedInteger64 offset, byte[] output, int off, int len)
-        throws IOException {
-        if (!handles.contains(handle)) {
-            throw new IOException("The file handle is invalid!");
-        }
-
+    protected int readFile(byte[] handle, UnsignedInteger64 offset,
+        byte[] output, int off, int len) throws IOException {
         if ((output.length - off) < len) {
             throw new IOException(
                 "Output array size is smaller than read length!");
         }
 
-        UnsignedInteger32 requestId = nextRequestId();
-        SshFxpRead msg = new SshFxpRead(requestId, handle, offset,
-                new UnsignedInteger32(len));
-        sendMessage(msg);
+        byte[] msgdata = await(readFileAsync(handle, offset, len));
 
-        try {
-            SubsystemMessage reply = messageStore.getMessage(requestId);
+        if (msgdata == null) {
+            return -1;
+        }
 
-            if (reply instanceof SshFxpData) {
-                byte[] msgdata = ((SshFxpData) reply).getData();
-                System.arraycopy(msgdata, 0, output, off, msgdata.length);
+        System.arraycopy(msgdata, 0, output, off, msgdata.length);
 
-                return msgdata.length;
-            } else if (reply instanceof SshFxpStatus) {
-                SshFxpStatus status = (SshFxpStatus) reply;
+        return msgdata.length;
+    }
 
-                if (status.getErrorCode().intValue() == SshFxpStatus.STATUS_FX_EOF) {
-                    return -1;
-                } else {
-                    throw new IOException(((SshFxpStatus) reply).getErrorMessage());
-                }
-            } else {
-                throw new IOException("Unexpected server response " +
-                    reply.getMessageName());
-            }
-        } catch (InterruptedException ex) {
-            throw new IOException("The thread was interrupted");
+    /**
+     * Reads a block of an open file. The future completes with the data
+     * returned by the server, which may be less than requested, or with
+     * <code>null</code> at the end of the file.
+     *
+     * @param file
+     * @param offset
+     * @param len
+     *
+     * @return
+     *
+     * @since 0.2.10
+     */
+    public CompletableFuture<byte[]> readFileAsync(SftpFile file,
+        UnsignedInteger64 offset, int len) {
+        return readFileAsync(file.getHandle(), offset, len);
+    }
+
+    private CompletableFuture<byte[]> readFileAsync(byte[] handle,
+        UnsignedInteger64 offset, int len) {
+        if (!isValidHandle(handle)) {
+            return failed(new IOException("The file handle is invalid!"));
         }
+
+        UnsignedInteger32 requestId = nextRequestId();
+
+        return request(new SshFxpRead(requestId, handle, offset,
+                new UnsignedInteger32(len)), requestId,
+            SftpSubsystemClient::dataReply);
+    }
+
+    /**
+     * Sets the maximum number of read or write requests that an
+     * <code>SftpFileInputStream</code> or <code>SftpFileOutputStream</code>
+     * keeps outstanding on one handle.
+     *
+     * @param maxOutstandingRequests
+     *
+     * @since 0.2.10
+     */
+    public void setMaxOutstandingRequests(int maxOutstandingRequests) {
+        if (maxOutstandingRequests < 1) {
+            throw new IllegalArgumentException(
+                "At least one request must be allowed");
+        }
+
+        this.maxOutstandingRequests = maxOutstandingRequests;
+    }
+
+    /**
+     *
+     *
+     * @return
+     *
+     * @since 0.2.10
+     */
+    public int getMaxOutstandingRequests() {
+        return maxOutstandingRequests;
     }
 
     /**
@@ -570,12 +642,10 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    public synchronized void removeDirectory(String path)
-        throws IOException {
+    public void removeDirectory(String path) throws IOException {
         UnsignedInteger32 requestId = nextRequestId();
-        SshFxpRmdir msg = new SshFxpRmdir(requestId, path);
-        sendMessage(msg);
-        getOKRequestStatus(requestId);
+        await(request(new SshFxpRmdir(requestId, path), requestId,
+                SftpSubsystemClient::checkStatus));
     }
 
     /**
@@ -585,12 +655,24 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    public synchronized void removeFile(String filename)
-        throws IOException {
+    public void removeFile(String filename) throws IOException {
+        await(removeFileAsync(filename));
+    }
+
+    /**
+     *
+     *
+     * @param filename
+     *
+     * @return
+     *
+     * @since 0.2.10
+     */
+    public CompletableFuture<Void> removeFileAsync(String filename) {
         UnsignedInteger32 requestId = nextRequestId();
-        SshFxpRemove msg = new SshFxpRemove(requestId, filename);
-        sendMessage(msg);
-        getOKRequestStatus(requestId);
+
+        return request(new SshFxpRemove(requestId, filename), requestId,
+            SftpSubsystemClient::checkStatus);
     }
 
     /**
@@ -601,12 +683,27 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    public synchronized void renameFile(String oldpath, String newpath)
+    public void renameFile(String oldpath, String newpath)
         throws IOException {
+        await(renameFileAsync(oldpath, newpath));
+    }
+
+    /**
+     *
+     *
+     * @param oldpath
+     * @param newpath
+     *
+     * @return
+     *
+     * @since 0.2.10
+     */
+    public CompletableFuture<Void> renameFileAsync(String oldpath,
+        String newpath) {
         UnsignedInteger32 requestId = nextRequestId();
-        SshFxpRename msg = new SshFxpRename(requestId, oldpath, newpath);
-        sendMessage(msg);
-        getOKRequestStatus(requestId);
+
+        return request(new SshFxpRename(requestId, oldpath, newpath),
+            requestId, SftpSubsystemClient::checkStatus);
     }
 
     /**
@@ -620,22 +717,44 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    protected synchronized void writeFile(byte[] handle,
-        UnsignedInteger64 offset, byte[] data, int off, int len)
-        throws IOException {
-        if (!handles.contains(handle)) {
-            throw new IOException("The handle is not valid!");
+    protected void writeFile(byte[] handle, UnsignedInteger64 offset,
+        byte[] data, int off, int len) throws IOException {
+        await(writeFileAsync(handle, offset, data, off, len));
+    }
+
+    /**
+     * Writes a block to an open file. The data is encoded before this method
+     * returns so the caller may reuse the array straight away.
+     *
+     * @param file
+     * @param offset
+     * @param data
+     * @param off
+     * @param len
+     *
+     * @return
+     *
+     * @since 0.2.10
+     */
+    public CompletableFuture<Void> writeFileAsync(SftpFile file,
+        UnsignedInteger64 offset, byte[] data, int off, int len) {
+        return writeFileAsync(file.getHandle(), offset, data, off, len);
+    }
+
+    private CompletableFuture<Void> writeFileAsync(byte[] handle,
+        UnsignedInteger64 offset, byte[] data, int off, int len) {
+        if (!isValidHandle(handle)) {
+            return failed(new IOException("The handle is not valid!"));
         }
 
         if ((data.length - off) < len) {
-            throw new IOException("Incorrect data array size!");
+            return failed(new IOException("Incorrect data array size!"));
         }
 
         UnsignedInteger32 requestId = nextRequestId();
-        SshFxpWrite msg = new SshFxpWrite(requestId, handle, offset, data, off,
-                len);
-        sendMessage(msg);
-        getOKRequestStatus(requestId);
+
+        return request(new SshFxpWrite(requestId, handle, offset, data, off,
+                len), requestId, SftpSubsystemClient::checkStatus);
     }
 
     /**
@@ -646,12 +765,11 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    public synchronized void createSymbolicLink(String targetpath,
-        String linkpath) throws IOException {
+    public void createSymbolicLink(String targetpath, String linkpath)
+        throws IOException {
         UnsignedInteger32 requestId = nextRequestId();
-        SubsystemMessage msg = new SshFxpSymlink(requestId, targetpath, linkpath);
-        sendMessage(msg);
-        getOKRequestStatus(requestId);
+        await(request(new SshFxpSymlink(requestId, targetpath, linkpath),
+                requestId, SftpSubsystemClient::checkStatus));
     }
 
     /**
@@ -663,33 +781,12 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    public synchronized String getSymbolicLinkTarget(String linkpath)
+    public String getSymbolicLinkTarget(String linkpath)
         throws IOException {
         UnsignedInteger32 requestId = nextRequestId();
-        SubsystemMessage msg = new SshFxpReadlink(requestId, linkpath);
-        sendMessage(msg);
 
-        try {
-            SubsystemMessage reply = messageStore.getMessage(requestId);
-
-            if (reply instanceof SshFxpName) {
-                SftpFile[] files = ((SshFxpName) reply).getFiles();
-
-                if (files.length != 1) {
-                    throw new IOException(
-                        "Server responded to SSH_FXP_REALLINK with too many files!");
-                }
-
-                return files[0].getAbsolutePath();
-            } else if (reply instanceof SshFxpStatus) {
-                throw new IOException(((SshFxpStatus) reply).getErrorMessage());
-            } else {
-                throw new IOException("Unexpected server response " +
-                    reply.getMessageName());
-            }
-        } catch (InterruptedException ex) {
-            throw new IOException("The thread was interrupted");
-        }
+        return await(request(new SshFxpReadlink(requestId, linkpath),
+                requestId, reply -> nameReply(reply, "SSH_FXP_REALLINK")));
     }
 
     /**
@@ -700,12 +797,11 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    public synchronized void setAttributes(String path, FileAttributes attrs)
+    public void setAttributes(String path, FileAttributes attrs)
         throws IOException {
         UnsignedInteger32 requestId = nextRequestId();
-        SubsystemMessage msg = new SshFxpSetStat(requestId, path, attrs);
-        sendMessage(msg);
-        getOKRequestStatus(requestId);
+        await(request(new SshFxpSetStat(requestId, path, attrs), requestId,
+                SftpSubsystemClient::checkStatus));
     }
 
     /**
@@ -716,17 +812,15 @@ public class SftpSubsystemClient extends SubsystemChannel {
      *
      * @throws IOException
      */
-    public synchronized void setAttributes(SftpFile file, FileAttributes attrs)
+    public void setAttributes(SftpFile file, FileAttributes attrs)
         throws IOException {
         if (!isValidHandle(file.getHandle())) {
             throw new IOException("The handle is not an open file handle!");
         }
 
         UnsignedInteger32 requestId = nextRequestId();
-        SubsystemMessage msg = new SshFxpFSetStat(requestId, file.getHandle(),
-                attrs);
-        sendMessage(msg);
-        getOKRequestStatus(requestId);
+        await(request(new SshFxpFSetStat(requestId, file.getHandle(), attrs),
+                requestId, SftpSubsystemClient::checkStatus));
     }
 
     /**
@@ -839,58 +933,141 @@ public class SftpSubsystemClient extends SubsystemChannel {
         return result;
     }
 
-    private byte[] getHandleResponse(UnsignedInteger32 requestId)
-        throws IOException {
+    /**
+     * Sends a request and returns a future for its reply, converted by the
+     * given handler.
+     */
+    private <T> CompletableFuture<T> request(SubsystemMessage msg,
+        UnsignedInteger32 requestId, ReplyHandler<T> handler) {
+        // Register for the reply before it can possibly arrive
+        CompletableFuture<SubsystemMessage> reply = messageStore.getReply(requestId);
+
         try {
-            SubsystemMessage reply = messageStore.getMessage(requestId);
+            sendMessage(msg);
+        } catch (IOException ex) {
+            reply.cancel(false);
 
-            if (reply instanceof SshFxpHandle) {
-                byte[] handle = ((SshFxpHandle) reply).getHandle();
+            return failed(ex);
+        }
 
-                // Add the handle to our managed list
-                handles.add(handle);
+        return reply.thenApply(r -> {
+                try {
+                    return handler.handleReply(r);
+                } catch (IOException ex) {
+                    throw new CompletionException(ex);
+                }
+            });
+    }
 
-                return handle;
-            } else if (reply instanceof SshFxpStatus) {
-                throw new IOException(((SshFxpStatus) reply).getErrorMessage());
-            } else {
-                throw new IOException("Unexpected server response " +
-                    reply.getMessageName());
-            }
+    /**
+     * Waits for a future returned by one of the asynchronous methods and
+     * rethrows its failure as an <code>IOException</code>.
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
         } catch (InterruptedException ex) {
             throw new IOException("The thread was interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+
+            throw new IOException(String.valueOf(ex.getCause().getMessage()));
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(IOException ex) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(ex);
+
+        return future;
+    }
+
+    private byte[] handleReply(SubsystemMessage reply)
+        throws IOException {
+        if (reply instanceof SshFxpHandle) {
+            byte[] handle = ((SshFxpHandle) reply).getHandle();
+
+            // Add the handle to our managed list
+            handles.add(handle);
+
+            return handle;
+        } else if (reply instanceof SshFxpStatus) {
+            throw new IOException(((SshFxpStatus) reply).getErrorMessage());
+        } else {
+            throw unexpected(reply);
         }
     }
 
-    private void getOKRequestStatus(UnsignedInteger32 requestId)
+    private static Void checkStatus(SubsystemMessage reply)
         throws IOException {
-        try {
-            if (log.isDebugEnabled()) {
-                log.info("Waiting for response");
+        if (reply instanceof SshFxpStatus) {
+            SshFxpStatus status = (SshFxpStatus) reply;
+
+            if (status.getErrorCode().intValue() != SshFxpStatus.STATUS_FX_OK) {
+                throw new IOException(status.getErrorMessage());
             }
 
-            SubsystemMessage reply = messageStore.getMessage(requestId);
-            log.info("Received response");
+            return null;
+        } else {
+            throw unexpected(reply);
+        }
+    }
+
+    private static FileAttributes attributesReply(SubsystemMessage reply)
+        throws IOException {
+        if (reply instanceof SshFxpAttrs) {
+            return ((SshFxpAttrs) reply).getAttributes();
+        } else if (reply instanceof SshFxpStatus) {
+            throw new IOException(((SshFxpStatus) reply).getErrorMessage());
+        } else {
+            throw unexpected(reply);
+        }
+    }
+
+    private static byte[] dataReply(SubsystemMessage reply)
+        throws IOException {
+        if (reply instanceof SshFxpData) {
+            return ((SshFxpData) reply).getData();
+        } else if (reply instanceof SshFxpStatus) {
+            SshFxpStatus status = (SshFxpStatus) reply;
 
-            if (reply instanceof SshFxpStatus) {
-              SshFxpStatus status = (SshFxpStatus) reply;
-              
-              if (status.getErrorCode().intValue() != SshFxpStatus.STATUS_FX_OK) {
-                throw new IOException(((SshFxpStatus) reply).getErrorMessage());
-              }
+            if (status.getErrorCode().intValue() == SshFxpStatus.STATUS_FX_EOF) {
+                return null;
             } else {
-              throw new IOException("Unexpected server response " +
-                  reply.getMessageName());
+                throw new IOException(status.getErrorMessage());
             }
-        } catch (InterruptedException ex) {
-          throw new IOException("The thread was interrupted");
+        } else {
+            throw unexpected(reply);
         }
     }
 
-    private UnsignedInteger32 nextRequestId() {
-        nextRequestId = UnsignedInteger32.add(nextRequestId, 1);
+    private static String nameReply(SubsystemMessage reply, String request)
+        throws IOException {
+        if (reply instanceof SshFxpName) {
+            SftpFile[] files = ((SshFxpName) reply).getFiles();
+
+            if (files.length != 1) {
+                throw new IOException("Server responded to " + request +
+                    " with too many files!");
+            }
 
-        return nextRequestId;
+            return files[0].getAbsolutePath();
+        } else if (reply instanceof SshFxpStatus) {
+            throw new IOException(((SshFxpStatus) reply).getErrorMessage());
+        } else {
+            throw unexpected(reply);
+        }
+    }
+
+    private static IOException unexpected(SubsystemMessage reply) {
+        return new IOException("Unexpected server response " +
+            reply.getMessageName());
+    }
+
+    private UnsignedInteger32 nextRequestId() {
+        return new UnsignedInteger32(nextRequestId.incrementAndGet() & 0xFFFFFFFFL);
     }
 
     private void registerMessages() {
@@ -907,7 +1084,7 @@ public class SftpSubsystemClient extends SubsystemChannel {
     }
 
     protected int getMinimumWindowSpace() {
-        return 1024;
+        return 1048576;
     }
 
     /**
@@ -916,7 +1093,8 @@ public class SftpSubsystemClient extends SubsystemChannel {
      * @return
      */
     protected int getMaximumWindowSpace() {
-        return 131070;
+        // Large enough to keep a full pipeline of reads moving
+        return 2097152;
     }
 
     /**
@@ -927,4 +1105,8 @@ public class SftpSubsystemClient extends SubsystemChannel {
     protected int getMaximumPacketSize() {
         return 65535;
     }
+
+    interface ReplyHandler<T> {
+        T handleReply(SubsystemMessage reply) throws IOException;
+    }
 }
@@ -30,6 +30,8 @@ import com.sshtools.j2ssh.io.ByteArrayWriter;
 import com.sshtools.j2ssh.io.UnsignedInteger32;
 import com.sshtools.j2ssh.subsystem.SubsystemMessage;
 
+import java.nio.ByteBuffer;
+
 
 /**
  *
@@ -42,6 +44,7 @@ public class SshFxpData extends SubsystemMessage implements MessageRequestId {
     public static final int SSH_FXP_DATA = 103;
     private UnsignedInteger32 id;
     private byte[] data;
+    private ByteBuffer dataBuffer;
 
     /**
      * Creates a new SshFxpData object.
@@ -55,6 +58,24 @@ public class SshFxpData extends SubsystemMessage implements MessageRequestId {
         this.data = data;
     }
 
+    /**
+     * <p>
+     * Creates a new SshFxpData object for the remaining content of a buffer.
+     * The buffer is only copied when the message is sent, and then straight
+     * into the outgoing packet.
+     * </p>
+     *
+     * @param id
+     * @param data
+     *
+     * @since 0.2.10
+     */
+    public SshFxpData(UnsignedInteger32 id, ByteBuffer data) {
+        super(SSH_FXP_DATA);
+        this.id = id;
+        this.dataBuffer = data;
+    }
+
     /**
      * Creates a new SshFxpData object.
      */
@@ -77,6 +98,13 @@ public class SshFxpData extends SubsystemMessage implements MessageRequestId {
      * @return
      */
     public byte[] getData() {
+        if ((data == null) && (dataBuffer != null)) {
+            byte[] tmp = new byte[dataBuffer.remaining()];
+            dataBuffer.duplicate().get(tmp);
+
+            return tmp;
+        }
+
         return data;
     }
 
@@ -118,6 +146,35 @@ public class SshFxpData extends SubsystemMessage implements MessageRequestId {
         throws java.io.IOException, 
             com.sshtools.j2ssh.transport.InvalidMessageException {
         baw.writeUINT32(id);
-        baw.writeBinaryString(data);
+
+        if (dataBuffer != null) {
+            baw.writeInt(dataBuffer.remaining());
+            baw.write(dataBuffer.duplicate());
+        } else {
+            baw.writeBinaryString(data);
+        }
+    }
+
+    /**
+     *
+     *
+     * @return
+     *
+     * @throws com.sshtools.j2ssh.transport.InvalidMessageException
+     */
+    public ByteBuffer[] toByteBuffers()
+        throws com.sshtools.j2ssh.transport.InvalidMessageException {
+        if (dataBuffer == null) {
+            return super.toByteBuffers();
+        }
+
+        // Only the header is encoded, the data goes out in its own buffer
+        ByteBuffer header = ByteBuffer.allocate(9);
+        header.put((byte) SSH_FXP_DATA);
+        header.putInt((int) id.longValue());
+        header.putInt(dataBuffer.remaining());
+        header.flip();
+
+        return new ByteBuffer[] { header, dataBuffer.duplicate() };
     }
 }
@@ -64,11 +64,12 @@ public abstract class SubsystemChannel extends Channel {
 
         byte[] msgdata = msg.toByteArray();
 
-        // Write the message length
-        sendChannelData(ByteArrayWriter.encodeInt(msgdata.length));
-
-        // Write the message data
-        sendChannelData(msgdata);
+        // Write the message length and data together so that the message
+        // travels in a single packet and is not interleaved with others
+        ByteArrayWriter baw = new ByteArrayWriter(msgdata.length + 4);
+        baw.writeInt(msgdata.length);
+        baw.write(msgdata);
+        sendChannelData(baw.toByteArray());
     }
 
     protected void onChannelRequest(String requestType, boolean wantReply,
@@ -114,6 +115,10 @@ public abstract class SubsystemChannel extends Channel {
         throws java.io.IOException {
     }
 
+    protected boolean isNonBlockingReceiver() {
+        return true;
+    }
+
     protected void onChannelData(SshMsgChannelData msg)
         throws java.io.IOException {
         // Write the data to a temporary buffer that may also contain data
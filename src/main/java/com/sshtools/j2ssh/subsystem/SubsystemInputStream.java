@@ -84,6 +84,34 @@ public class SubsystemInputStream extends InputStream {
         return msgdata[currentPos++] & 0xFF;
     }
 
+    /**
+     *
+     *
+     * @param b
+     * @param off
+     * @param len
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        // Only block for a new message when nothing is left of the last one
+        if ((msgdata == null) || (currentPos >= msgdata.length)) {
+            collectNextMessage();
+        }
+
+        int count = Math.min(len, msgdata.length - currentPos);
+        System.arraycopy(msgdata, currentPos, b, off, count);
+        currentPos += count;
+
+        return count;
+    }
+
     private void collectNextMessage() throws IOException {
         SubsystemMessage msg = messageStore.nextMessage();
 
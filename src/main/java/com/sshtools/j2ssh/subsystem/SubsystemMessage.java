@@ -31,6 +31,8 @@ import com.sshtools.j2ssh.transport.InvalidMessageException;
 
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+
 
 /**
  *
@@ -131,4 +133,21 @@ public abstract class SubsystemMessage {
                 "The message data cannot be written!");
         }
     }
+
+    /**
+     * <p>
+     * Returns the encoded message as a sequence of buffers. Messages carrying
+     * bulk data may return that data in a buffer of its own so that it can be
+     * sent without first being copied into the message.
+     * </p>
+     *
+     * @return the message data
+     *
+     * @throws InvalidMessageException
+     *
+     * @since 0.2.10
+     */
+    public ByteBuffer[] toByteBuffers() throws InvalidMessageException {
+        return new ByteBuffer[] { ByteBuffer.wrap(toByteArray()) };
+    }
 }
@@ -143,7 +143,8 @@ public class SubsystemMessageStore {
         // If there are no messages available then wait until there are.
         timeout = (timeout > 0) ? timeout : 0;
 
-        while (messages.size() <= 0) {
+        while ((messages.size() <= 0) &&
+                (state.getValue() == OpenClosedState.OPEN)) {
             try {
                 wait(timeout);
 
@@ -28,7 +28,6 @@ package com.sshtools.j2ssh.subsystem;
 import com.sshtools.j2ssh.io.ByteArrayReader;
 import com.sshtools.j2ssh.transport.InvalidMessageException;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -41,9 +40,9 @@ import java.io.OutputStream;
  */
 public class SubsystemOutputStream extends OutputStream {
     // Temporary storage buffer to build up a message
-    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int count = 0;
     SubsystemMessageStore messageStore;
-    int messageStart = 0;
 
     /**
      * Creates a new SubsystemOutputStream object.
@@ -65,9 +64,16 @@ public class SubsystemOutputStream extends OutputStream {
      * @throws IOException
      */
     public void write(byte[] b, int off, int len) throws IOException {
+        if ((count + len) > buffer.length) {
+            byte[] tmp = new byte[Math.max(buffer.length * 2, count + len)];
+            System.arraycopy(buffer, 0, tmp, 0, count);
+            buffer = tmp;
+        }
+
         // Write the data
-        super.write(b, off, len);
-        processMessage();
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+        processMessages();
     }
 
     /**
@@ -78,37 +84,48 @@ public class SubsystemOutputStream extends OutputStream {
      * @throws IOException
      */
     public void write(int b) throws IOException {
-        buffer.write(b);
+        write(new byte[] { (byte) b }, 0, 1);
     }
 
-    private void processMessage() throws IOException {
-        // Now try to process a message
-        if (buffer.size() > (messageStart + 4)) {
-            int messageLength = (int) ByteArrayReader.readInt(buffer.toByteArray(),
-                    messageStart);
-
-            if (messageLength <= (buffer.size() - 4)) {
-                byte[] msgdata = new byte[messageLength];
-
-                // Process a message
-                System.arraycopy(buffer.toByteArray(), messageStart + 4,
-                    msgdata, 0, messageLength);
-
-                try {
-                    messageStore.addMessage(msgdata);
-                } catch (InvalidMessageException ime) {
-                    throw new IOException(
-                        "An invalid message was encountered in the outputstream: " +
-                        ime.getMessage());
-                }
-
-                if (messageLength == (buffer.size() - 4)) {
-                    buffer.reset();
-                    messageStart = 0;
-                } else {
-                    messageStart = messageLength + 4;
-                }
+    private void processMessages() throws IOException {
+        int messageStart = 0;
+
+        // A single write may complete any number of messages, for example
+        // when a client pipelines several requests in one packet
+        while ((count - messageStart) >= 4) {
+            long messageLength = ByteArrayReader.readInt(buffer, messageStart);
+
+            if (messageLength > (Integer.MAX_VALUE - 4)) {
+                throw new IOException(
+                    "An invalid message length was encountered in the outputstream");
             }
+
+            if ((count - messageStart - 4) < messageLength) {
+                break;
+            }
+
+            byte[] msgdata = new byte[(int) messageLength];
+
+            // Process a message
+            System.arraycopy(buffer, messageStart + 4, msgdata, 0,
+                msgdata.length);
+
+            try {
+                messageStore.addMessage(msgdata);
+            } catch (InvalidMessageException ime) {
+                throw new IOException(
+                    "An invalid message was encountered in the outputstream: " +
+                    ime.getMessage());
+            }
+
+            messageStart += (4 + msgdata.length);
+        }
+
+        // Keep any partial message at the start of the buffer
+        if (messageStart > 0) {
+            System.arraycopy(buffer, messageStart, buffer, 0,
+                count - messageStart);
+            count -= messageStart;
         }
     }
 }
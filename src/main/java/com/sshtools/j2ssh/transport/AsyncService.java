@@ -74,8 +74,8 @@ public abstract class AsyncService extends Service implements Runnable {
      * @since 0.2.0
      */
     protected void onStart() throws IOException {
-        if (Thread.currentThread() instanceof SshThread) {
-            thread = ((SshThread) Thread.currentThread()).cloneThread(this,
+        if (SshThread.hasCurrentThread()) {
+            thread = SshThread.getCurrentThread().cloneThread(this,
                     getServiceName());
         } else {
             thread = new SshThread(this, getServiceName(), true);
@@ -100,14 +100,32 @@ public abstract class SshMessage {
         // Create a writer object to construct the array
         ByteArrayWriter baw = new ByteArrayWriter();
 
+        toByteArray(baw);
+
+        // Return the array
+        return baw.toByteArray();
+    }
+
+    /**
+     * <p>
+     * Format the message payload onto the end of an existing writer. This
+     * allows the transport protocol to encode the payload directly into its
+     * packet buffer rather than creating an intermediate array.
+     * </p>
+     *
+     * @param baw the writer to append the payload to
+     *
+     * @throws InvalidMessageException if the message is invalid
+     *
+     * @since 0.2.10
+     */
+    public final void toByteArray(ByteArrayWriter baw)
+        throws InvalidMessageException {
         // Write the message id
         baw.write(messageId);
 
         // Call the abstract method so subclasses classes can add their data
         constructByteArray(baw);
-
-        // Return the array
-        return baw.toByteArray();
     }
 
     /**
@@ -156,6 +174,23 @@ public abstract class SshMessage {
         return new Integer(msgdata[5]);
     }
 
+    /**
+     * <p>
+     * Helper method to extract the message id from transport protocol message
+     * data held at an offset within a larger array.
+     * </p>
+     *
+     * @param msgdata the array containing the transport protocol message
+     * @param offset the offset of the message within the array
+     *
+     * @return the id of the message
+     *
+     * @since 0.2.10
+     */
+    public static int getMessageId(byte[] msgdata, int offset) {
+        return msgdata[offset + 5] & 0xFF;
+    }
+
     /**
      * <p>
      * Message implementations should implement this method, writing the data
@@ -25,10 +25,16 @@
  */
 package com.sshtools.j2ssh.transport;
 
+import java.lang.reflect.Constructor;
+
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -50,13 +56,29 @@ import com.sshtools.j2ssh.io.ByteArrayReader;
 public final class SshMessageStore {
     private static Log log = LogFactory.getLog(SshMessageStore.class);
 
-    // List to hold messages as they are received
-    private List<SshMessage> messages = new ArrayList<SshMessage>();
-    private Map<Integer, Class<?>> register = new HashMap<Integer, Class<?>>();
-    private boolean isClosed = false;
-    private int[] singleIdFilter = new int[1];
+    // Queues to hold messages as they are received, indexed by message id;
+    // the sequence number records the order of arrival across the queues
+    private ArrayDeque<Queued>[] queues = newQueues();
+    private long sequence = 0;
+    private volatile int count = 0;
+
+    // The threads waiting for each message id, so that only those
+    // interested in a message are woken when it arrives
+    private List<Waiter>[] waiting = newWaiting();
+    private List<Waiter> waitingForAny = new ArrayList<Waiter>(2);
+
+    // The registered message classes and their constructors, indexed by
+    // message id so that creating a message needs neither a map lookup nor
+    // a reflective search
+    private Class<?>[] register = new Class<?>[256];
+    private Constructor<?>[] constructors = new Constructor<?>[256];
+    private SshMessageHandler[] handlers = new SshMessageHandler[256];
+    private volatile boolean isClosed = false;
     private int interrupt = 5000;
-    private List<SshMessageListener> listeners = new ArrayList<SshMessageListener>();
+    private List<SshMessageListener> listeners = new CopyOnWriteArrayList<SshMessageListener>();
+
+    // An explicit lock does not pin the carrier of a waiting virtual thread
+    private ReentrantLock lock = new ReentrantLock();
 
     /**
      * <p>
@@ -68,6 +90,16 @@ public final class SshMessageStore {
     public SshMessageStore() {
     }
 
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<Queued>[] newQueues() {
+        return new ArrayDeque[256];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static List<Waiter>[] newWaiting() {
+        return new List[256];
+    }
+
     /**
      * <p>
      * Evaluate whether the message store is closed.
@@ -82,9 +114,23 @@ public final class SshMessageStore {
     }
 
     public void addMessageListener(SshMessageListener listener) {
-        synchronized (listeners) {
-            listeners.add(listener);
-        }
+        listeners.add(listener);
+    }
+
+    /**
+     * <p>
+     * Sets a handler that is offered messages of the given id on the adding
+     * thread before they are queued. Messages the handler accepts are neither
+     * queued nor passed to the message listeners.
+     * </p>
+     *
+     * @param messageId the message id to handle
+     * @param handler the handler, or <tt>null</tt> to queue all messages
+     *
+     * @since 0.2.10
+     */
+    public void setMessageHandler(int messageId, SshMessageHandler handler) {
+        handlers[messageId & 0xFF] = handler;
     }
 
     /**
@@ -103,7 +149,7 @@ public final class SshMessageStore {
      *
      * @since 0.2.0
      */
-    public synchronized SshMessage getMessage(int[] messageIdFilter)
+    public SshMessage getMessage(int[] messageIdFilter)
         throws MessageStoreEOFException, InterruptedException {
         try {
             return getMessage(messageIdFilter, 0);
@@ -134,46 +180,54 @@ public final class SshMessageStore {
      *
      * @since 0.2.0
      */
-    public synchronized SshMessage getMessage(int[] messageIdFilter, int timeout)
+    public SshMessage getMessage(int[] messageIdFilter, int timeout)
         throws MessageStoreEOFException, MessageNotAvailableException, 
             InterruptedException {
-        if ((messages.size() <= 0) && isClosed) {
-            throw new MessageStoreEOFException();
-        }
-
         if (messageIdFilter == null) {
             return nextMessage();
         }
 
-        SshMessage msg;
-        boolean firstPass = true;
-
         if (timeout < 0) {
             timeout = 0;
         }
 
-        while ((messages.size() > 0) || !isClosed) {
-            // lookup the message
-            msg = lookupMessage(messageIdFilter, true);
+        lock.lock();
+
+        Waiter waiter = null;
+
+        try {
+            boolean firstPass = true;
+
+            while (true) {
+                // lookup the message
+                SshMessage msg = lookupMessage(messageIdFilter, true);
+
+                if (msg != null) {
+                    return msg;
+                }
+
+                if (isClosed) {
+                    throw new MessageStoreEOFException();
+                }
 
-            if (msg != null) {
-                return msg;
-            } else {
                 // If this is the second time and there's no message, then throw
                 if (!firstPass && (timeout > 0)) {
                     throw new MessageNotAvailableException();
                 }
-            }
 
-            // Now wait
-            if (!isClosed) {
-                wait((timeout == 0) ? interrupt : timeout);
-            }
+                // Now wait to be told of a message we are interested in
+                if (waiter == null) {
+                    waiter = addWaiter(messageIdFilter);
+                }
 
-            firstPass = false;
+                waiter.condition.await((timeout == 0) ? interrupt : timeout,
+                    TimeUnit.MILLISECONDS);
+                firstPass = false;
+            }
+        } finally {
+            removeWaiter(waiter);
+            lock.unlock();
         }
-
-        throw new MessageStoreEOFException();
     }
 
     /**
@@ -192,7 +246,7 @@ public final class SshMessageStore {
      *
      * @since 0.2.0
      */
-    public synchronized SshMessage getMessage(int messageId)
+    public SshMessage getMessage(int messageId)
         throws MessageStoreEOFException, InterruptedException {
         try {
             return getMessage(messageId, 0);
@@ -222,12 +276,10 @@ public final class SshMessageStore {
      *
      * @since 0.2.0
      */
-    public synchronized SshMessage getMessage(int messageId, int timeout)
+    public SshMessage getMessage(int messageId, int timeout)
         throws MessageStoreEOFException, MessageNotAvailableException, 
             InterruptedException {
-        singleIdFilter[0] = messageId;
-
-        return getMessage(singleIdFilter, timeout);
+        return getMessage(new int[] { messageId }, timeout);
     }
 
     /**
@@ -240,7 +292,7 @@ public final class SshMessageStore {
      * @since 0.2.0
      */
     public boolean hasMessages() {
-        return messages.size() > 0;
+        return count > 0;
     }
 
     /**
@@ -253,7 +305,7 @@ public final class SshMessageStore {
      * @since 0.2.0
      */
     public int size() {
-        return messages.size();
+        return count;
     }
 
     /**
@@ -268,7 +320,23 @@ public final class SshMessageStore {
      * @since 0.2.0
      */
     public boolean isRegisteredMessage(Integer messageId) {
-        return register.containsKey(messageId);
+        return isRegisteredMessage(messageId.intValue());
+    }
+
+    /**
+     * <p>
+     * Determines if the message id is a registered message of this store.
+     * </p>
+     *
+     * @param messageId the message id
+     *
+     * @return true if the message id is registered, otherwise false
+     *
+     * @since 0.2.10
+     */
+    public boolean isRegisteredMessage(int messageId) {
+        return (messageId >= 0) && (messageId < register.length) &&
+        (register[messageId] != null);
     }
 
     /**
@@ -287,25 +355,9 @@ public final class SshMessageStore {
      */
     public void addMessage(byte[] msgdata)
         throws MessageNotRegisteredException, InvalidMessageException {
-        Integer messageId = new Integer(msgdata[5]);
-
-        if (!isRegisteredMessage(messageId)) {
-            throw new MessageNotRegisteredException(messageId);
-        }
-
-        Class<?> cls = (Class<?>) register.get(SshMessage.getMessageId(msgdata));
-
-        try {
-            SshMessage msg = (SshMessage) cls.newInstance();
-            msg.fromByteArray(new ByteArrayReader(msgdata));
-            addMessage(msg);
-        } catch (IllegalAccessException iae) {
-            throw new InvalidMessageException(
-                "Illegal access for implementation class " + cls.getName());
-        } catch (InstantiationException ie) {
-            throw new InvalidMessageException("Instantiation failed for class " +
-                cls.getName());
-        }
+        SshMessage msg = newMessage(SshMessage.getMessageId(msgdata, 0));
+        msg.fromByteArray(new ByteArrayReader(msgdata));
+        addMessage(msg);
     }
 
     /**
@@ -320,19 +372,36 @@ public final class SshMessageStore {
      *
      * @since 0.2.0
      */
-    public synchronized void addMessage(SshMessage msg)
+    public void addMessage(SshMessage msg)
         throws MessageNotRegisteredException {
-        // Add the message
-        messages.add(messages.size(), msg);
+        int id = msg.getMessageId() & 0xFF;
+        SshMessageHandler handler = handlers[id];
+
+        if ((handler != null) && handler.handleMessage(msg)) {
+            return;
+        }
 
-        synchronized (listeners) {
-            for(SshMessageListener listener : listeners) {
+        lock.lock();
+
+        try {
+            // Add the message
+            if (queues[id] == null) {
+                queues[id] = new ArrayDeque<Queued>();
+            }
+
+            queues[id].addLast(new Queued(msg, sequence++));
+            count++;
+
+            for (SshMessageListener listener : listeners) {
                 listener.messageReceived(msg);
             }
-        }
 
-        // Notify the threads
-        notifyAll();
+            // Only wake the threads waiting for this message
+            signal(waiting[id]);
+            signal(waitingForAny);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -343,16 +412,18 @@ public final class SshMessageStore {
      *
      * @since 0.2.0
      */
-    public synchronized void close() {
-        isClosed = true;
+    public void close() {
+        lock.lock();
+
+        try {
+            isClosed = true;
 
-        // We need to notify all anyway as if there are messages still available
-        // it should not affect the waiting threads as they are waiting for
-        // their own messages to be received because non were available in the
-        // first place
-        //if (messages.size()<=0) {
-        notifyAll();
-        //}
+            // Wake everybody; those whose messages are still available
+            // will find them, the rest will find the store closed
+            signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -368,29 +439,44 @@ public final class SshMessageStore {
      *
      * @since 0.2.0
      */
-    public synchronized SshMessage nextMessage()
+    public SshMessage nextMessage()
         throws MessageStoreEOFException, InterruptedException {
-        if ((messages.size() <= 0) && isClosed) {
-            throw new MessageStoreEOFException();
-        }
+        lock.lock();
 
-        // If there are no messages available then wait untill there are.
-        while ((messages.size() <= 0) && !isClosed) {
-            wait(interrupt);
-        }
+        Waiter waiter = null;
 
-        if (messages.size() > 0) {
-            return (SshMessage) messages.remove(0);
-        } else {
-            throw new MessageStoreEOFException();
+        try {
+            // If there are no messages available then wait untill there are.
+            while ((count <= 0) && !isClosed) {
+                if (waiter == null) {
+                    waiter = addWaiter(null);
+                }
+
+                waiter.condition.await(interrupt, TimeUnit.MILLISECONDS);
+            }
+
+            if (count > 0) {
+                return lookupMessage(null, true);
+            } else {
+                throw new MessageStoreEOFException();
+            }
+        } finally {
+            removeWaiter(waiter);
+            lock.unlock();
         }
     }
 
     /**
      *
      */
-    public synchronized void breakWaiting() {
-        notifyAll();
+    public void breakWaiting() {
+        lock.lock();
+
+        try {
+            signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -409,7 +495,7 @@ public final class SshMessageStore {
      *
      * @since 0.2.0
      */
-    public synchronized SshMessage peekMessage(int[] messageIdFilter)
+    public SshMessage peekMessage(int[] messageIdFilter)
         throws MessageStoreEOFException, MessageNotAvailableException, 
             InterruptedException {
         return peekMessage(messageIdFilter, 0);
@@ -433,61 +519,149 @@ public final class SshMessageStore {
      *
      * @since 0.2.0
      */
-    public synchronized SshMessage peekMessage(int[] messageIdFilter,
+    public SshMessage peekMessage(int[] messageIdFilter,
         int timeout)
         throws MessageStoreEOFException, MessageNotAvailableException, 
             InterruptedException {
-        SshMessage msg;
-
-        // Do a straight lookup
-        msg = lookupMessage(messageIdFilter, false);
+        lock.lock();
 
-        if (msg != null) {
-            return msg;
-        }
+        Waiter waiter = null;
 
-        // If were willing to wait the wait and look again
-        if (timeout > 0) {
-            if (log.isDebugEnabled()) {
-                log.debug("No message so waiting for " +
-                    String.valueOf(timeout) + " milliseconds");
-            }
+        try {
+            SshMessage msg;
 
-            wait(timeout);
+            // Do a straight lookup
             msg = lookupMessage(messageIdFilter, false);
 
             if (msg != null) {
                 return msg;
             }
+
+            // If were willing to wait the wait and look again
+            if ((timeout > 0) && !isClosed) {
+                if (log.isDebugEnabled()) {
+                    log.debug("No message so waiting for " +
+                        String.valueOf(timeout) + " milliseconds");
+                }
+
+                waiter = addWaiter(messageIdFilter);
+                waiter.condition.await(timeout, TimeUnit.MILLISECONDS);
+                msg = lookupMessage(messageIdFilter, false);
+
+                if (msg != null) {
+                    return msg;
+                }
+            }
+
+            // Nothing even after a wait so throw the relevant exception
+            if (isClosed) {
+                throw new MessageStoreEOFException();
+            } else {
+                throw new MessageNotAvailableException();
+            }
+        } finally {
+            removeWaiter(waiter);
+            lock.unlock();
         }
+    }
 
-        // Nothing even after a wait so throw the relevant exception
-        if (isClosed) {
-            throw new MessageStoreEOFException();
+    /**
+     * Finds the earliest message with one of the filtered ids, or the
+     * earliest message of all when there is no filter. Only the head of each
+     * id's queue needs to be examined.
+     */
+    private SshMessage lookupMessage(int[] messageIdFilter, boolean remove) {
+        ArrayDeque<Queued> found = null;
+
+        if (messageIdFilter == null) {
+            for (int id = 0; id < queues.length; id++) {
+                found = earliest(found, queues[id]);
+            }
         } else {
-            throw new MessageNotAvailableException();
+            for (int i = 0; i < messageIdFilter.length; i++) {
+                found = earliest(found, queues[messageIdFilter[i] & 0xFF]);
+            }
+        }
+
+        if (found == null) {
+            return null;
+        }
+
+        if (remove) {
+            count--;
+
+            return found.removeFirst().msg;
         }
+
+        return found.peekFirst().msg;
     }
 
-    private SshMessage lookupMessage(int[] messageIdFilter, boolean remove) {
-        SshMessage msg;
+    private static ArrayDeque<Queued> earliest(ArrayDeque<Queued> found,
+        ArrayDeque<Queued> queue) {
+        if ((queue == null) || queue.isEmpty()) {
+            return found;
+        }
 
-        for (int x = 0; x < messages.size(); x++) {
-            msg = (SshMessage) messages.get(x);
+        if ((found == null) ||
+                (queue.peekFirst().sequence < found.peekFirst().sequence)) {
+            return queue;
+        }
 
-            // Determine whether its one of the filtered messages
+        return found;
+    }
+
+    private Waiter addWaiter(int[] messageIdFilter) {
+        Waiter waiter = new Waiter(messageIdFilter, lock.newCondition());
+
+        if (messageIdFilter == null) {
+            waitingForAny.add(waiter);
+        } else {
             for (int i = 0; i < messageIdFilter.length; i++) {
-                if (msg.getMessageId() == messageIdFilter[i]) {
-                    if (remove) {
-                        messages.remove(msg);
-                    }
+                int id = messageIdFilter[i] & 0xFF;
 
-                    return msg;
+                if (waiting[id] == null) {
+                    waiting[id] = new ArrayList<Waiter>(2);
+                }
+
+                waiting[id].add(waiter);
+            }
+        }
+
+        return waiter;
+    }
+
+    private void removeWaiter(Waiter waiter) {
+        if (waiter == null) {
+            return;
+        }
+
+        if (waiter.filter == null) {
+            waitingForAny.remove(waiter);
+        } else {
+            for (int i = 0; i < waiter.filter.length; i++) {
+                List<Waiter> list = waiting[waiter.filter[i] & 0xFF];
+
+                if (list != null) {
+                    list.remove(waiter);
                 }
             }
         }
+    }
+
+    private static void signal(List<Waiter> list) {
+        if (list != null) {
+            for (int i = 0; i < list.size(); i++) {
+                list.get(i).condition.signal();
+            }
+        }
+    }
+
+    private void signalAll() {
+        for (int id = 0; id < waiting.length; id++) {
+            signal(waiting[id]);
+        }
 
-        return null;
+        signal(waitingForAny);
     }
 
     /**
@@ -505,7 +679,7 @@ public final class SshMessageStore {
      *
      * @since 0.2.0
      */
-    public synchronized SshMessage peekMessage(int messageId)
+    public SshMessage peekMessage(int messageId)
         throws MessageStoreEOFException, MessageNotAvailableException, 
             InterruptedException {
         return peekMessage(messageId, 0);
@@ -520,8 +694,25 @@ public final class SshMessageStore {
      *
      * @since 0.2.0
      */
-    public synchronized void removeMessage(SshMessage msg) {
-        messages.remove(msg);
+    public void removeMessage(SshMessage msg) {
+        lock.lock();
+
+        try {
+            ArrayDeque<Queued> queue = queues[msg.getMessageId() & 0xFF];
+
+            if (queue != null) {
+                for (Iterator<Queued> it = queue.iterator(); it.hasNext();) {
+                    if (it.next().msg == msg) {
+                        it.remove();
+                        count--;
+
+                        break;
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -541,12 +732,10 @@ public final class SshMessageStore {
      *
      * @since 0.2.0
      */
-    public synchronized SshMessage peekMessage(int messageId, int timeout)
+    public SshMessage peekMessage(int messageId, int timeout)
         throws MessageStoreEOFException, MessageNotAvailableException, 
             InterruptedException {
-        singleIdFilter[0] = messageId;
-
-        return peekMessage(singleIdFilter, timeout);
+        return peekMessage(new int[] { messageId }, timeout);
     }
 
     /**
@@ -560,8 +749,18 @@ public final class SshMessageStore {
      * @since 0.2.0
      */
     public void registerMessage(int messageId, Class<?> implementor) {
-        Integer id = new Integer(messageId);
-        register.put(id, implementor);
+        Constructor<?> constructor;
+
+        try {
+            constructor = implementor.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (Exception ex) {
+            // Reported when a message of this type is created
+            constructor = null;
+        }
+
+        constructors[messageId] = constructor;
+        register[messageId] = implementor;
     }
 
     /**
@@ -574,7 +773,15 @@ public final class SshMessageStore {
      * @since 0.2.0
      */
     public Object[] getRegisteredMessageIds() {
-        return register.keySet().toArray();
+        List<Integer> ids = new ArrayList<Integer>();
+
+        for (int id = 0; id < register.length; id++) {
+            if (register[id] != null) {
+                ids.add(Integer.valueOf(id));
+            }
+        }
+
+        return ids.toArray();
     }
 
     /**
@@ -594,25 +801,78 @@ public final class SshMessageStore {
      */
     public SshMessage createMessage(byte[] msgdata)
         throws MessageNotRegisteredException, InvalidMessageException {
-        Integer messageId = SshMessage.getMessageId(msgdata);
+        return createMessage(msgdata, 0, msgdata.length);
+    }
+
+    /**
+     * <p>
+     * Create a formed message from raw message data held within a larger
+     * array. The message reads directly from the array so the data is not
+     * copied.
+     * </p>
+     *
+     * @param msgdata the array containing the raw message data
+     * @param offset the offset of the message within the array
+     * @param len the length of the message
+     *
+     * @return the formed message
+     *
+     * @throws MessageNotRegisteredException if the message is not a registered
+     *         message
+     * @throws InvalidMessageException if the message is invalid
+     *
+     * @since 0.2.10
+     */
+    public SshMessage createMessage(byte[] msgdata, int offset, int len)
+        throws MessageNotRegisteredException, InvalidMessageException {
+        SshMessage msg = newMessage(SshMessage.getMessageId(msgdata, offset));
+        msg.fromByteArray(new ByteArrayReader(msgdata, offset, len));
+
+        return msg;
+    }
 
+    private SshMessage newMessage(int messageId)
+        throws MessageNotRegisteredException, InvalidMessageException {
         if (!isRegisteredMessage(messageId)) {
-            throw new MessageNotRegisteredException(messageId);
+            throw new MessageNotRegisteredException(Integer.valueOf(messageId));
         }
 
-        Class<?> cls = (Class<?>) register.get(SshMessage.getMessageId(msgdata));
+        Constructor<?> constructor = constructors[messageId];
 
-        try {
-            SshMessage msg = (SshMessage) cls.newInstance();
-            msg.fromByteArray(new ByteArrayReader(msgdata));
+        if (constructor == null) {
+            throw new InvalidMessageException("Instantiation failed for class " +
+                register[messageId].getName());
+        }
 
-            return msg;
+        try {
+            return (SshMessage) constructor.newInstance();
         } catch (IllegalAccessException iae) {
             throw new InvalidMessageException(
-                "Illegal access for implementation class " + cls.getName());
-        } catch (InstantiationException ie) {
+                "Illegal access for implementation class " +
+                register[messageId].getName());
+        } catch (Exception ex) {
             throw new InvalidMessageException("Instantiation failed for class " +
-                cls.getName());
+                register[messageId].getName());
+        }
+    }
+
+    private static class Queued {
+        SshMessage msg;
+        long sequence;
+
+        Queued(SshMessage msg, long sequence) {
+            this.msg = msg;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class Waiter {
+        int[] filter;
+        Condition condition;
+
+        Waiter(int[] filter, Condition condition) {
+            this.filter = filter;
+            this.condition = condition;
         }
     }
 }
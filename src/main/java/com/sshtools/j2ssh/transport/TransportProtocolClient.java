@@ -83,6 +83,15 @@ public class TransportProtocolClient extends TransportProtocolCommon {
         throw new IOException("No messages are registered");
     }
 
+    /**
+     *
+     *
+     * @return
+     */
+    protected boolean isClient() {
+        return true;
+    }
+
     /**
      *
      *
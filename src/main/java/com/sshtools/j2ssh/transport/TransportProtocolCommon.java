@@ -34,6 +34,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,7 +44,10 @@ import com.sshtools.j2ssh.SshThread;
 import com.sshtools.j2ssh.configuration.ConfigurationLoader;
 import com.sshtools.j2ssh.configuration.SshConnectionProperties;
 import com.sshtools.j2ssh.io.ByteArrayWriter;
+import com.sshtools.j2ssh.net.SelectableTransportProvider;
 import com.sshtools.j2ssh.net.TransportProvider;
+import com.sshtools.j2ssh.transport.compression.SshCompression;
+import com.sshtools.j2ssh.transport.compression.SshCompressionFactory;
 import com.sshtools.j2ssh.transport.kex.KeyExchangeException;
 import com.sshtools.j2ssh.transport.kex.SshKeyExchange;
 import com.sshtools.j2ssh.transport.kex.SshKeyExchangeFactory;
@@ -67,6 +71,7 @@ implements TransportProtocol, Runnable
     public final static int EOL_LF = 2;
 
     public static final String PROTOCOL_VERSION = "2.0";
+    private static final int SSH_MSG_USERAUTH_SUCCESS = 52;
 
     public static String SOFTWARE_VERSION_COMMENTS = "http://www.sshtools.com " +
         ConfigurationLoader.getVersionString("J2SSH", "j2ssh.properties");
@@ -98,8 +103,20 @@ implements TransportProtocol, Runnable
 
     protected TransportProtocolAlgorithmSync algorithmsOut;
 
+    // zlib@openssh.com compression is held back until the user has
+    // authenticated
+    private SshCompression delayedCompressionIn = null;
+    private SshCompression delayedCompressionOut = null;
+    private boolean authenticated = false;
+    private Object compressionLock = new Object();
+
     protected TransportProtocolState state = new TransportProtocolState();
     private byte[] exchangeHash = null;
+    private String kexHashAlgorithm = "SHA";
+
+    // Key exchange methods share message ids so the messages of the one in
+    // progress take precedence
+    private SshKeyExchange activeKex = null;
 
     protected byte[] sessionIdentifier = null;
 
@@ -142,7 +159,11 @@ implements TransportProtocol, Runnable
     private int remoteEOL = EOL_CRLF;
 
     //private Map registeredMessages = new HashMap();
-    private List<SshMessageStore> messageStores = new ArrayList<SshMessageStore>();
+    private List<SshMessageStore> messageStores = new CopyOnWriteArrayList<SshMessageStore>();
+
+    // The store each message id was last routed to; rebuilt whenever the
+    // stores change
+    private volatile SshMessageStore[] routes = new SshMessageStore[256];
 
     /**
      * Creates a new TransportProtocolCommon object.
@@ -345,22 +366,52 @@ implements TransportProtocol, Runnable
         startBinaryPacketProtocol();
       } 
       catch (Throwable e) {
-        if (e instanceof IOException) {
-          state.setLastError((IOException) e);
-        }
-        
-        if (state.getValue() != TransportProtocolState.DISCONNECTED) {
-          log.error("The Transport Protocol thread failed", e);
-          
-          //log.info(e.getMessage());
-          stop();
-        }
+        onTransportFailure(e);
       } 
       finally {
-        thread = null;
+        // A selectable transport resumes on pooled threads that take
+        // their context from this one
+        if (!(provider instanceof SelectableTransportProvider)) {
+          thread = null;
+        }
+      }
+      
+      if (state.getValue() == TransportProtocolState.DISCONNECTED) {
+        log.debug("The Transport Protocol has been stopped");
+      }
+    }
+
+    private void onTransportFailure(Throwable e) {
+      if (e instanceof IOException) {
+        state.setLastError((IOException) e);
       }
       
-      log.debug("The Transport Protocol has been stopped");
+      if (state.getValue() != TransportProtocolState.DISCONNECTED) {
+        log.error("The Transport Protocol thread failed", e);
+        
+        //log.info(e.getMessage());
+        stop();
+      }
+    }
+
+    /**
+     * <p>
+     * Continues the message loop of a transport that was suspended whilst
+     * its connection was idle. This is executed by the selector's worker
+     * pool once data is available.
+     * </p>
+     */
+    private void resumeTransportProtocol() {
+      if ((thread != null) && SshThread.hasCurrentThread()) {
+        SshThread.getCurrentThread().inheritContext(thread);
+      }
+
+      try {
+        processBinaryPackets();
+      }
+      catch (Throwable e) {
+        onTransportFailure(e);
+      }
     }
 
     /**
@@ -386,8 +437,20 @@ implements TransportProtocol, Runnable
         if (sender instanceof SshKeyExchange ||
                 sender instanceof TransportProtocolCommon ||
                 (currentState == TransportProtocolState.CONNECTED)) {
+            // Packets after the authentication success are compressed, the
+            // inflater must be in place before the client can reply
+            boolean authSuccess = (msg.getMessageId() == SSH_MSG_USERAUTH_SUCCESS);
+
+            if (authSuccess) {
+                startDelayedCompression(true, false);
+            }
+
             sshOut.sendMessage(msg);
 
+            if (authSuccess) {
+                startDelayedCompression(false, true);
+            }
+
             if (currentState == TransportProtocolState.CONNECTED) {
                 if (sendIgnore) {
                     byte[] count = new byte[1];
@@ -651,16 +714,27 @@ implements TransportProtocol, Runnable
             SshKeyExchange kex = (SshKeyExchange) kexs.get(kexAlgorithm);
 
             // Do the key exchange
-            performKeyExchange(kex);
+            activeKex = kex;
+
+            try {
+                performKeyExchange(kex);
+            } finally {
+                activeKex = null;
+            }
 
             // Record the output
             exchangeHash = kex.getExchangeHash();
+            kexHashAlgorithm = kex.getHashAlgorithm();
 
             if (sessionIdentifier == null) {
                 sessionIdentifier = new byte[exchangeHash.length];
                 System.arraycopy(exchangeHash, 0, sessionIdentifier, 0,
                     sessionIdentifier.length);
                 thread.setSessionId(sessionIdentifier);
+
+                if (SshThread.hasCurrentThread()) {
+                    SshThread.getCurrentThread().setSessionId(sessionIdentifier);
+                }
             }
 
             hostKey = kex.getHostKey();
@@ -838,6 +912,7 @@ implements TransportProtocol, Runnable
             log.debug("Creating algorithm objects");
             setupNewKeys(encryptionKey, encryptionIV, decryptionKey,
                 decryptionIV, sendMac, receiveMac);
+            setupNewCompression();
 
             // Reset the key exchange
             clientKexInit = null;
@@ -950,7 +1025,10 @@ implements TransportProtocol, Runnable
     protected void startBinaryPacketProtocol() throws IOException {
         // Send our Kex Init
         sendKeyExchangeInit();
+        processBinaryPackets();
+    }
 
+    private void processBinaryPackets() throws IOException {
         SshMessage msg;
 
         // Perform a transport protocol message loop
@@ -959,6 +1037,11 @@ implements TransportProtocol, Runnable
             // messages to be handled here
             msg = processMessages();
 
+            if (msg == null) {
+                // The next packet has not arrived and the selector will resume us
+                return;
+            }
+
             if (log.isDebugEnabled()) {
                 log.debug("Received " + msg.getMessageName());
             }
@@ -1027,6 +1110,7 @@ implements TransportProtocol, Runnable
         }
 
         messageStores.clear();
+        routes = new SshMessageStore[256];
 
         // 05/01/2003 moizd change end:
         messageStore = null;
@@ -1038,12 +1122,95 @@ implements TransportProtocol, Runnable
 	state.setValue(TransportProtocolState.DISCONNECTED);
     }
 
+    /**
+     * <p>
+     * Returns the zlib compression level to use for outgoing packets.
+     * </p>
+     *
+     * @return the compression level
+     *
+     * @since 0.2.10
+     */
+    protected int getCompressionLevel() {
+        return properties.getCompressionLevel();
+    }
+
+    private void setupNewCompression()
+        throws AlgorithmNotAgreedException, AlgorithmNotSupportedException {
+        // The compression streams are restarted with every key exchange
+        String algorithm = getOutputStreamCompAlgorithm();
+        SshCompression compression = SshCompressionFactory.newInstance(algorithm);
+
+        if (compression != null) {
+            compression.init(SshCompression.DEFLATER, getCompressionLevel());
+        }
+
+        synchronized (compressionLock) {
+            if (algorithm.equals(SshCompressionFactory.COMP_ZLIB_DELAYED) &&
+                    !authenticated) {
+                delayedCompressionOut = compression;
+                compression = null;
+            }
+
+            algorithmsOut.setCompression(compression);
+
+            algorithm = getInputStreamCompAlgortihm();
+            compression = SshCompressionFactory.newInstance(algorithm);
+
+            if (compression != null) {
+                compression.init(SshCompression.INFLATER, 0);
+            }
+
+            if (algorithm.equals(SshCompressionFactory.COMP_ZLIB_DELAYED) &&
+                    !authenticated) {
+                delayedCompressionIn = compression;
+                compression = null;
+            }
+
+            algorithmsIn.setCompression(compression);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns whether this is the client side of the connection. Delayed
+     * compression is started by a received authentication success only on
+     * the client.
+     * </p>
+     *
+     * @return <tt>true</tt> on the client, by default <tt>false</tt>
+     *
+     * @since 0.2.10
+     */
+    protected boolean isClient() {
+        return false;
+    }
+
+    private void startDelayedCompression(boolean incoming, boolean outgoing) {
+        synchronized (compressionLock) {
+            authenticated = true;
+
+            if (outgoing && (delayedCompressionOut != null)) {
+                log.debug("Starting delayed outgoing compression");
+                algorithmsOut.setCompression(delayedCompressionOut);
+                delayedCompressionOut = null;
+            }
+
+            if (incoming && (delayedCompressionIn != null)) {
+                log.debug("Starting delayed incoming compression");
+                algorithmsIn.setCompression(delayedCompressionIn);
+                delayedCompressionIn = null;
+            }
+        }
+    }
+
     private byte[] makeSshKey(char chr) throws IOException {
         try {
-            // Create the first 20 bytes of key data
+            // Create the first block of key data using the hash algorithm
+            // of the key exchange
             ByteArrayWriter keydata = new ByteArrayWriter();
-            byte[] data = new byte[20];
-            Hash hash = new Hash("SHA");
+            byte[] data;
+            Hash hash = new Hash(kexHashAlgorithm);
 
             // Put the dh k value
             hash.putBigInteger(k);
@@ -1057,32 +1224,36 @@ implements TransportProtocol, Runnable
             // Put the exchange hash in again
             hash.putBytes(sessionIdentifier);
 
-            // Create the fist 20 bytes
+            // Create the first block
             data = hash.doFinal();
             keydata.write(data);
 
-            // Now do the next 20
-            hash.reset();
+            // Extend the key until there is enough for the largest cipher
+            // key (chacha20-poly1305 uses two 256 bit keys)
+            while (keydata.size() < 64) {
+                hash.reset();
 
-            // Put the dh k value in again
-            hash.putBigInteger(k);
+                // Put the dh k value in again
+                hash.putBigInteger(k);
 
-            // And the exchange hash
-            hash.putBytes(exchangeHash);
+                // And the exchange hash
+                hash.putBytes(exchangeHash);
 
-            // Finally the first 20 bytes of data we created
-            hash.putBytes(data);
-            data = hash.doFinal();
+                // Finally all the key data we have created so far
+                hash.putBytes(keydata.toByteArray());
+                data = hash.doFinal();
 
-            // Put it all together
-            keydata.write(data);
+                // Put it all together
+                keydata.write(data);
+            }
 
             // Return it
             return keydata.toByteArray();
         } catch (NoSuchAlgorithmException nsae) {
             sendDisconnect(SshMsgDisconnect.KEY_EXCHANGE_FAILED,
                 "Application error");
-            throw new TransportProtocolException("SHA algorithm not supported");
+            throw new TransportProtocolException(kexHashAlgorithm +
+                " algorithm not supported");
         } catch (IOException ioe) {
             sendDisconnect(SshMsgDisconnect.KEY_EXCHANGE_FAILED,
                 "Application error");
@@ -1242,26 +1413,37 @@ implements TransportProtocol, Runnable
      */
     public SshMessage readMessage(int[] filter) throws IOException {
         byte[] msgdata = null;
+        int msgoffset = 0;
+        int msglen = 0;
         SshMessage msg;
 
         while (state.getValue() != TransportProtocolState.DISCONNECTED) {
             boolean hasmsg = false;
 
             while (!hasmsg) {
-                msgdata = sshIn.readMessage();
+                msglen = sshIn.readMessage();
+                msgdata = sshIn.getMessageData();
+                msgoffset = sshIn.getMessageOffset();
                 hasmsg = true;
             }
 
-            Integer messageId = SshMessage.getMessageId(msgdata);
+            int messageId = SshMessage.getMessageId(msgdata, msgoffset);
+
+            // Only a server can authenticate us; the server starts its own
+            // delayed compression when it sends the success
+            if ((messageId == SSH_MSG_USERAUTH_SUCCESS) && isClient()) {
+                startDelayedCompression(true, true);
+            }
 
             // First check the filter
             for (int i = 0; i < filter.length; i++) {
-                if (filter[i] == messageId.intValue()) {
+                if (filter[i] == messageId) {
                     if (messageStore.isRegisteredMessage(messageId)) {
-                        return messageStore.createMessage(msgdata);
+                        return messageStore.createMessage(msgdata, msgoffset,
+                            msglen);
                     } else {
                         SshMessageStore ms = getMessageStore(messageId);
-                        msg = ms.createMessage(msgdata);
+                        msg = ms.createMessage(msgdata, msgoffset, msglen);
 
                         if (log.isDebugEnabled()) {
                             log.debug("Processing " + msg.getMessageName());
@@ -1273,9 +1455,9 @@ implements TransportProtocol, Runnable
             }
 
             if (messageStore.isRegisteredMessage(messageId)) {
-                msg = messageStore.createMessage(msgdata);
+                msg = messageStore.createMessage(msgdata, msgoffset, msglen);
 
-                switch (messageId.intValue()) {
+                switch (messageId) {
                 case SshMsgDisconnect.SSH_MSG_DISCONNECT: {
                     onMsgDisconnect((SshMsgDisconnect) msg);
 
@@ -1315,12 +1497,16 @@ implements TransportProtocol, Runnable
     /**
      *
      *
-     * @return
+     * @return the next transport protocol message, or <code>null</code> if
+     *         the next packet has not fully arrived and the message loop
+     *         has been handed back to a selectable transport provider
      *
      * @throws IOException
      */
     protected SshMessage processMessages() throws IOException {
         byte[] msgdata = null;
+        int msgoffset = 0;
+        int msglen = 0;
         SshMessage msg;
         SshMessageStore ms;
 
@@ -1345,11 +1531,25 @@ implements TransportProtocol, Runnable
               sendKeyExchangeInit();
             }
             
+            if ((provider instanceof SelectableTransportProvider) &&
+                    !sshIn.hasMessage()) {
+                // Give up the thread until more of the packet arrives
+                ((SelectableTransportProvider) provider).resumeWhenReadable(new Runnable() {
+                        public void run() {
+                            resumeTransportProtocol();
+                        }
+                    });
+
+                return null;
+            }
+
             boolean hasmsg = false;
 
             while (!hasmsg) {
                 try {
-                    msgdata = sshIn.readMessage();
+                    msglen = sshIn.readMessage();
+                    msgdata = sshIn.getMessageData();
+                    msgoffset = sshIn.getMessageOffset();
                     hasmsg = true;
                 } catch (InterruptedIOException ex /* SocketTimeoutException ex */) {
                     log.info("Possible timeout on transport inputstream");
@@ -1360,12 +1560,18 @@ implements TransportProtocol, Runnable
                 }
             }
 
-            Integer messageId = SshMessage.getMessageId(msgdata);
+            int messageId = SshMessage.getMessageId(msgdata, msgoffset);
+
+            // Only a server can authenticate us; the server starts its own
+            // delayed compression when it sends the success
+            if ((messageId == SSH_MSG_USERAUTH_SUCCESS) && isClient()) {
+                startDelayedCompression(true, true);
+            }
 
             if (!messageStore.isRegisteredMessage(messageId)) {
                 try {
                     ms = getMessageStore(messageId);
-                    msg = ms.createMessage(msgdata);
+                    msg = ms.createMessage(msgdata, msgoffset, msglen);
 
                     if (log.isDebugEnabled()) {
                         log.info("Received " + msg.getMessageName());
@@ -1374,12 +1580,12 @@ implements TransportProtocol, Runnable
                     ms.addMessage(msg);
                 } catch (MessageNotRegisteredException mnre) {
                     log.info("Unimplemented message received " +
-                        String.valueOf(messageId.intValue()));
+                        String.valueOf(messageId));
                     msg = new SshMsgUnimplemented(sshIn.getSequenceNo());
                     sendMessage(msg, this);
                 }
             } else {
-                return messageStore.createMessage(msgdata);
+                return messageStore.createMessage(msgdata, msgoffset, msglen);
             }
         }
 
@@ -1396,18 +1602,34 @@ implements TransportProtocol, Runnable
     public void addMessageStore(SshMessageStore store)
         throws MessageAlreadyRegisteredException {
         messageStores.add(store);
+        routes = new SshMessageStore[256];
     }
 
-    private SshMessageStore getMessageStore(Integer messageId)
+    private SshMessageStore getMessageStore(int messageId)
         throws MessageNotRegisteredException {
+        SshKeyExchange kex = activeKex;
+
+        if ((kex != null) &&
+                kex.getMessageStore().isRegisteredMessage(messageId)) {
+            return kex.getMessageStore();
+        }
+
+        SshMessageStore[] routes = this.routes;
+        SshMessageStore route = routes[messageId];
+
+        if (route != null) {
+            return route;
+        }
 
         for (final SshMessageStore ms : messageStores) {
             if (ms.isRegisteredMessage(messageId)) {
+                routes[messageId] = ms;
+
                 return ms;
             }
         }
 
-        throw new MessageNotRegisteredException(messageId);
+        throw new MessageNotRegisteredException(Integer.valueOf(messageId));
     }
 
     /**
@@ -1417,5 +1639,6 @@ implements TransportProtocol, Runnable
      */
     public void removeMessageStore(SshMessageStore ms) {
         messageStores.remove(ms);
+        routes = new SshMessageStore[256];
     }
 }
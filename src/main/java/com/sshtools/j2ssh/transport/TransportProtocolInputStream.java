@@ -34,12 +34,17 @@ import java.net.SocketException;
 
 import com.sshtools.j2ssh.io.ByteArrayReader;
 import com.sshtools.j2ssh.io.ByteArrayWriter;
+import com.sshtools.j2ssh.transport.cipher.SshAeadCipher;
 import com.sshtools.j2ssh.transport.cipher.SshCipher;
 import com.sshtools.j2ssh.transport.compression.SshCompression;
 import com.sshtools.j2ssh.transport.hmac.SshHmac;
 
 
 class TransportProtocolInputStream {
+    private static final int MAX_UNCOMPRESSED_LENGTH = 262144;
+
+    // The largest packet length accepted from the remote side, as OpenSSH
+    private static final int MAX_PACKET_LENGTH = 262144;
     //private static Log log = LogFactory.getLog(TransportProtocolInputStream.class);
     private long bytesTransfered = 0;
     private BufferedInputStream in;
@@ -51,6 +56,10 @@ class TransportProtocolInputStream {
     private SshCipher cipher;
     private SshHmac hmac;
     private SshCompression compression;
+    private SshAeadCipher aead;
+
+    // Whether the length of the next packet has already been decoded
+    private boolean lengthRead = false;
     int msglen;
     int padlen;
     int read;
@@ -58,11 +67,10 @@ class TransportProtocolInputStream {
     int cipherlen = 8;
     int maclen = 0;
 
-    //byte[] buffer = new byte[128 * cipherlen];
-    ByteArrayWriter message = new ByteArrayWriter();
-    byte[] initial = new byte[cipherlen];
-    byte[] data = new byte[65535];
     byte[] buffered = new byte[65535];
+    private ByteArrayWriter uncompressed = null;
+    byte[] msgdata;
+    int msgoffset;
     int startpos = 0;
     int endpos = 0;
 
@@ -115,46 +123,113 @@ class TransportProtocolInputStream {
     }
 
     /**
+     * <p>
+     * Reads whatever data the underlying stream has without blocking and
+     * determines whether the whole of the next packet has arrived, so that
+     * <code>readMessage</code> will not block. The packet length is decoded
+     * as soon as enough data is buffered and is kept for the next call.
+     * </p>
+     *
+     * @return <tt>true</tt> if the next packet can be read without blocking
      *
+     * @throws IOException
+     */
+    protected boolean hasMessage() throws IOException {
+        if (!lengthRead) {
+            initAlgorithms();
+
+            if (!fillAvailable(getHeaderLength())) {
+                return false;
+            }
+
+            readPacketLength();
+        }
+
+        return fillAvailable(msglen + 4 + maclen);
+    }
+
+    /**
+     * <p>
+     * Makes room in the buffer for <code>len</code> bytes starting at
+     * <code>startpos</code>.
+     * </p>
+     *
+     * @param len
+     */
+    private void ensureCapacity(int len) {
+        // Double check the buffer has enough room for the data
+        if ((buffered.length - startpos) < len) {
+            // no it does not odds are that the startpos is too high
+            System.arraycopy(buffered, startpos, buffered, 0,
+                endpos - startpos);
+
+            endpos -= startpos;
+
+            startpos = 0;
+
+            if (buffered.length < len) {
+                // Last resort resize the buffer to the required length
+                // this should stop any chance of error
+                byte[] tmp = new byte[len];
+
+                System.arraycopy(buffered, 0, tmp, 0, endpos);
+
+                buffered = tmp;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Reads the data available from the underlying stream, without blocking,
+     * until <code>len</code> bytes are buffered.
+     * </p>
      *
-     * @param buf
-     * @param off
      * @param len
      *
-     * @return
+     * @return <tt>true</tt> if <code>len</code> bytes are buffered
      *
      * @throws IOException
      */
-    protected int readBufferedData(byte[] buf, int off, int len)
-        throws IOException {
-        int read;
+    private boolean fillAvailable(int len) throws IOException {
+        int available;
 
         if ((endpos - startpos) < len) {
-            // Double check the buffer has enough room for the data
-            if ((buffered.length - endpos) < len) {
-                /*if (log.isDebugEnabled()) {
-                      log.debug("Trimming used data from buffer");
-                                 }*/
+            ensureCapacity(len);
 
-                // no it does not odds are that the startpos is too high
-                System.arraycopy(buffered, startpos, buffered, 0,
-                    endpos - startpos);
+            while (((endpos - startpos) < len) &&
+                    ((available = in.available()) > 0)) {
+                int read = in.read(buffered, endpos,
+                        Math.min(available, buffered.length - endpos));
 
-                endpos -= startpos;
+                if (read < 0) {
+                    throw new IOException("The socket is EOF");
+                }
 
-                startpos = 0;
+                endpos += read;
+            }
+        }
 
-                if ((buffered.length - endpos) < len) {
-                    //log.debug("Resizing message buffer");
-                    // Last resort resize the buffer to the required length
-                    // this should stop any chance of error
-                    byte[] tmp = new byte[buffered.length + len];
+        return (endpos - startpos) >= len;
+    }
 
-                    System.arraycopy(buffered, 0, tmp, 0, endpos);
+    /**
+     * <p>
+     * Blocks until at least <code>len</code> bytes are available in the
+     * buffer starting at <code>startpos</code>. The buffer may be compacted
+     * or grown to make room, so positions must be recalculated from
+     * <code>startpos</code> after calling this method.
+     * </p>
+     *
+     * @param len
+     *
+     * @throws IOException
+     */
+    protected void fillBuffer(int len) throws IOException {
+        int read;
 
-                    buffered = tmp;
-                }
-            }
+        if ((endpos - startpos) < len) {
+            ensureCapacity(len);
 
             // If there is not enough data then block and read until there is (if still connected)
             while (((endpos - startpos) < len) &&
@@ -176,147 +251,210 @@ class TransportProtocolInputStream {
 
                 endpos += read;
             }
-        }
-
-//        try {
-            System.arraycopy(buffered, startpos, buf, off, len);
-//        } catch (Throwable t) {
-//            System.out.println();
-//        }
-
-        startpos += len;
 
-        /*if (log.isDebugEnabled()) {
-               log.debug("Buffer StartPos=" + String.valueOf(startpos)
-                + " EndPos=" + String.valueOf(endpos));
-         }*/
-
-        // Try to reset the buffer
-        if (startpos >= endpos) {
-            // if (log.isDebugEnabled()) {
-            // log.debug("Buffer has been reset");
-            // }
-            endpos = 0;
-
-            startpos = 0;
+            if ((endpos - startpos) < len) {
+                throw new IOException("The transport protocol disconnected");
+            }
         }
-
-        return len;
     }
 
     /**
+     * <p>
+     * Returns the array holding the last message read. The message is only
+     * valid until the next call to <code>readMessage</code>.
+     * </p>
      *
+     * @return
+     */
+    public byte[] getMessageData() {
+        return msgdata;
+    }
+
+    /**
+     * <p>
+     * Returns the offset of the last message read within the array returned
+     * by <code>getMessageData</code>.
+     * </p>
      *
      * @return
+     */
+    public int getMessageOffset() {
+        return msgoffset;
+    }
+
+    /**
+     * <p>
+     * Reads the next binary packet, decrypting and verifying it in place
+     * within the receive buffer. On return the message, starting with the
+     * packet length and padding length fields and ending at the last byte of
+     * the payload, is available through <code>getMessageData</code> and
+     * <code>getMessageOffset</code>.
+     * </p>
+     *
+     * @return the length of the message
      *
      * @throws SocketException
      * @throws IOException
      */
-    public byte[] readMessage() throws SocketException, IOException {
-        // Reset the message for the next
-        message.reset();
+    public int readMessage() throws SocketException, IOException {
+        if (!lengthRead) {
+            initAlgorithms();
+            fillBuffer(getHeaderLength());
+            readPacketLength();
+        }
 
-        // Read the first byte of this message (this is so we block
-        // but we will determine the cipher length before reading all
-        read = readBufferedData(initial, 0, cipherlen);
+        // Read the whole packet and mac
+        fillBuffer(msglen + 4 + maclen);
+        lengthRead = false;
 
-        cipher = algorithms.getCipher();
-
-        hmac = algorithms.getHmac();
-
-        compression = algorithms.getCompression();
+        if (aead != null) {
+            // Verify and decrypt in place
+            synchronized (sequenceLock) {
+                if (!aead.decryptPacket(sequenceNo, buffered, startpos,
+                            msglen + 4)) {
+                    throw new IOException("Corrupt Mac on input");
+                }
 
-        // If the cipher object has been set then make sure
-        // we have the correct blocksize
-        if (cipher != null) {
-            cipherlen = cipher.getBlockSize();
+                incrementSequenceNo();
+            }
         } else {
-            cipherlen = 8;
-        }
+            // Decrypt the remaining data in place
+            remaining = (msglen - (cipherlen - 4));
 
-        // Verify we have enough buffer size for the initial block
-        if (initial.length != cipherlen) {
-            // Create a temporary array for the new block size and copy
-            byte[] tmp = new byte[cipherlen];
+            if ((cipher != null) && (remaining > 0)) {
+                cipher.transform(buffered, startpos + cipherlen, buffered,
+                    startpos + cipherlen, remaining);
+            }
 
-            System.arraycopy(initial, 0, tmp, 0, initial.length);
+            synchronized (sequenceLock) {
+                if (hmac != null) {
+                    // Verify the mac
+                    if (!hmac.verify(sequenceNo, buffered, startpos,
+                                msglen + 4, buffered, startpos + msglen + 4)) {
+                        throw new IOException("Corrupt Mac on input");
+                    }
+                }
 
-            // Now change the initial buffer to our new array
-            initial = tmp;
+                incrementSequenceNo();
+            }
         }
 
-        // Now read the rest of the first block of data if necessary
-        int count = read;
+        padlen = buffered[startpos + 4] & 0xFF;
 
-        if (count < initial.length) {
-            count += readBufferedData(initial, count, initial.length - count);
+        if (padlen >= msglen) {
+            throw new IOException("Invalid padding length " +
+                String.valueOf(padlen));
         }
 
-        // Record the mac length
-        if (hmac != null) {
-            maclen = hmac.getMacLength();
-        } else {
-            maclen = 0;
-        }
+        bytesTransfered += (msglen + 4 + maclen);
 
-        // Decrypt the data if we have a valid cipher
-        if (cipher != null) {
-            initial = cipher.transform(initial);
+        msgdata = buffered;
+        msgoffset = startpos;
+        read = (msglen + 4) - padlen;
+
+        // Release the packet from the buffer; the data remains in place
+        // until the next read
+        startpos += (msglen + 4 + maclen);
+
+        if (startpos >= endpos) {
+            endpos = 0;
+            startpos = 0;
         }
 
-        // Save the initial data
-        message.write(initial);
+        // Delayed compression may have started whilst waiting for this
+        // packet, so only check for it now
+        compression = algorithms.getCompression();
 
-        // Preview the message length
-        msglen = (int) ByteArrayReader.readInt(initial, 0);
+        // Uncompress the message payload if necessary
+        if (compression != null) {
+            if (uncompressed == null) {
+                uncompressed = new ByteArrayWriter(35000);
+            }
 
-        padlen = initial[4];
+            // Keep the packet header in front of the payload so the message
+            // is laid out the same as an uncompressed one
+            uncompressed.reset();
+            uncompressed.write(msgdata, msgoffset, 5);
+            compression.uncompress(msgdata, msgoffset + 5, read - 5,
+                uncompressed, MAX_UNCOMPRESSED_LENGTH - 5);
 
-        // Read, decrypt and save the remaining data
-        remaining = (msglen - (cipherlen - 4));
+            msgdata = uncompressed.getArray();
+            msgoffset = 0;
+            read = uncompressed.size();
+        }
 
-        while (remaining > 0) {
-            read = readBufferedData(data, 0,
-                    (remaining < data.length)
-                    ? ((remaining / cipherlen) * cipherlen)
-                    : ((data.length / cipherlen) * cipherlen));
-            remaining -= read;
+        return read;
+    }
+
+    private void initAlgorithms() {
+        cipher = algorithms.getCipher();
 
-            // Decrypt the data and/or write it to the message
-            message.write((cipher == null) ? data
-                                           : cipher.transform(data, 0, read),
-                0, read);
+        hmac = algorithms.getHmac();
+
+        // If the cipher object has been set then make sure
+        // we have the correct blocksize
+        if (cipher != null) {
+            cipherlen = cipher.getBlockSize();
+        } else {
+            cipherlen = 8;
         }
 
-        synchronized (sequenceLock) {
-            if (hmac != null) {
-                read = readBufferedData(data, 0, maclen);
+        aead = (cipher instanceof SshAeadCipher) ? (SshAeadCipher) cipher
+                                                 : null;
 
-                message.write(data, 0, read);
+        // Record the mac length
+        if (aead != null) {
+            maclen = aead.getTagLength();
+        } else if (hmac != null) {
+            maclen = hmac.getMacLength();
+        } else {
+            maclen = 0;
+        }
+    }
 
-                // Verify the mac
-                if (!hmac.verify(sequenceNo, message.toByteArray())) {
-                    throw new IOException("Corrupt Mac on input");
-                }
-            }
+    private int getHeaderLength() {
+        // The AEAD packet length is not part of the encrypted blocks
+        return (aead != null) ? 4 : cipherlen;
+    }
 
-            // Increment the sequence no
-            if (sequenceNo < sequenceWrapLimit) {
-                sequenceNo++;
-            } else {
-                sequenceNo = 0;
+    private void readPacketLength() throws IOException {
+        if (aead != null) {
+            msglen = aead.getPacketLength(sequenceNo, buffered, startpos);
+            checkPacketLength(msglen, msglen);
+        } else {
+            // Decrypt the first block in place to determine the length
+            if (cipher != null) {
+                cipher.transform(buffered, startpos, buffered, startpos,
+                    cipherlen);
             }
+
+            msglen = (int) ByteArrayReader.readInt(buffered, startpos);
+            checkPacketLength(msglen, msglen + 4);
         }
 
-        bytesTransfered += message.size();
+        lengthRead = true;
+    }
 
-        byte[] msg = message.toByteArray();
+    private void checkPacketLength(int msglen, int aligned)
+        throws IOException {
+        // Reject huge lengths before they are used to size the buffer
+        if (msglen > MAX_PACKET_LENGTH) {
+            throw new TransportProtocolException("Packet length " +
+                String.valueOf(msglen) + " exceeds the maximum of " +
+                String.valueOf(MAX_PACKET_LENGTH));
+        }
 
-        // Uncompress the message payload if necessary
-        if (compression != null) {
-            return compression.uncompress(msg, 5, (msglen + 4) - padlen - 5);
+        if ((msglen <= 0) || ((aligned % cipherlen) != 0)) {
+            throw new IOException("Invalid packet length " +
+                String.valueOf(msglen));
         }
+    }
 
-        return msg;
+    private void incrementSequenceNo() {
+        if (sequenceNo < sequenceWrapLimit) {
+            sequenceNo++;
+        } else {
+            sequenceNo = 0;
+        }
     }
 }
@@ -32,6 +32,7 @@ import java.util.Random;
 
 import com.sshtools.j2ssh.configuration.ConfigurationLoader;
 import com.sshtools.j2ssh.io.ByteArrayWriter;
+import com.sshtools.j2ssh.transport.cipher.SshAeadCipher;
 import com.sshtools.j2ssh.transport.cipher.SshCipher;
 import com.sshtools.j2ssh.transport.compression.SshCompression;
 import com.sshtools.j2ssh.transport.hmac.SshHmac;
@@ -48,6 +49,14 @@ class TransportProtocolOutputStream {
     private Random rnd = ConfigurationLoader.getRND();
     private long bytesTransfered = 0;
 
+    // Zero filled array used to reserve space in the packet buffer
+    private static final byte[] EMPTY = new byte[64];
+
+    // The packet buffer is reused for every message sent on this transport
+    private ByteArrayWriter packet = new ByteArrayWriter(35000);
+    private ByteArrayWriter compressed = null;
+    private byte[] pad = new byte[12];
+
     /**
      * Creates a new TransportProtocolOutputStream object.
      *
@@ -93,13 +102,14 @@ class TransportProtocolOutputStream {
             SshHmac hmac = algorithms.getHmac();
             SshCompression compression = algorithms.getCompression();
 
-            // Write the data into a byte array
-            ByteArrayWriter message = new ByteArrayWriter();
+            // Reuse the packet buffer, leaving room for the length fields
+            packet.reset();
+            packet.write(EMPTY, 0, 5);
 
-            // Get the message payload data
-            byte[] msgdata = msg.toByteArray();
+            // Encode the message payload directly into the packet
+            msg.toByteArray(packet);
 
-            //int payload = msgdata.length;
+            int payloadlen = packet.size() - 5;
             int padding = 4;
             int cipherlen = 8;
 
@@ -110,58 +120,79 @@ class TransportProtocolOutputStream {
 
             // Compress the payload if necessary
             if (compression != null) {
-                msgdata = compression.compress(msgdata, 0, msgdata.length);
+                if (compressed == null) {
+                    compressed = new ByteArrayWriter(35000);
+                }
+
+                // Compress into the spare buffer and swap it with the packet
+                compressed.reset();
+                compressed.write(EMPTY, 0, 5);
+                compression.compress(packet.getArray(), 5, payloadlen,
+                    compressed);
+
+                ByteArrayWriter tmp = packet;
+                packet = compressed;
+                compressed = tmp;
+                payloadlen = packet.size() - 5;
             }
 
+            // Authenticated ciphers leave the packet length field in the
+            // clear so it is not included in the block alignment
+            SshAeadCipher aead = (cipher instanceof SshAeadCipher)
+                ? (SshAeadCipher) cipher : null;
+            int aadlen = (aead != null) ? 4 : 0;
+
             //Determine the padding length
             padding += ((cipherlen -
-            ((msgdata.length + 5 + padding) % cipherlen)) % cipherlen);
-
-            // Write the packet length field
-            message.writeInt(msgdata.length + 1 + padding);
-
-            // Write the padding length
-            message.write(padding);
-
-            // Write the message payload
-            message.write(msgdata, 0, msgdata.length);
+            ((payloadlen + 5 + padding - aadlen) % cipherlen)) % cipherlen);
 
             // Create some random data for the padding
-            byte[] pad = new byte[padding];
+            if (pad.length < (cipherlen + 4)) {
+                pad = new byte[cipherlen + 4];
+            }
+
             rnd.nextBytes(pad);
 
             // Write the padding
-            message.write(pad);
-
-            // Get the unencrypted packet data
-            byte[] packet = message.toByteArray();
-            byte[] mac = null;
+            packet.write(pad, 0, padding);
 
-            // Generate the MAC
-            if (hmac != null) {
-                mac = hmac.generate(sequenceNo, packet, 0, packet.length);
-            }
+            int packetlen = packet.size();
+            int maclen = 0;
 
-            // Perform encryption
-            if (cipher != null) {
-                packet = cipher.transform(packet);
+            if (aead != null) {
+                maclen = aead.getTagLength();
+            } else if (hmac != null) {
+                maclen = hmac.getMacLength();
             }
 
-            // Reset the message
-            message.reset();
+            // Reserve space for the MAC at the end of the packet
+            packet.write(EMPTY, 0, maclen);
 
-            // Write the packet data
-            message.write(packet);
+            // Now the packet has reached its final size fill in the
+            // packet length and padding length fields
+            byte[] buf = packet.getArray();
+            ByteArrayWriter.writeIntToArray(buf, 0, payloadlen + 1 + padding);
+            buf[4] = (byte) padding;
 
-            // Combine the packet and MAC
-            if (mac != null) {
-                message.write(mac);
+            if (aead != null) {
+                // Encrypt in place and append the authentication tag
+                aead.encryptPacket(sequenceNo, buf, 0, packetlen);
+            } else {
+                // Generate the MAC over the unencrypted packet
+                if (hmac != null) {
+                    hmac.generate(sequenceNo, buf, 0, packetlen, buf, packetlen);
+                }
+
+                // Perform encryption in place
+                if (cipher != null) {
+                    cipher.transform(buf, 0, buf, 0, packetlen);
+                }
             }
 
-            bytesTransfered += message.size();
+            bytesTransfered += packet.size();
 
             // Send!
-            out.write(message.toByteArray());
+            out.write(buf, 0, packet.size());
 
             out.flush();
 
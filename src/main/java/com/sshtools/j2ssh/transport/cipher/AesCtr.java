@@ -0,0 +1,143 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.transport.cipher;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.sshtools.j2ssh.transport.AlgorithmOperationException;
+
+
+/**
+ * <p>
+ * AES in counter mode as defined in RFC 4344. The JCE provider is used so
+ * that hardware AES instructions are picked up where the JVM supports them.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public class AesCtr extends SshCipher {
+    Cipher cipher;
+    private int keyLength;
+
+    /**
+     * Creates a new AesCtr object.
+     *
+     * @param keyLength the length of the AES key in bytes
+     */
+    protected AesCtr(int keyLength) {
+        this.keyLength = keyLength;
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public int getBlockSize() {
+        return 16;
+    }
+
+    /**
+     *
+     *
+     * @param mode
+     * @param iv
+     * @param keydata
+     *
+     * @throws AlgorithmOperationException
+     */
+    public void init(int mode, byte[] iv, byte[] keydata)
+        throws AlgorithmOperationException {
+        try {
+            cipher = Cipher.getInstance("AES/CTR/NoPadding");
+
+            byte[] actualKey = new byte[keyLength];
+            System.arraycopy(keydata, 0, actualKey, 0, actualKey.length);
+
+            SecretKeySpec keyspec = new SecretKeySpec(actualKey, "AES");
+
+            // Counter mode is symmetric but keep the requested mode anyway
+            cipher.init(((mode == ENCRYPT_MODE) ? Cipher.ENCRYPT_MODE
+                                                : Cipher.DECRYPT_MODE),
+                keyspec, new IvParameterSpec(iv, 0, 16));
+        } catch (NoSuchPaddingException nspe) {
+            throw new AlgorithmOperationException("Padding not supported");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AlgorithmOperationException("Algorithm not supported");
+        } catch (InvalidKeyException ike) {
+            throw new AlgorithmOperationException("Invalid encryption key");
+        } catch (InvalidAlgorithmParameterException ape) {
+            throw new AlgorithmOperationException("Invalid algorithm parameter");
+        }
+    }
+
+    /**
+     *
+     *
+     * @param data
+     * @param offset
+     * @param len
+     *
+     * @return
+     *
+     * @throws AlgorithmOperationException
+     */
+    public byte[] transform(byte[] data, int offset, int len)
+        throws AlgorithmOperationException {
+        return cipher.update(data, offset, len);
+    }
+
+    /**
+     *
+     *
+     * @param src
+     * @param srcOffset
+     * @param dest
+     * @param destOffset
+     * @param len
+     *
+     * @throws AlgorithmOperationException
+     */
+    public void transform(byte[] src, int srcOffset, byte[] dest,
+        int destOffset, int len) throws AlgorithmOperationException {
+        try {
+            cipher.update(src, srcOffset, len, dest, destOffset);
+        } catch (ShortBufferException sbe) {
+            throw new AlgorithmOperationException("Output buffer too short");
+        }
+    }
+}
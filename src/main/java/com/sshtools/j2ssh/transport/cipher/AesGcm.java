@@ -0,0 +1,200 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.transport.cipher;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.sshtools.j2ssh.transport.AlgorithmOperationException;
+
+
+/**
+ * <p>
+ * AES in Galois/Counter mode as defined in RFC 5647 and implemented by
+ * OpenSSH as <code>aes128-gcm@openssh.com</code> and
+ * <code>aes256-gcm@openssh.com</code>. The packet length is sent in the
+ * clear as associated data and the 12 byte nonce is a fixed field followed
+ * by a 64 bit invocation counter that is incremented for every packet.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public class AesGcm extends SshAeadCipher {
+    private static final int TAG_LENGTH = 16;
+    Cipher cipher;
+    private SecretKeySpec key;
+    private byte[] iv = new byte[12];
+    private int keyLength;
+    private int mode;
+
+    /**
+     * Creates a new AesGcm object.
+     *
+     * @param keyLength the length of the AES key in bytes
+     */
+    protected AesGcm(int keyLength) {
+        this.keyLength = keyLength;
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public int getBlockSize() {
+        return 16;
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public int getTagLength() {
+        return TAG_LENGTH;
+    }
+
+    /**
+     *
+     *
+     * @param mode
+     * @param iv
+     * @param keydata
+     *
+     * @throws AlgorithmOperationException
+     */
+    public void init(int mode, byte[] iv, byte[] keydata)
+        throws AlgorithmOperationException {
+        try {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+
+            byte[] actualKey = new byte[keyLength];
+            System.arraycopy(keydata, 0, actualKey, 0, actualKey.length);
+            key = new SecretKeySpec(actualKey, "AES");
+
+            System.arraycopy(iv, 0, this.iv, 0, this.iv.length);
+            this.mode = (mode == ENCRYPT_MODE) ? Cipher.ENCRYPT_MODE
+                                               : Cipher.DECRYPT_MODE;
+        } catch (NoSuchPaddingException nspe) {
+            throw new AlgorithmOperationException("Padding not supported");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AlgorithmOperationException("Algorithm not supported");
+        }
+    }
+
+    /**
+     *
+     *
+     * @param sequenceNo
+     * @param data
+     * @param offset
+     * @param len
+     *
+     * @throws AlgorithmOperationException
+     */
+    public void encryptPacket(long sequenceNo, byte[] data, int offset,
+        int len) throws AlgorithmOperationException {
+        try {
+            initPacket();
+            cipher.updateAAD(data, offset, 4);
+            cipher.doFinal(data, offset + 4, len - 4, data, offset + 4);
+        } catch (ShortBufferException sbe) {
+            throw new AlgorithmOperationException("Output buffer too short");
+        } catch (IllegalBlockSizeException ibse) {
+            throw new AlgorithmOperationException("Invalid packet length");
+        } catch (BadPaddingException bpe) {
+            throw new AlgorithmOperationException("Invalid packet padding");
+        } finally {
+            incrementCounter();
+        }
+    }
+
+    /**
+     *
+     *
+     * @param sequenceNo
+     * @param data
+     * @param offset
+     * @param len
+     *
+     * @return
+     *
+     * @throws AlgorithmOperationException
+     */
+    public boolean decryptPacket(long sequenceNo, byte[] data, int offset,
+        int len) throws AlgorithmOperationException {
+        try {
+            initPacket();
+            cipher.updateAAD(data, offset, 4);
+            cipher.doFinal(data, offset + 4, (len - 4) + TAG_LENGTH, data,
+                offset + 4);
+
+            return true;
+        } catch (AEADBadTagException abte) {
+            return false;
+        } catch (ShortBufferException sbe) {
+            throw new AlgorithmOperationException("Output buffer too short");
+        } catch (IllegalBlockSizeException ibse) {
+            throw new AlgorithmOperationException("Invalid packet length");
+        } catch (BadPaddingException bpe) {
+            throw new AlgorithmOperationException("Invalid packet padding");
+        } finally {
+            incrementCounter();
+        }
+    }
+
+    private void initPacket() throws AlgorithmOperationException {
+        try {
+            cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+        } catch (InvalidKeyException ike) {
+            throw new AlgorithmOperationException("Invalid encryption key");
+        } catch (InvalidAlgorithmParameterException ape) {
+            throw new AlgorithmOperationException("Invalid algorithm parameter");
+        }
+    }
+
+    private void incrementCounter() {
+        // The last 8 bytes of the nonce are a big endian invocation counter
+        for (int i = iv.length - 1; i >= 4; i--) {
+            if (++iv[i] != 0) {
+                break;
+            }
+        }
+    }
+}
@@ -36,6 +36,7 @@ import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -125,4 +126,24 @@ public class BlowfishCbc extends SshCipher {
         throws AlgorithmOperationException {
         return cipher.update(data, offset, len);
     }
+
+    /**
+     *
+     *
+     * @param src
+     * @param srcOffset
+     * @param dest
+     * @param destOffset
+     * @param len
+     *
+     * @throws AlgorithmOperationException
+     */
+    public void transform(byte[] src, int srcOffset, byte[] dest,
+        int destOffset, int len) throws AlgorithmOperationException {
+        try {
+            cipher.update(src, srcOffset, len, dest, destOffset);
+        } catch (ShortBufferException sbe) {
+            throw new AlgorithmOperationException("Output buffer too short");
+        }
+    }
 }
@@ -0,0 +1,228 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.transport.cipher;
+
+
+/**
+ * <p>
+ * The original ChaCha20 stream cipher with a 64 bit nonce and 64 bit block
+ * counter, as used by <code>chacha20-poly1305@openssh.com</code>. The state
+ * is kept between packets so that no objects are created per packet, and the
+ * keystream is XORed a whole 64 byte block at a time.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+final class ChaCha20 {
+    private static final int SIGMA0 = 0x61707865;
+    private static final int SIGMA1 = 0x3320646e;
+    private static final int SIGMA2 = 0x79622d32;
+    private static final int SIGMA3 = 0x6b206574;
+    private final int[] state = new int[16];
+    private final int[] keystream = new int[16];
+
+    ChaCha20() {
+        state[0] = SIGMA0;
+        state[1] = SIGMA1;
+        state[2] = SIGMA2;
+        state[3] = SIGMA3;
+    }
+
+    /**
+     * Sets the 256 bit key.
+     *
+     * @param key
+     * @param offset
+     */
+    void setKey(byte[] key, int offset) {
+        for (int i = 0; i < 8; i++) {
+            state[4 + i] = readInt(key, offset + (i * 4));
+        }
+    }
+
+    /**
+     * Sets the nonce to the big endian encoding of the packet sequence number
+     * and resets the block counter.
+     *
+     * @param sequenceNo
+     * @param counter
+     */
+    void setNonce(long sequenceNo, long counter) {
+        state[12] = (int) counter;
+        state[13] = (int) (counter >>> 32);
+
+        // The nonce bytes are the big endian sequence number, which are then
+        // loaded as little endian words like the rest of the state
+        state[14] = Integer.reverseBytes((int) (sequenceNo >>> 32));
+        state[15] = Integer.reverseBytes((int) sequenceNo);
+    }
+
+    /**
+     * XORs the keystream with <code>len</code> bytes of the input. The input
+     * and output may be the same array. Each call starts on a fresh block.
+     *
+     * @param in
+     * @param inOffset
+     * @param out
+     * @param outOffset
+     * @param len
+     */
+    void process(byte[] in, int inOffset, byte[] out, int outOffset, int len) {
+        while (len > 0) {
+            nextBlock();
+
+            int n = (len < 64) ? len : 64;
+
+            if (n == 64) {
+                for (int i = 0; i < 16; i++) {
+                    int k = keystream[i];
+                    int p = i * 4;
+                    out[outOffset + p] = (byte) (in[inOffset + p] ^ k);
+                    out[outOffset + p + 1] = (byte) (in[inOffset + p + 1] ^
+                        (k >>> 8));
+                    out[outOffset + p + 2] = (byte) (in[inOffset + p + 2] ^
+                        (k >>> 16));
+                    out[outOffset + p + 3] = (byte) (in[inOffset + p + 3] ^
+                        (k >>> 24));
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    out[outOffset + i] = (byte) (in[inOffset + i] ^
+                        (keystream[i >> 2] >>> ((i & 3) * 8)));
+                }
+            }
+
+            inOffset += n;
+            outOffset += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Writes the next 64 bytes of raw keystream to the output.
+     *
+     * @param out
+     * @param offset
+     */
+    void keystream(byte[] out, int offset) {
+        nextBlock();
+
+        for (int i = 0; i < 16; i++) {
+            int k = keystream[i];
+            out[offset++] = (byte) k;
+            out[offset++] = (byte) (k >>> 8);
+            out[offset++] = (byte) (k >>> 16);
+            out[offset++] = (byte) (k >>> 24);
+        }
+    }
+
+    private void nextBlock() {
+        int x0 = state[0];
+        int x1 = state[1];
+        int x2 = state[2];
+        int x3 = state[3];
+        int x4 = state[4];
+        int x5 = state[5];
+        int x6 = state[6];
+        int x7 = state[7];
+        int x8 = state[8];
+        int x9 = state[9];
+        int x10 = state[10];
+        int x11 = state[11];
+        int x12 = state[12];
+        int x13 = state[13];
+        int x14 = state[14];
+        int x15 = state[15];
+
+        for (int i = 0; i < 10; i++) {
+            // Column round
+            x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 16);
+            x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 12);
+            x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 8);
+            x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 7);
+            x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 16);
+            x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 12);
+            x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 8);
+            x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 7);
+            x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 16);
+            x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 12);
+            x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 8);
+            x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 7);
+            x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 16);
+            x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 12);
+            x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 8);
+            x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 7);
+
+            // Diagonal round
+            x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 16);
+            x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 12);
+            x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 8);
+            x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 7);
+            x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 16);
+            x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 12);
+            x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 8);
+            x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 7);
+            x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 16);
+            x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 12);
+            x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 8);
+            x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 7);
+            x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 16);
+            x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 12);
+            x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 8);
+            x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 7);
+        }
+
+        keystream[0] = x0 + state[0];
+        keystream[1] = x1 + state[1];
+        keystream[2] = x2 + state[2];
+        keystream[3] = x3 + state[3];
+        keystream[4] = x4 + state[4];
+        keystream[5] = x5 + state[5];
+        keystream[6] = x6 + state[6];
+        keystream[7] = x7 + state[7];
+        keystream[8] = x8 + state[8];
+        keystream[9] = x9 + state[9];
+        keystream[10] = x10 + state[10];
+        keystream[11] = x11 + state[11];
+        keystream[12] = x12 + state[12];
+        keystream[13] = x13 + state[13];
+        keystream[14] = x14 + state[14];
+        keystream[15] = x15 + state[15];
+
+        // Increment the 64 bit block counter
+        if (++state[12] == 0) {
+            state[13]++;
+        }
+    }
+
+    static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) |
+        ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.transport.cipher;
+
+import com.sshtools.j2ssh.transport.AlgorithmOperationException;
+
+
+/**
+ * <p>
+ * The <code>chacha20-poly1305@openssh.com</code> authenticated cipher. This
+ * is implemented in pure Java and is much faster than AES on processors
+ * without AES instructions. The 512 bits of key material form two ChaCha20
+ * keys; the second is used only to encrypt the packet length and the first
+ * encrypts the packet and derives the Poly1305 key. Both use the packet
+ * sequence number as the nonce.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public class ChaCha20Poly1305 extends SshAeadCipher {
+    /**  */
+    protected static String algorithmName = "chacha20-poly1305@openssh.com";
+    private static final int TAG_LENGTH = 16;
+    private ChaCha20 mainCipher = new ChaCha20();
+    private ChaCha20 headerCipher = new ChaCha20();
+    private Poly1305 poly = new Poly1305();
+    private byte[] polyKey = new byte[64];
+    private byte[] tag = new byte[TAG_LENGTH];
+    private byte[] length = new byte[4];
+
+    /**
+     * Creates a new ChaCha20Poly1305 object.
+     */
+    public ChaCha20Poly1305() {
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public int getBlockSize() {
+        return 8;
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public int getTagLength() {
+        return TAG_LENGTH;
+    }
+
+    /**
+     *
+     *
+     * @param mode
+     * @param iv
+     * @param keydata
+     *
+     * @throws AlgorithmOperationException
+     */
+    public void init(int mode, byte[] iv, byte[] keydata)
+        throws AlgorithmOperationException {
+        if (keydata.length < 64) {
+            throw new AlgorithmOperationException(
+                "Not enough key data for chacha20-poly1305");
+        }
+
+        mainCipher.setKey(keydata, 0);
+        headerCipher.setKey(keydata, 32);
+    }
+
+    /**
+     *
+     *
+     * @param sequenceNo
+     * @param data
+     * @param offset
+     *
+     * @return
+     *
+     * @throws AlgorithmOperationException
+     */
+    public int getPacketLength(long sequenceNo, byte[] data, int offset)
+        throws AlgorithmOperationException {
+        // The encrypted length is authenticated so decrypt a copy of it
+        headerCipher.setNonce(sequenceNo, 0);
+        headerCipher.process(data, offset, length, 0, 4);
+
+        return ((length[0] & 0xFF) << 24) | ((length[1] & 0xFF) << 16) |
+        ((length[2] & 0xFF) << 8) | (length[3] & 0xFF);
+    }
+
+    /**
+     *
+     *
+     * @param sequenceNo
+     * @param data
+     * @param offset
+     * @param len
+     *
+     * @throws AlgorithmOperationException
+     */
+    public void encryptPacket(long sequenceNo, byte[] data, int offset,
+        int len) throws AlgorithmOperationException {
+        headerCipher.setNonce(sequenceNo, 0);
+        headerCipher.process(data, offset, data, offset, 4);
+
+        // Block 0 provides the Poly1305 key, the packet starts at block 1
+        mainCipher.setNonce(sequenceNo, 0);
+        mainCipher.keystream(polyKey, 0);
+        mainCipher.process(data, offset + 4, data, offset + 4, len - 4);
+
+        poly.init(polyKey, 0);
+        poly.mac(data, offset, len, data, offset + len);
+    }
+
+    /**
+     *
+     *
+     * @param sequenceNo
+     * @param data
+     * @param offset
+     * @param len
+     *
+     * @return
+     *
+     * @throws AlgorithmOperationException
+     */
+    public boolean decryptPacket(long sequenceNo, byte[] data, int offset,
+        int len) throws AlgorithmOperationException {
+        mainCipher.setNonce(sequenceNo, 0);
+        mainCipher.keystream(polyKey, 0);
+        poly.init(polyKey, 0);
+        poly.mac(data, offset, len, tag, 0);
+
+        int diff = 0;
+
+        for (int i = 0; i < TAG_LENGTH; i++) {
+            diff |= (tag[i] ^ data[offset + len + i]);
+        }
+
+        if (diff != 0) {
+            return false;
+        }
+
+        headerCipher.setNonce(sequenceNo, 0);
+        headerCipher.process(data, offset, data, offset, 4);
+        mainCipher.process(data, offset + 4, data, offset + 4, len - 4);
+
+        return true;
+    }
+}
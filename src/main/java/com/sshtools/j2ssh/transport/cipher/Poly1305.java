@@ -0,0 +1,216 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.transport.cipher;
+
+
+/**
+ * <p>
+ * The Poly1305 one-time authenticator, using 26 bit limbs so that all
+ * products fit in a long. A single instance is reinitialised for every
+ * packet.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+final class Poly1305 {
+    private static final int MASK = 0x3ffffff;
+    private final byte[] block = new byte[16];
+    private int r0;
+    private int r1;
+    private int r2;
+    private int r3;
+    private int r4;
+    private int h0;
+    private int h1;
+    private int h2;
+    private int h3;
+    private int h4;
+    private int pad0;
+    private int pad1;
+    private int pad2;
+    private int pad3;
+
+    /**
+     * Initialises the authenticator with a 32 byte one-time key.
+     *
+     * @param key
+     * @param offset
+     */
+    void init(byte[] key, int offset) {
+        r0 = ChaCha20.readInt(key, offset) & 0x3ffffff;
+        r1 = (ChaCha20.readInt(key, offset + 3) >>> 2) & 0x3ffff03;
+        r2 = (ChaCha20.readInt(key, offset + 6) >>> 4) & 0x3ffc0ff;
+        r3 = (ChaCha20.readInt(key, offset + 9) >>> 6) & 0x3f03fff;
+        r4 = (ChaCha20.readInt(key, offset + 12) >>> 8) & 0x00fffff;
+        pad0 = ChaCha20.readInt(key, offset + 16);
+        pad1 = ChaCha20.readInt(key, offset + 20);
+        pad2 = ChaCha20.readInt(key, offset + 24);
+        pad3 = ChaCha20.readInt(key, offset + 28);
+        h0 = 0;
+        h1 = 0;
+        h2 = 0;
+        h3 = 0;
+        h4 = 0;
+    }
+
+    /**
+     * Authenticates the complete message and writes the 16 byte tag.
+     *
+     * @param data
+     * @param offset
+     * @param len
+     * @param out
+     * @param outOffset
+     */
+    void mac(byte[] data, int offset, int len, byte[] out, int outOffset) {
+        int full = len & ~15;
+
+        for (int i = 0; i < full; i += 16) {
+            processBlock(data, offset + i, 1 << 24);
+        }
+
+        int remaining = len - full;
+
+        if (remaining > 0) {
+            System.arraycopy(data, offset + full, block, 0, remaining);
+            block[remaining] = 1;
+
+            for (int i = remaining + 1; i < 16; i++) {
+                block[i] = 0;
+            }
+
+            processBlock(block, 0, 0);
+        }
+
+        finish(out, outOffset);
+    }
+
+    private void processBlock(byte[] m, int offset, int hibit) {
+        long s1 = r1 * 5L;
+        long s2 = r2 * 5L;
+        long s3 = r3 * 5L;
+        long s4 = r4 * 5L;
+
+        long t0 = h0 + (ChaCha20.readInt(m, offset) & MASK);
+        long t1 = h1 + ((ChaCha20.readInt(m, offset + 3) >>> 2) & MASK);
+        long t2 = h2 + ((ChaCha20.readInt(m, offset + 6) >>> 4) & MASK);
+        long t3 = h3 + ((ChaCha20.readInt(m, offset + 9) >>> 6) & MASK);
+        long t4 = h4 + ((ChaCha20.readInt(m, offset + 12) >>> 8) | hibit);
+
+        long d0 = (t0 * r0) + (t1 * s4) + (t2 * s3) + (t3 * s2) + (t4 * s1);
+        long d1 = (t0 * r1) + (t1 * r0) + (t2 * s4) + (t3 * s3) + (t4 * s2);
+        long d2 = (t0 * r2) + (t1 * r1) + (t2 * r0) + (t3 * s4) + (t4 * s3);
+        long d3 = (t0 * r3) + (t1 * r2) + (t2 * r1) + (t3 * r0) + (t4 * s4);
+        long d4 = (t0 * r4) + (t1 * r3) + (t2 * r2) + (t3 * r1) + (t4 * r0);
+
+        long c = d0 >>> 26;
+        h0 = (int) d0 & MASK;
+        d1 += c;
+        c = d1 >>> 26;
+        h1 = (int) d1 & MASK;
+        d2 += c;
+        c = d2 >>> 26;
+        h2 = (int) d2 & MASK;
+        d3 += c;
+        c = d3 >>> 26;
+        h3 = (int) d3 & MASK;
+        d4 += c;
+        c = d4 >>> 26;
+        h4 = (int) d4 & MASK;
+
+        long f = (d0 & MASK) + (c * 5);
+        h0 = (int) f & MASK;
+        h1 += (int) (f >>> 26);
+    }
+
+    private void finish(byte[] out, int offset) {
+        int c = h1 >>> 26;
+        h1 &= MASK;
+        h2 += c;
+        c = h2 >>> 26;
+        h2 &= MASK;
+        h3 += c;
+        c = h3 >>> 26;
+        h3 &= MASK;
+        h4 += c;
+        c = h4 >>> 26;
+        h4 &= MASK;
+        h0 += (c * 5);
+        c = h0 >>> 26;
+        h0 &= MASK;
+        h1 += c;
+
+        // Compute h - p and select it if there was no borrow
+        int g0 = h0 + 5;
+        c = g0 >>> 26;
+        g0 &= MASK;
+
+        int g1 = h1 + c;
+        c = g1 >>> 26;
+        g1 &= MASK;
+
+        int g2 = h2 + c;
+        c = g2 >>> 26;
+        g2 &= MASK;
+
+        int g3 = h3 + c;
+        c = g3 >>> 26;
+        g3 &= MASK;
+
+        int g4 = (h4 + c) - (1 << 26);
+
+        int select = (g4 >>> 31) - 1;
+        h0 = (h0 & ~select) | (g0 & select);
+        h1 = (h1 & ~select) | (g1 & select);
+        h2 = (h2 & ~select) | (g2 & select);
+        h3 = (h3 & ~select) | (g3 & select);
+        h4 = (h4 & ~select) | (g4 & select);
+
+        // Pack into 128 bits and add the pad
+        long f0 = ((h0 | (h1 << 26)) & 0xffffffffL) + (pad0 & 0xffffffffL);
+        long f1 = (((h1 >>> 6) | (h2 << 20)) & 0xffffffffL) +
+            (pad1 & 0xffffffffL) + (f0 >>> 32);
+        long f2 = (((h2 >>> 12) | (h3 << 14)) & 0xffffffffL) +
+            (pad2 & 0xffffffffL) + (f1 >>> 32);
+        long f3 = (((h3 >>> 18) | (h4 << 8)) & 0xffffffffL) +
+            (pad3 & 0xffffffffL) + (f2 >>> 32);
+
+        writeInt(out, offset, (int) f0);
+        writeInt(out, offset + 4, (int) f1);
+        writeInt(out, offset + 8, (int) f2);
+        writeInt(out, offset + 12, (int) f3);
+    }
+
+    private static void writeInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+        out[offset + 2] = (byte) (value >>> 16);
+        out[offset + 3] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.transport.cipher;
+
+import com.sshtools.j2ssh.io.ByteArrayReader;
+import com.sshtools.j2ssh.transport.AlgorithmOperationException;
+
+
+/**
+ * <p>
+ * Base class for authenticated encryption ciphers such as AES-GCM. These
+ * ciphers encrypt and authenticate a whole binary packet in one operation
+ * and append their own authentication tag, so the transport protocol does
+ * not apply a separate MAC. The packet length field is not encrypted by the
+ * transport protocol; the cipher either authenticates it as associated data
+ * or encrypts it itself, in which case it must override
+ * <code>getPacketLength</code>.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public abstract class SshAeadCipher extends SshCipher {
+    /**
+     * <p>
+     * Returns the length of the authentication tag appended to each packet.
+     * </p>
+     *
+     * @return the tag length in bytes
+     */
+    public abstract int getTagLength();
+
+    /**
+     * <p>
+     * Returns the packet length of the packet starting at the offset given.
+     * Only the first four bytes of the packet need to be available.
+     * </p>
+     *
+     * @param sequenceNo the sequence number of the packet
+     * @param data the array containing the packet
+     * @param offset the offset of the packet within the array
+     *
+     * @return the value of the packet length field
+     *
+     * @throws AlgorithmOperationException
+     */
+    public int getPacketLength(long sequenceNo, byte[] data, int offset)
+        throws AlgorithmOperationException {
+        return (int) ByteArrayReader.readInt(data, offset);
+    }
+
+    /**
+     * <p>
+     * Encrypts a packet in place and writes the authentication tag
+     * immediately after it. The array must have <code>getTagLength()</code>
+     * bytes available after the packet.
+     * </p>
+     *
+     * @param sequenceNo the sequence number of the packet
+     * @param data the array containing the packet
+     * @param offset the offset of the packet length field
+     * @param len the length of the packet including the length field
+     *
+     * @throws AlgorithmOperationException
+     */
+    public abstract void encryptPacket(long sequenceNo, byte[] data,
+        int offset, int len) throws AlgorithmOperationException;
+
+    /**
+     * <p>
+     * Verifies the authentication tag following a packet and decrypts the
+     * packet in place.
+     * </p>
+     *
+     * @param sequenceNo the sequence number of the packet
+     * @param data the array containing the packet and tag
+     * @param offset the offset of the packet length field
+     * @param len the length of the packet including the length field
+     *
+     * @return <code>true</code> if the tag was valid, otherwise
+     *         <code>false</code>
+     *
+     * @throws AlgorithmOperationException
+     */
+    public abstract boolean decryptPacket(long sequenceNo, byte[] data,
+        int offset, int len) throws AlgorithmOperationException;
+
+    /**
+     * <p>
+     * Authenticated ciphers must process whole packets so this method is not
+     * supported.
+     * </p>
+     *
+     * @param data
+     * @param offset
+     * @param len
+     *
+     * @return
+     *
+     * @throws AlgorithmOperationException
+     */
+    public byte[] transform(byte[] data, int offset, int len)
+        throws AlgorithmOperationException {
+        throw new AlgorithmOperationException(
+            "Authenticated ciphers can only transform complete packets");
+    }
+}
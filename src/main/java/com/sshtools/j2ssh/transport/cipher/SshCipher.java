@@ -86,4 +86,27 @@ public abstract class SshCipher {
      */
     public abstract byte[] transform(byte[] data, int offset, int len)
         throws AlgorithmOperationException;
+
+    /**
+     * <p>
+     * Transforms <code>len</code> bytes of <code>src</code> into the
+     * <code>dest</code> array. The source and destination may be the same
+     * array so that packets can be encrypted or decrypted in place.
+     * Implementations should override this to avoid the intermediate array
+     * created by the default implementation.
+     * </p>
+     *
+     * @param src
+     * @param srcOffset
+     * @param dest
+     * @param destOffset
+     * @param len
+     *
+     * @throws AlgorithmOperationException
+     */
+    public void transform(byte[] src, int srcOffset, byte[] dest,
+        int destOffset, int len) throws AlgorithmOperationException {
+        byte[] output = transform(src, srcOffset, len);
+        System.arraycopy(output, 0, dest, destOffset, output.length);
+    }
 }
@@ -60,7 +60,12 @@ public class SshCipherFactory {
 
         ciphers.put("3des-cbc", TripleDesCbc.class);
         ciphers.put("blowfish-cbc", BlowfishCbc.class);
-        defaultCipher = "blowfish-cbc";
+        ciphers.put("aes128-ctr", Aes128Ctr.class);
+        ciphers.put("aes256-ctr", Aes256Ctr.class);
+        ciphers.put("aes128-gcm@openssh.com", Aes128Gcm.class);
+        ciphers.put("aes256-gcm@openssh.com", Aes256Gcm.class);
+        ciphers.put("chacha20-poly1305@openssh.com", ChaCha20Poly1305.class);
+        defaultCipher = "aes128-ctr";
 
         try {
             Enumeration<URL> en = ConfigurationLoader.getExtensionClassLoader()
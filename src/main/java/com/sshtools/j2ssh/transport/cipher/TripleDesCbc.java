@@ -36,6 +36,7 @@ import java.security.spec.KeySpec;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.DESedeKeySpec;
 import javax.crypto.spec.IvParameterSpec;
@@ -121,4 +122,24 @@ public class TripleDesCbc extends SshCipher {
         throws AlgorithmOperationException {
         return cipher.update(data, offset, len);
     }
+
+    /**
+     *
+     *
+     * @param src
+     * @param srcOffset
+     * @param dest
+     * @param destOffset
+     * @param len
+     *
+     * @throws AlgorithmOperationException
+     */
+    public void transform(byte[] src, int srcOffset, byte[] dest,
+        int destOffset, int len) throws AlgorithmOperationException {
+        try {
+            cipher.update(src, srcOffset, len, dest, destOffset);
+        } catch (ShortBufferException sbe) {
+            throw new AlgorithmOperationException("Output buffer too short");
+        }
+    }
 }
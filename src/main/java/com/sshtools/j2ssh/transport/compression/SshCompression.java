@@ -25,6 +25,10 @@
  */
 package com.sshtools.j2ssh.transport.compression;
 
+import java.io.IOException;
+
+import com.sshtools.j2ssh.io.ByteArrayWriter;
+
 
 /**
  *
@@ -35,6 +39,7 @@ package com.sshtools.j2ssh.transport.compression;
 public interface SshCompression {
     static public final int INFLATER = 0;
     static public final int DEFLATER = 1;
+    static public final int DEFAULT_LEVEL = 6;
 
     public void init(int type, int level);
 
@@ -55,4 +60,61 @@ public interface SshCompression {
      * @return
      */
     public byte[] uncompress(byte[] data, int start, int len);
+
+    /**
+     * <p>
+     * Compresses the data and appends the result to the writer, allowing
+     * the caller to reuse its output buffer. The default implementation
+     * appends the result of {@link #compress(byte[], int, int)}.
+     * </p>
+     *
+     * @param data
+     * @param start
+     * @param len
+     * @param out
+     *
+     * @throws IOException
+     *
+     * @since 0.2.10
+     */
+    public default void compress(byte[] data, int start, int len,
+        ByteArrayWriter out) throws IOException {
+        out.write(compress(data, start, len));
+    }
+
+    /**
+     * <p>
+     * Uncompresses the data and appends the result to the writer. The
+     * uncompressing stops with an error as soon as the output grows beyond
+     * the limit given. The default implementation uncompresses all of the
+     * data with {@link #uncompress(byte[], int, int)} and then checks its
+     * length against the limit.
+     * </p>
+     *
+     * @param data
+     * @param start
+     * @param len
+     * @param out
+     * @param limit the most bytes to append to the writer
+     *
+     * @throws IOException if the data is invalid or uncompresses to more
+     *         than the limit
+     *
+     * @since 0.2.10
+     */
+    public default void uncompress(byte[] data, int start, int len,
+        ByteArrayWriter out, int limit) throws IOException {
+        byte[] result = uncompress(data, start, len);
+
+        if (result == null) {
+            throw new IOException("Invalid compressed data");
+        }
+
+        if (result.length > limit) {
+            throw new IOException("Uncompressed data exceeds " +
+                String.valueOf(limit) + " bytes");
+        }
+
+        out.write(result);
+    }
 }
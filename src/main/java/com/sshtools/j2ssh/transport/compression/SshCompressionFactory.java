@@ -51,6 +51,8 @@ import com.sshtools.j2ssh.transport.AlgorithmNotSupportedException;
 public class SshCompressionFactory {
     
     public final static String COMP_NONE = "none";
+    public final static String COMP_ZLIB = "zlib";
+    public final static String COMP_ZLIB_DELAYED = "zlib@openssh.com";
     private static String defaultAlgorithm;
     private static Map<String, Class<?>> comps;
     private static Log log = LogFactory.getLog(SshCompressionFactory.class);
@@ -61,6 +63,8 @@ public class SshCompressionFactory {
         log.info("Loading compression methods");
 
         comps.put(COMP_NONE, null);
+        comps.put(COMP_ZLIB, ZlibCompression.class);
+        comps.put(COMP_ZLIB_DELAYED, ZlibCompression.class);
 
         defaultAlgorithm = COMP_NONE;
 
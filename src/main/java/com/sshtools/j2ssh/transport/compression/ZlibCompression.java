@@ -0,0 +1,185 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.transport.compression;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.sshtools.j2ssh.io.ByteArrayWriter;
+
+
+/**
+ * <p>
+ * Implements the <code>zlib</code> and <code>zlib@openssh.com</code>
+ * compression methods. A single zlib stream is kept for the life of the
+ * keys and each packet is ended with a partial (sync) flush, so the
+ * dictionary built from earlier packets carries over to later ones.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public class ZlibCompression implements SshCompression {
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] buffer = new byte[32768];
+    private ByteArrayWriter output;
+
+    /**
+     * Creates a new ZlibCompression object.
+     */
+    public ZlibCompression() {
+    }
+
+    /**
+     *
+     *
+     * @param type
+     * @param level
+     */
+    public void init(int type, int level) {
+        if (type == DEFLATER) {
+            deflater = new Deflater(level);
+        } else {
+            inflater = new Inflater();
+        }
+    }
+
+    /**
+     *
+     *
+     * @param data
+     * @param start
+     * @param len
+     * @param out
+     *
+     * @throws IOException
+     */
+    public void compress(byte[] data, int start, int len, ByteArrayWriter out)
+        throws IOException {
+        deflater.setInput(data, start, len);
+
+        int count;
+
+        do {
+            count = deflater.deflate(buffer, 0, buffer.length,
+                    Deflater.SYNC_FLUSH);
+            out.write(buffer, 0, count);
+        } while (count == buffer.length);
+    }
+
+    /**
+     *
+     *
+     * @param data
+     * @param start
+     * @param len
+     * @param out
+     * @param limit
+     *
+     * @throws IOException
+     */
+    public void uncompress(byte[] data, int start, int len,
+        ByteArrayWriter out, int limit) throws IOException {
+        inflater.setInput(data, start, len);
+
+        try {
+            int count;
+            int total = 0;
+
+            while ((count = inflater.inflate(buffer)) > 0) {
+                // Stop a small packet inflating to an unbounded size
+                total += count;
+
+                if (total > limit) {
+                    throw new IOException("Uncompressed data exceeds " +
+                        String.valueOf(limit) + " bytes");
+                }
+
+                out.write(buffer, 0, count);
+            }
+        } catch (DataFormatException dfe) {
+            throw new IOException("Invalid compressed data: " +
+                dfe.getMessage());
+        }
+
+        if (!inflater.needsInput()) {
+            throw new IOException("Compressed data was not fully consumed");
+        }
+    }
+
+    /**
+     *
+     *
+     * @param data
+     * @param start
+     * @param len
+     *
+     * @return
+     */
+    public byte[] compress(byte[] data, int start, int len) {
+        try {
+            output().reset();
+            compress(data, start, len, output);
+
+            return output.toByteArray();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe.getMessage());
+        }
+    }
+
+    /**
+     *
+     *
+     * @param data
+     * @param start
+     * @param len
+     *
+     * @return
+     */
+    public byte[] uncompress(byte[] data, int start, int len) {
+        try {
+            output().reset();
+            uncompress(data, start, len, output, Integer.MAX_VALUE);
+
+            return output.toByteArray();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe.getMessage());
+        }
+    }
+
+    private ByteArrayWriter output() {
+        if (output == null) {
+            output = new ByteArrayWriter();
+        }
+
+        return output;
+    }
+}
@@ -29,6 +29,7 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 import com.sshtools.j2ssh.transport.AlgorithmInitializationException;
@@ -43,6 +44,9 @@ import com.sshtools.j2ssh.transport.AlgorithmInitializationException;
 public class HmacSha implements SshHmac {
     //private static Log log = LogFactory.getLog(HmacSha.class);
     private Mac mac;
+    private byte[] sequenceBytes = new byte[4];
+    private byte[] digest;
+    private byte[] generated;
 
     /**
      * Creates a new HmacSha object.
@@ -70,16 +74,43 @@ public class HmacSha implements SshHmac {
      * @return
      */
     public byte[] generate(long sequenceNo, byte[] data, int offset, int len) {
+        update(sequenceNo, data, offset, len);
+
+        return mac.doFinal();
+    }
+
+    /**
+     *
+     *
+     * @param sequenceNo
+     * @param data
+     * @param offset
+     * @param len
+     * @param output
+     * @param outputOffset
+     */
+    public void generate(long sequenceNo, byte[] data, int offset, int len,
+        byte[] output, int outputOffset) {
+        update(sequenceNo, data, offset, len);
+
+        try {
+            mac.doFinal(digest, 0);
+        } catch (ShortBufferException sbe) {
+            throw new IllegalStateException("MAC digest buffer too short");
+        }
+
+        // Subclasses may truncate the MAC so only copy the reported length
+        System.arraycopy(digest, 0, output, outputOffset, getMacLength());
+    }
+
+    private void update(long sequenceNo, byte[] data, int offset, int len) {
         // Write the sequence no
-        byte[] sequenceBytes = new byte[4];
         sequenceBytes[0] = (byte) (sequenceNo >> 24);
         sequenceBytes[1] = (byte) (sequenceNo >> 16);
         sequenceBytes[2] = (byte) (sequenceNo >> 8);
         sequenceBytes[3] = (byte) (sequenceNo >> 0);
         mac.update(sequenceBytes);
         mac.update(data, offset, len);
-
-        return mac.doFinal();
     }
 
     /**
@@ -98,6 +129,8 @@ public class HmacSha implements SshHmac {
 
             SecretKeySpec keyspec = new SecretKeySpec(key, "HmacSha1");
             mac.init(keyspec);
+            digest = new byte[mac.getMacLength()];
+            generated = new byte[mac.getMacLength()];
         } catch (NoSuchAlgorithmException nsae) {
             throw new AlgorithmInitializationException(
                 "No provider exists for the HmacSha1 algorithm");
@@ -144,4 +177,29 @@ public class HmacSha implements SshHmac {
           }*/
         return result;
     }
+
+    /**
+     *
+     *
+     * @param sequenceNo
+     * @param data
+     * @param offset
+     * @param len
+     * @param received
+     * @param receivedOffset
+     *
+     * @return
+     */
+    public boolean verify(long sequenceNo, byte[] data, int offset, int len,
+        byte[] received, int receivedOffset) {
+        generate(sequenceNo, data, offset, len, generated, 0);
+
+        int result = 0;
+
+        for (int i = 0; i < getMacLength(); i++) {
+            result |= (generated[i] ^ received[receivedOffset + i]);
+        }
+
+        return result == 0;
+    }
 }
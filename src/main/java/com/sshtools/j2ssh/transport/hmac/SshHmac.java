@@ -54,6 +54,29 @@ public interface SshHmac {
      */
     public byte[] generate(long sequenceNo, byte[] data, int offset, int len);
 
+    /**
+     * <p>
+     * Generates the MAC for the data and writes it into the output array at
+     * the offset given, without allocating an array for the result. The
+     * default implementation copies the result of
+     * {@link #generate(long, byte[], int, int)}.
+     * </p>
+     *
+     * @param sequenceNo
+     * @param data
+     * @param offset
+     * @param len
+     * @param output
+     * @param outputOffset
+     *
+     * @since 0.2.10
+     */
+    public default void generate(long sequenceNo, byte[] data, int offset,
+        int len, byte[] output, int outputOffset) {
+        byte[] mac = generate(sequenceNo, data, offset, len);
+        System.arraycopy(mac, 0, output, outputOffset, getMacLength());
+    }
+
     /**
      *
      *
@@ -72,4 +95,31 @@ public interface SshHmac {
      * @return
      */
     public boolean verify(long sequenceNo, byte[] data);
+
+    /**
+     * <p>
+     * Verifies the MAC of a packet held in a larger array, without copying
+     * the packet or the received MAC. The default implementation copies
+     * both into one array for {@link #verify(long, byte[])}.
+     * </p>
+     *
+     * @param sequenceNo
+     * @param data
+     * @param offset
+     * @param len
+     * @param mac
+     * @param macOffset
+     *
+     * @return
+     *
+     * @since 0.2.10
+     */
+    public default boolean verify(long sequenceNo, byte[] data, int offset,
+        int len, byte[] mac, int macOffset) {
+        byte[] packet = new byte[len + getMacLength()];
+        System.arraycopy(data, offset, packet, 0, len);
+        System.arraycopy(mac, macOffset, packet, len, getMacLength());
+
+        return verify(sequenceNo, packet);
+    }
 }
@@ -0,0 +1,181 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.transport.kex;
+
+import com.sshtools.j2ssh.transport.AlgorithmNotSupportedException;
+import com.sshtools.j2ssh.transport.AlgorithmOperationException;
+
+import java.io.IOException;
+
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.KeyAgreement;
+
+
+/**
+ * <p>
+ * The <code>curve25519-sha256</code> key exchange from RFC 8731 (also known
+ * as <code>curve25519-sha256@libssh.org</code>). This uses the X25519
+ * provider available from Java 11; the factory only registers it when the
+ * provider is present.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public class Curve25519Sha256 extends EcdhKeyExchange {
+    private static final int KEY_LENGTH = 32;
+
+    // The DER header of an X.509 encoded X25519 public key, the raw key
+    // follows it
+    private static final byte[] X509_HEADER = {
+            (byte) 0x30, (byte) 0x2a, (byte) 0x30, (byte) 0x05, (byte) 0x06,
+            (byte) 0x03, (byte) 0x2b, (byte) 0x65, (byte) 0x6e, (byte) 0x03,
+            (byte) 0x21, (byte) 0x00
+        };
+    private KeyPairGenerator keyPairGen;
+    private KeyAgreement keyAgreement;
+    private KeyFactory keyFactory;
+
+    /**
+     * Creates a new Curve25519Sha256 object.
+     */
+    public Curve25519Sha256() {
+        super("SHA-256");
+    }
+
+    /**
+     * <p>
+     * Determines whether the Java runtime provides X25519.
+     * </p>
+     *
+     * @return <code>true</code> if X25519 is available
+     */
+    public static boolean isSupported() {
+        try {
+            KeyAgreement.getInstance("X25519");
+
+            return true;
+        } catch (NoSuchAlgorithmException ex) {
+            return false;
+        }
+    }
+
+    /**
+     *
+     *
+     * @throws IOException
+     */
+    protected void onInit() throws IOException {
+        super.onInit();
+
+        try {
+            keyPairGen = KeyPairGenerator.getInstance("X25519");
+            keyAgreement = KeyAgreement.getInstance("X25519");
+            keyFactory = KeyFactory.getInstance("X25519");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new AlgorithmNotSupportedException(ex.getMessage());
+        }
+    }
+
+    /**
+     *
+     *
+     * @return
+     *
+     * @throws AlgorithmOperationException
+     */
+    protected byte[] generateKeyPair() throws AlgorithmOperationException {
+        try {
+            KeyPair pair = keyPairGen.generateKeyPair();
+            keyAgreement.init(pair.getPrivate());
+
+            byte[] encoded = pair.getPublic().getEncoded();
+            byte[] q = new byte[KEY_LENGTH];
+            System.arraycopy(encoded, encoded.length - KEY_LENGTH, q, 0,
+                KEY_LENGTH);
+
+            return q;
+        } catch (InvalidKeyException ex) {
+            throw new AlgorithmOperationException(
+                "Failed to generate X25519 key pair");
+        }
+    }
+
+    /**
+     *
+     *
+     * @param q
+     *
+     * @return
+     *
+     * @throws AlgorithmOperationException
+     */
+    protected byte[] generateSecret(byte[] q)
+        throws AlgorithmOperationException {
+        if (q.length != KEY_LENGTH) {
+            throw new AlgorithmOperationException(
+                "Invalid X25519 public key length");
+        }
+
+        byte[] encoded = new byte[X509_HEADER.length + KEY_LENGTH];
+        System.arraycopy(X509_HEADER, 0, encoded, 0, X509_HEADER.length);
+        System.arraycopy(q, 0, encoded, X509_HEADER.length, KEY_LENGTH);
+
+        try {
+            keyAgreement.doPhase(keyFactory.generatePublic(
+                    new X509EncodedKeySpec(encoded)), true);
+
+            byte[] k = keyAgreement.generateSecret();
+
+            // Reject low order points which give an all zero secret
+            int bits = 0;
+
+            for (int i = 0; i < k.length; i++) {
+                bits |= k[i];
+            }
+
+            if (bits == 0) {
+                throw new AlgorithmOperationException(
+                    "Invalid X25519 public key");
+            }
+
+            return k;
+        } catch (InvalidKeySpecException ex) {
+            throw new AlgorithmOperationException("Invalid X25519 public key");
+        } catch (InvalidKeyException ex) {
+            throw new AlgorithmOperationException("Invalid X25519 public key");
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.transport.kex;
+
+import com.sshtools.j2ssh.SshException;
+import com.sshtools.j2ssh.transport.AlgorithmOperationException;
+import com.sshtools.j2ssh.transport.publickey.SshPrivateKey;
+import com.sshtools.j2ssh.util.Hash;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+
+import java.math.BigInteger;
+
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * <p>
+ * Base class for the elliptic curve Diffie-Hellman key exchange methods
+ * defined in RFC 5656 and RFC 8731. Each side sends a single ephemeral
+ * public key so the exchange costs one key generation and one key agreement
+ * rather than the large modular exponentiations of
+ * <code>diffie-hellman-group1-sha1</code>. Subclasses provide the curve
+ * operations and the hash algorithm.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public abstract class EcdhKeyExchange extends SshKeyExchange {
+    private static Log log = LogFactory.getLog(EcdhKeyExchange.class);
+    private String hashAlgorithm;
+    private byte[] clientQ;
+    private byte[] serverQ;
+    private String clientId;
+    private String serverId;
+    private byte[] clientKexInit;
+    private byte[] serverKexInit;
+
+    /**
+     * Creates a new EcdhKeyExchange object.
+     *
+     * @param hashAlgorithm the exchange hash algorithm
+     */
+    protected EcdhKeyExchange(String hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    /**
+     *
+     *
+     * @throws IOException
+     */
+    protected void onInit() throws IOException {
+        messageStore.registerMessage(SshMsgKexEcdhInit.SSH_MSG_KEX_ECDH_INIT,
+            SshMsgKexEcdhInit.class);
+        messageStore.registerMessage(SshMsgKexEcdhReply.SSH_MSG_KEX_ECDH_REPLY,
+            SshMsgKexEcdhReply.class);
+    }
+
+    /**
+     * <p>
+     * Generates a new ephemeral key pair and prepares the key agreement
+     * with its private key.
+     * </p>
+     *
+     * @return the encoded public key to send to the remote side
+     *
+     * @throws AlgorithmOperationException
+     */
+    protected abstract byte[] generateKeyPair()
+        throws AlgorithmOperationException;
+
+    /**
+     * <p>
+     * Completes the key agreement with the remote side's public key.
+     * </p>
+     *
+     * @param q the encoded public key received from the remote side
+     *
+     * @return the shared secret
+     *
+     * @throws AlgorithmOperationException if the public key is invalid
+     */
+    protected abstract byte[] generateSecret(byte[] q)
+        throws AlgorithmOperationException;
+
+    /**
+     *
+     *
+     * @param clientId
+     * @param serverId
+     * @param clientKexInit
+     * @param serverKexInit
+     *
+     * @throws IOException
+     */
+    public void performClientExchange(String clientId, String serverId,
+        byte[] clientKexInit, byte[] serverKexInit) throws IOException {
+        log.info("Starting client side key exchange.");
+        this.clientId = clientId;
+        this.serverId = serverId;
+        this.clientKexInit = clientKexInit;
+        this.serverKexInit = serverKexInit;
+
+        clientQ = generateKeyPair();
+
+        try {
+            transport.sendMessage(new SshMsgKexEcdhInit(clientQ), this);
+        } catch (SshException tpe) {
+            throw new KeyExchangeException(
+                "Failed to send key exchange initialization message");
+        }
+
+        int[] messageId = new int[1];
+        messageId[0] = SshMsgKexEcdhReply.SSH_MSG_KEX_ECDH_REPLY;
+
+        SshMsgKexEcdhReply reply = (SshMsgKexEcdhReply) transport.readMessage(messageId);
+        hostKey = reply.getHostKey();
+        signature = reply.getSignature();
+        serverQ = reply.getQ();
+
+        secret = new BigInteger(1, generateSecret(serverQ));
+
+        calculateExchangeHash();
+    }
+
+    /**
+     *
+     *
+     * @param clientId
+     * @param serverId
+     * @param clientKexInit
+     * @param serverKexInit
+     * @param prvKey
+     *
+     * @throws IOException
+     */
+    public void performServerExchange(String clientId, String serverId,
+        byte[] clientKexInit, byte[] serverKexInit, SshPrivateKey prvKey)
+        throws IOException {
+        try {
+            this.clientId = clientId;
+            this.serverId = serverId;
+            this.clientKexInit = clientKexInit;
+            this.serverKexInit = serverKexInit;
+
+            serverQ = generateKeyPair();
+
+            int[] messageId = new int[1];
+            messageId[0] = SshMsgKexEcdhInit.SSH_MSG_KEX_ECDH_INIT;
+
+            SshMsgKexEcdhInit msg = (SshMsgKexEcdhInit) transport.readMessage(messageId);
+            clientQ = msg.getQ();
+
+            secret = new BigInteger(1, generateSecret(clientQ));
+            hostKey = prvKey.getPublicKey().getEncoded();
+            calculateExchangeHash();
+            signature = prvKey.generateSignature(exchangeHash);
+
+            SshMsgKexEcdhReply reply = new SshMsgKexEcdhReply(hostKey, serverQ,
+                    signature);
+            transport.sendMessage(reply, this);
+        } catch (SshException e) {
+            throw new KeyExchangeException(e.getMessage());
+        }
+    }
+
+    /**
+     *
+     *
+     * @throws KeyExchangeException
+     */
+    protected void calculateExchangeHash() throws KeyExchangeException {
+        Hash hash;
+
+        try {
+            hash = new Hash(hashAlgorithm);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new KeyExchangeException(hashAlgorithm +
+                " algorithm not supported");
+        }
+
+        // The local software version comments
+        hash.putString(clientId);
+
+        // The remote software version comments
+        hash.putString(serverId);
+
+        // The local kex init payload
+        hash.putInt(clientKexInit.length);
+        hash.putBytes(clientKexInit);
+
+        // The remote kex init payload
+        hash.putInt(serverKexInit.length);
+        hash.putBytes(serverKexInit);
+
+        // The host key
+        hash.putInt(hostKey.length);
+        hash.putBytes(hostKey);
+
+        // The client and server ephemeral public keys
+        hash.putInt(clientQ.length);
+        hash.putBytes(clientQ);
+        hash.putInt(serverQ.length);
+        hash.putBytes(serverQ);
+
+        // The shared secret
+        hash.putBigInteger(secret);
+
+        // Do the final output
+        exchangeHash = hash.doFinal();
+    }
+}
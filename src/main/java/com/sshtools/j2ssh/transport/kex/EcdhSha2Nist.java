@@ -0,0 +1,201 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.transport.kex;
+
+import com.sshtools.j2ssh.transport.AlgorithmNotSupportedException;
+import com.sshtools.j2ssh.transport.AlgorithmOperationException;
+
+import java.io.IOException;
+
+import java.math.BigInteger;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+import java.security.spec.InvalidKeySpecException;
+
+import javax.crypto.KeyAgreement;
+
+
+/**
+ * <p>
+ * The <code>ecdh-sha2-nistp*</code> key exchange methods from RFC 5656.
+ * Public keys are sent as uncompressed points and every received point is
+ * checked to be on the curve before it is used.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public class EcdhSha2Nist extends EcdhKeyExchange {
+    private String curve;
+    private KeyPairGenerator keyPairGen;
+    private KeyAgreement keyAgreement;
+    private KeyFactory keyFactory;
+    private ECParameterSpec params;
+    private int fieldLength;
+
+    /**
+     * Creates a new EcdhSha2Nist object.
+     *
+     * @param curve the standard name of the curve
+     * @param hashAlgorithm the exchange hash algorithm
+     */
+    protected EcdhSha2Nist(String curve, String hashAlgorithm) {
+        super(hashAlgorithm);
+        this.curve = curve;
+    }
+
+    /**
+     *
+     *
+     * @throws IOException
+     */
+    protected void onInit() throws IOException {
+        super.onInit();
+
+        try {
+            keyPairGen = KeyPairGenerator.getInstance("EC");
+            keyPairGen.initialize(new ECGenParameterSpec(curve));
+            keyAgreement = KeyAgreement.getInstance("ECDH");
+            keyFactory = KeyFactory.getInstance("EC");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new AlgorithmNotSupportedException(ex.getMessage());
+        } catch (InvalidAlgorithmParameterException ex) {
+            throw new AlgorithmNotSupportedException(curve +
+                " is not supported");
+        }
+    }
+
+    /**
+     *
+     *
+     * @return
+     *
+     * @throws AlgorithmOperationException
+     */
+    protected byte[] generateKeyPair() throws AlgorithmOperationException {
+        try {
+            KeyPair pair = keyPairGen.generateKeyPair();
+            keyAgreement.init(pair.getPrivate());
+
+            ECPublicKey pub = (ECPublicKey) pair.getPublic();
+            params = pub.getParams();
+            fieldLength = (params.getCurve().getField().getFieldSize() + 7) / 8;
+
+            // Encode as an uncompressed point
+            byte[] q = new byte[1 + (2 * fieldLength)];
+            q[0] = 0x04;
+            writeCoordinate(pub.getW().getAffineX(), q, 1);
+            writeCoordinate(pub.getW().getAffineY(), q, 1 + fieldLength);
+
+            return q;
+        } catch (InvalidKeyException ex) {
+            throw new AlgorithmOperationException("Failed to generate " +
+                curve + " key pair");
+        }
+    }
+
+    /**
+     *
+     *
+     * @param q
+     *
+     * @return
+     *
+     * @throws AlgorithmOperationException
+     */
+    protected byte[] generateSecret(byte[] q)
+        throws AlgorithmOperationException {
+        if ((q.length != (1 + (2 * fieldLength))) || (q[0] != 0x04)) {
+            throw new AlgorithmOperationException("Invalid " + curve +
+                " public key");
+        }
+
+        byte[] coordinate = new byte[fieldLength];
+        System.arraycopy(q, 1, coordinate, 0, fieldLength);
+
+        BigInteger x = new BigInteger(1, coordinate);
+        System.arraycopy(q, 1 + fieldLength, coordinate, 0, fieldLength);
+
+        BigInteger y = new BigInteger(1, coordinate);
+
+        if (!isOnCurve(x, y)) {
+            throw new AlgorithmOperationException("Invalid " + curve +
+                " public key");
+        }
+
+        try {
+            keyAgreement.doPhase(keyFactory.generatePublic(
+                    new ECPublicKeySpec(new ECPoint(x, y), params)), true);
+
+            return keyAgreement.generateSecret();
+        } catch (InvalidKeySpecException ex) {
+            throw new AlgorithmOperationException("Invalid " + curve +
+                " public key");
+        } catch (InvalidKeyException ex) {
+            throw new AlgorithmOperationException("Invalid " + curve +
+                " public key");
+        }
+    }
+
+    private boolean isOnCurve(BigInteger x, BigInteger y) {
+        EllipticCurve ec = params.getCurve();
+        BigInteger p = ((ECFieldFp) ec.getField()).getP();
+
+        if ((x.compareTo(p) >= 0) || (y.compareTo(p) >= 0)) {
+            return false;
+        }
+
+        // y^2 = x^3 + ax + b (mod p)
+        BigInteger left = y.multiply(y).mod(p);
+        BigInteger right = x.multiply(x).add(ec.getA()).multiply(x)
+                            .add(ec.getB()).mod(p);
+
+        return left.equals(right);
+    }
+
+    private void writeCoordinate(BigInteger value, byte[] out, int offset) {
+        byte[] raw = value.toByteArray();
+        int len = Math.min(raw.length, fieldLength);
+
+        // Left pad to the field length, dropping any sign byte
+        System.arraycopy(raw, raw.length - len, out,
+            (offset + fieldLength) - len, len);
+    }
+}
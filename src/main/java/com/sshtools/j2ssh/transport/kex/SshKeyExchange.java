@@ -75,6 +75,34 @@ public abstract class SshKeyExchange { //implements Runnable {
         return exchangeHash;
     }
 
+    /**
+     * <p>
+     * Returns the name of the hash algorithm used for the exchange hash.
+     * The same algorithm is used to derive the session keys.
+     * </p>
+     *
+     * @return the hash algorithm name
+     *
+     * @since 0.2.10
+     */
+    public String getHashAlgorithm() {
+        return "SHA";
+    }
+
+    /**
+     * <p>
+     * Returns the store holding the messages used by this key exchange
+     * method. Different methods may use the same message ids.
+     * </p>
+     *
+     * @return the message store
+     *
+     * @since 0.2.10
+     */
+    public SshMessageStore getMessageStore() {
+        return messageStore;
+    }
+
     /**
      *
      *
@@ -56,6 +56,16 @@ public class SshKeyExchangeFactory {
         kexs = new HashMap<String, Class<?>>();
         log.info("Loading key exchange methods");
         kexs.put("diffie-hellman-group1-sha1", DhGroup1Sha1.class);
+        kexs.put("ecdh-sha2-nistp256", EcdhSha2Nistp256.class);
+        kexs.put("ecdh-sha2-nistp384", EcdhSha2Nistp384.class);
+        kexs.put("ecdh-sha2-nistp521", EcdhSha2Nistp521.class);
+        defaultAlgorithm = "ecdh-sha2-nistp256";
+
+        if (Curve25519Sha256.isSupported()) {
+            kexs.put("curve25519-sha256", Curve25519Sha256.class);
+            kexs.put("curve25519-sha256@libssh.org", Curve25519Sha256.class);
+            defaultAlgorithm = "curve25519-sha256";
+        }
 
         try {
             // Load external compression from configuration file
@@ -92,7 +102,9 @@ public class SshKeyExchangeFactory {
                         }
                     }
 
-                    defaultAlgorithm = config.getDefaultKeyExchange();
+                    if (config.getDefaultKeyExchange() != null) {
+                        defaultAlgorithm = config.getDefaultKeyExchange();
+                    }
                 }
             }
         } catch (ConfigurationException ex) {
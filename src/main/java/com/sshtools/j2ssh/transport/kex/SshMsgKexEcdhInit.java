@@ -0,0 +1,121 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.transport.kex;
+
+import com.sshtools.j2ssh.io.ByteArrayReader;
+import com.sshtools.j2ssh.io.ByteArrayWriter;
+import com.sshtools.j2ssh.transport.InvalidMessageException;
+import com.sshtools.j2ssh.transport.SshMessage;
+
+import java.io.IOException;
+
+
+/**
+ * <p>
+ * The client's ephemeral public key for an elliptic curve key exchange.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public class SshMsgKexEcdhInit extends SshMessage {
+    /**  */
+    protected final static int SSH_MSG_KEX_ECDH_INIT = 30;
+
+    // The clients ephemeral public key
+    private byte[] q;
+
+    /**
+     * Creates a new SshMsgKexEcdhInit object.
+     *
+     * @param q
+     */
+    public SshMsgKexEcdhInit(byte[] q) {
+        super(SSH_MSG_KEX_ECDH_INIT);
+        this.q = q;
+    }
+
+    /**
+     * Creates a new SshMsgKexEcdhInit object.
+     */
+    public SshMsgKexEcdhInit() {
+        super(SSH_MSG_KEX_ECDH_INIT);
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public byte[] getQ() {
+        return q;
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public String getMessageName() {
+        return "SSH_MSG_KEX_ECDH_INIT";
+    }
+
+    /**
+     *
+     *
+     * @param baw
+     *
+     * @throws InvalidMessageException
+     */
+    protected void constructByteArray(ByteArrayWriter baw)
+        throws InvalidMessageException {
+        try {
+            baw.writeBinaryString(q);
+        } catch (IOException ioe) {
+            throw new InvalidMessageException("Error writing message data: " +
+                ioe.getMessage());
+        }
+    }
+
+    /**
+     *
+     *
+     * @param bar
+     *
+     * @throws InvalidMessageException
+     */
+    protected void constructMessage(ByteArrayReader bar)
+        throws InvalidMessageException {
+        try {
+            q = bar.readBinaryString();
+        } catch (IOException ioe) {
+            throw new InvalidMessageException("Error reading message data: " +
+                ioe.getMessage());
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.transport.kex;
+
+import com.sshtools.j2ssh.io.ByteArrayReader;
+import com.sshtools.j2ssh.io.ByteArrayWriter;
+import com.sshtools.j2ssh.transport.InvalidMessageException;
+import com.sshtools.j2ssh.transport.SshMessage;
+
+import java.io.IOException;
+
+
+/**
+ * <p>
+ * The server's host key, ephemeral public key and signature for an
+ * elliptic curve key exchange.
+ * </p>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public class SshMsgKexEcdhReply extends SshMessage {
+    /**  */
+    protected final static int SSH_MSG_KEX_ECDH_REPLY = 31;
+
+    // The host key data
+    private byte[] hostKey;
+
+    // The servers ephemeral public key
+    private byte[] q;
+
+    // The signature
+    private byte[] signature;
+
+    /**
+     * Creates a new SshMsgKexEcdhReply object.
+     *
+     * @param hostKey
+     * @param q
+     * @param signature
+     */
+    public SshMsgKexEcdhReply(byte[] hostKey, byte[] q, byte[] signature) {
+        super(SSH_MSG_KEX_ECDH_REPLY);
+        this.hostKey = hostKey;
+        this.q = q;
+        this.signature = signature;
+    }
+
+    /**
+     * Creates a new SshMsgKexEcdhReply object.
+     */
+    public SshMsgKexEcdhReply() {
+        super(SSH_MSG_KEX_ECDH_REPLY);
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public byte[] getHostKey() {
+        return hostKey;
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public String getMessageName() {
+        return "SSH_MSG_KEX_ECDH_REPLY";
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public byte[] getQ() {
+        return q;
+    }
+
+    /**
+     *
+     *
+     * @return
+     */
+    public byte[] getSignature() {
+        return signature;
+    }
+
+    /**
+     *
+     *
+     * @param baw
+     *
+     * @throws InvalidMessageException
+     */
+    protected void constructByteArray(ByteArrayWriter baw)
+        throws InvalidMessageException {
+        try {
+            baw.writeBinaryString(hostKey);
+            baw.writeBinaryString(q);
+            baw.writeBinaryString(signature);
+        } catch (IOException ioe) {
+            throw new InvalidMessageException("Error writing message data: " +
+                ioe.getMessage());
+        }
+    }
+
+    /**
+     *
+     *
+     * @param bar
+     *
+     * @throws InvalidMessageException
+     */
+    protected void constructMessage(ByteArrayReader bar)
+        throws InvalidMessageException {
+        try {
+            hostKey = bar.readBinaryString();
+            q = bar.readBinaryString();
+            signature = bar.readBinaryString();
+        } catch (IOException ioe) {
+            throw new InvalidMessageException("Error reading message data: " +
+                ioe.getMessage());
+        }
+    }
+}
@@ -90,14 +90,14 @@ public class SshKeyGenerator {
         System.out.println("Generating " + String.valueOf(bits) + " bit " +
             keyType + " key pair");
 
-        Thread thread = new SshThread(new Runnable() {
+        SshThread thread = new SshThread(new Runnable() {
                     public void run() {
                         pair.generate(SshKeyGenerator.bits);
                     }
                 }, "Key generator", true);
         thread.start();
 
-        while (thread.isAlive()) {
+        while (thread.isRunning()) {
             System.out.print(".");
 
             try {
@@ -0,0 +1,305 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh;
+
+import com.sshtools.daemon.SshServer;
+import com.sshtools.daemon.configuration.XmlServerConfigurationContext;
+import com.sshtools.daemon.platform.NativeAuthenticationProvider;
+import com.sshtools.daemon.session.SessionChannelFactory;
+
+import com.sshtools.j2ssh.authentication.AuthenticationProtocolState;
+import com.sshtools.j2ssh.authentication.PasswordAuthenticationClient;
+import com.sshtools.j2ssh.configuration.ConfigurationLoader;
+import com.sshtools.j2ssh.configuration.SshConnectionProperties;
+import com.sshtools.j2ssh.connection.ConnectionProtocol;
+import com.sshtools.j2ssh.transport.IgnoreHostKeyVerification;
+import com.sshtools.j2ssh.transport.publickey.SshKeyPair;
+import com.sshtools.j2ssh.transport.publickey.SshKeyPairFactory;
+import com.sshtools.j2ssh.transport.publickey.SshPrivateKeyFile;
+import com.sshtools.j2ssh.transport.publickey.SshtoolsPrivateKeyFormat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.ServerSocket;
+
+import java.nio.file.Files;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * <p>
+ * Measures the throughput of <code>ScpClient</code> uploading and
+ * downloading a file against an in-process server, whose
+ * <code>ScpServer</code> handles the other end of each transfer. The server
+ * and its files live in a temporary directory. Run it with the test
+ * classpath, for example
+ * </p>
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:... \
+ *     com.sshtools.j2ssh.ScpClientBenchmark [MB] [runs] [cipher]
+ * </pre>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public class ScpClientBenchmark {
+    private static File root;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the size of the file in megabytes (default 64), the number
+     *        of runs (default 3) and the cipher to use
+     *
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int mb = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+        int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        String cipher = (args.length > 2) ? args[2] : null;
+
+        File home = Files.createTempDirectory("scpbenchmark").toFile();
+        root = new File(home, "root");
+        root.mkdirs();
+
+        int port = startServer(home);
+
+        File local = new File(home, "local");
+        local.mkdirs();
+
+        File source = new File(local, "source.bin");
+        byte[] data = new byte[1 << 20];
+        Random random = new Random(1);
+        OutputStream out = new FileOutputStream(source);
+
+        try {
+            for (int i = 0; i < mb; i++) {
+                random.nextBytes(data);
+                out.write(data);
+            }
+        } finally {
+            out.close();
+        }
+
+        SshConnectionProperties properties = new SshConnectionProperties();
+        properties.setHost("127.0.0.1");
+        properties.setPort(port);
+
+        if (cipher != null) {
+            properties.setPrefCSEncryption(cipher);
+            properties.setPrefSCEncryption(cipher);
+        }
+
+        SshClient ssh = new SshClient();
+        ssh.connect(properties, new IgnoreHostKeyVerification());
+
+        PasswordAuthenticationClient pwd = new PasswordAuthenticationClient();
+        pwd.setUsername(System.getProperty("user.name"));
+        pwd.setPassword("benchmark");
+
+        if (ssh.authenticate(pwd) != AuthenticationProtocolState.COMPLETE) {
+            throw new IOException("Authentication failed");
+        }
+
+        ScpClient scp = new ScpClient(local, ssh, false, null);
+        File remote = new File(root, "remote.bin");
+        File downloaded = new File(local, "downloaded.bin");
+
+        for (int i = 0; i < runs; i++) {
+            remote.delete();
+            downloaded.delete();
+
+            long started = System.nanoTime();
+            scp.put(source.getPath(), "/remote.bin", false);
+
+            long uploaded = System.nanoTime();
+            scp.get(downloaded.getPath(), "/remote.bin", false);
+
+            long finished = System.nanoTime();
+            System.out.printf("put %dms %.1fMB/s  get %dms %.1fMB/s ok=%b%n",
+                (uploaded - started) / 1000000,
+                mb / ((uploaded - started) / 1e9),
+                (finished - uploaded) / 1000000,
+                mb / ((finished - uploaded) / 1e9),
+                sameContent(source, remote) && sameContent(source, downloaded));
+        }
+
+        ssh.disconnect();
+        delete(home);
+        System.exit(0);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+
+        file.delete();
+    }
+
+    private static int startServer(File home) throws Exception {
+        File hostKey = new File(home, "hostkey");
+        SshKeyPair pair = SshKeyPairFactory.newInstance("ssh-rsa");
+        pair.generate(2048);
+
+        SshPrivateKeyFile key = SshPrivateKeyFile.create(pair.getPrivateKey(),
+                null, new SshtoolsPrivateKeyFormat("benchmark", "2048-bit rsa"));
+        write(hostKey, key.getBytes());
+
+        int port = getFreePort();
+        write(new File(home, "server.xml"),
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<ServerConfiguration>\n" + "  <ServerHostKey PrivateKeyFile=\"" +
+            hostKey.getAbsolutePath() + "\"/>\n" +
+            "  <MaxConnections>10</MaxConnections>\n" +
+            "  <MaxAuthentications>5</MaxAuthentications>\n" +
+            "  <ListenAddress>127.0.0.1</ListenAddress>\n" + "  <Port>" +
+            port + "</Port>\n" + "  <CommandPort>" + getFreePort() +
+            "</CommandPort>\n" +
+            "  <AllowedAuthentication>password</AllowedAuthentication>\n" +
+            "  <UserConfigDirectory>" + home.getAbsolutePath() +
+            "</UserConfigDirectory>\n" + "</ServerConfiguration>\n");
+        write(new File(home, "platform.xml"),
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<PlatformConfiguration>\n" +
+            "  <NativeAuthenticationProvider>" +
+            BenchmarkAuthenticationProvider.class.getName() +
+            "</NativeAuthenticationProvider>\n" +
+            "  <NativeFileSystemProvider>com.sshtools.daemon.vfs.VirtualFileSystem</NativeFileSystemProvider>\n" +
+            "  <VFSRoot path=\"" + root.getAbsolutePath() + "\"/>\n" +
+            "</PlatformConfiguration>\n");
+
+        ConfigurationLoader.setHomeDirectory(home.getAbsolutePath());
+
+        XmlServerConfigurationContext server = new XmlServerConfigurationContext();
+        server.setServerConfigurationResource(new File(home, "server.xml").getAbsolutePath());
+        server.setPlatformConfigurationResource(new File(home,
+                "platform.xml").getAbsolutePath());
+
+        // Generating the key has already loaded the default configuration
+        ConfigurationLoader.initialize(true, server);
+
+        final SshServer daemon = new SshServer() {
+                public void configureServices(ConnectionProtocol connection)
+                    throws IOException {
+                    connection.addChannelFactory(SessionChannelFactory.SESSION_CHANNEL,
+                        new SessionChannelFactory());
+                }
+
+                public void shutdown(String msg) {
+                }
+            };
+
+        Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            daemon.startServer();
+                        } catch (IOException ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                });
+        thread.setDaemon(true);
+        thread.start();
+
+        // Give the server time to start listening
+        Thread.sleep(1000);
+
+        return port;
+    }
+
+    private static int getFreePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void write(File file, String content)
+        throws IOException {
+        write(file, content.getBytes("UTF-8"));
+    }
+
+    private static void write(File file, byte[] content)
+        throws IOException {
+        OutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static boolean sameContent(File a, File b)
+        throws IOException {
+        return (a.length() == b.length()) &&
+        Arrays.equals(Files.readAllBytes(a.toPath()),
+            Files.readAllBytes(b.toPath()));
+    }
+
+    /**
+     * Accepts any user with any password, whose home directory is the root
+     * of the benchmark's virtual file system.
+     */
+    public static class BenchmarkAuthenticationProvider
+        extends NativeAuthenticationProvider {
+        public String getHomeDirectory(String username) {
+            return root.getAbsolutePath();
+        }
+
+        public boolean logonUser(String username, String password) {
+            return true;
+        }
+
+        public boolean logonUser(String username) {
+            return true;
+        }
+
+        public void logoffUser() {
+        }
+
+        public boolean changePassword(String username, String oldpassword,
+            String newpassword) {
+            return false;
+        }
+    }
+}
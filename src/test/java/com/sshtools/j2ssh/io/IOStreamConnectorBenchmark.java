@@ -0,0 +1,196 @@
+/*
+ *  SSHTools - Java SSH2 API
+ *
+ *  Copyright (C) 2002-2003 Lee David Painter and Contributors.
+ *
+ *  Contributions made by:
+ *
+ *  Brett Smith
+ *  Richard Pernavas
+ *  Erwin Bolwidt
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.sshtools.j2ssh.io;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.Arrays;
+
+
+/**
+ * <p>
+ * Measures the latency and throughput of an <code>IOStreamConnector</code>
+ * joining two loopback socket pairs, along with the number of writes and
+ * flushes it makes. Run it with the test classpath, for example
+ * </p>
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:... \
+ *     com.sshtools.j2ssh.io.IOStreamConnectorBenchmark [round trips] [MB]
+ * </pre>
+ *
+ * @author $author$
+ * @version $Revision: 1.1 $
+ *
+ * @since 0.2.10
+ */
+public class IOStreamConnectorBenchmark {
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the number of one byte round trips (default 20000) and
+     *        the megabytes to copy (default 512)
+     *
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int trips = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        long total = ((args.length > 1) ? Long.parseLong(args[1]) : 512) << 20;
+
+        for (int round = 0; round < 2; round++) {
+            latency(trips);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            throughput(total);
+        }
+
+        System.exit(0);
+    }
+
+    private static void latency(int trips) throws IOException {
+        Socket[] source = connect();
+        Socket[] sink = connect();
+        CountingOutputStream out = new CountingOutputStream(sink[0].getOutputStream());
+        new IOStreamConnector(source[1].getInputStream(), out);
+
+        OutputStream writer = source[0].getOutputStream();
+        InputStream reader = sink[1].getInputStream();
+        long[] times = new long[trips];
+
+        for (int i = 0; i < trips; i++) {
+            long started = System.nanoTime();
+            writer.write(i);
+
+            if (reader.read() < 0) {
+                throw new IOException("The connector closed early");
+            }
+
+            times[i] = System.nanoTime() - started;
+        }
+
+        Arrays.sort(times);
+        System.out.printf("latency 1 byte: median %.1fus p99 %.1fus writes=%d flushes=%d%n",
+            times[trips / 2] / 1e3, times[(trips * 99) / 100] / 1e3,
+            out.writes, out.flushes);
+        source[0].close();
+        sink[1].close();
+    }
+
+    private static void throughput(final long total) throws IOException {
+        final Socket[] source = connect();
+        Socket[] sink = connect();
+        CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(
+                    sink[0].getOutputStream(), 65536));
+        new IOStreamConnector(source[1].getInputStream(), out);
+
+        Thread writer = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            OutputStream o = source[0].getOutputStream();
+                            byte[] data = new byte[65536];
+
+                            for (long sent = 0; sent < total;
+                                    sent += data.length) {
+                                o.write(data);
+                            }
+
+                            o.close();
+                        } catch (IOException ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                });
+
+        long started = System.nanoTime();
+        writer.start();
+
+        InputStream in = sink[1].getInputStream();
+        byte[] data = new byte[65536];
+        long received = 0;
+        int read;
+
+        while ((received < total) && ((read = in.read(data)) > 0)) {
+            received += read;
+        }
+
+        long elapsed = System.nanoTime() - started;
+        System.out.printf("throughput: %.0f MB/s writes=%d flushes=%d average write=%d bytes%n",
+            received / 1048576.0 / (elapsed / 1e9), out.writes, out.flushes,
+            received / Math.max(1, out.writes));
+        sink[1].close();
+    }
+
+    private static Socket[] connect() throws IOException {
+        ServerSocket server = new ServerSocket(0);
+
+        try {
+            Socket client = new Socket("127.0.0.1", server.getLocalPort());
+            Socket accepted = server.accept();
+            client.setTcpNoDelay(true);
+            accepted.setTcpNoDelay(true);
+
+            return new Socket[] { client, accepted };
+        } finally {
+            server.close();
+        }
+    }
+
+    static class CountingOutputStream extends OutputStream {
+        OutputStream out;
+        long writes;
+        long flushes;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        public void write(int b) throws IOException {
+            writes++;
+            out.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            writes++;
+            out.write(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            flushes++;
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}